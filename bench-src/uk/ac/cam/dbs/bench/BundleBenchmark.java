@@ -0,0 +1,89 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.cam.dbs.bundle.Bundle;
+
+/** <p>Measures bundle serialisation with <code>Bundle.toBytes()</code>
+ * and parsing with <code>new Bundle(byte[])</code>.</p>
+ *
+ * <p>Endpoints are decoded lazily, so <code>fromBytesDest</code>
+ * also measures decoding the destination endpoint, as the agent
+ * does for every bundle it receives.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleBenchmark {
+
+    /** Bundle payload length. */
+    @Param({"16", "1024"})
+    public int payloadLength;
+
+    private Bundle bundle;
+    private byte[] encoded;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() {
+        byte[] payload = new byte[payloadLength];
+        new Random(42).nextBytes(payload);
+
+        bundle = new Bundle();
+        bundle.setSourceEndpoint("dtn://[fd00:0:0:0:0:0:0:1]/chat");
+        bundle.setDestEndpoint("dtn://[fd00:0:0:0:0:0:0:2]/chat");
+        bundle.setReportToEndpoint("dtn://[fd00:0:0:0:0:0:0:1]/chat");
+        bundle.setTimestamp(300000000L);
+        bundle.setSequence(42);
+        bundle.setLifetime(3600);
+        bundle.setPayload(payload);
+        encoded = bundle.toBytes();
+        buffer = new byte[encoded.length];
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return bundle.toBytes();
+    }
+
+    @Benchmark
+    public int toBytesInto() {
+        return bundle.toBytes(buffer, 0);
+    }
+
+    @Benchmark
+    public Bundle fromBytes() {
+        return new Bundle(encoded);
+    }
+
+    @Benchmark
+    public String fromBytesDest() {
+        return new Bundle(encoded).getDestEndpoint();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.cam.dbs.*;
+
+/** <p>Measures the per-frame cost of DMP checksums.</p>
+ *
+ * <p><code>checksum</code> measures the checksum calculation alone.
+ * <code>sendPlain</code> and <code>sendChecksummed</code> measure
+ * sending a new message to a stream that discards its input, with and
+ * without filling in the checksum field; the difference between them
+ * is the cost of enabling checksums on a link.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    /** Payload length. 65535 octets is the largest DMP payload. */
+    @Param({"8", "256", "65535"})
+    public int payloadLength;
+
+    private byte[] payload;
+    private OutputStream sink;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadLength];
+        new Random(42).nextBytes(payload);
+        sink = new OutputStream() {
+                public void write(int b) {
+                }
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+    }
+
+    @Benchmark
+    public int checksum() {
+        return DMPChecksum.compute(50054, payloadLength, payload, 0);
+    }
+
+    @Benchmark
+    public void sendPlain(Blackhole bh) throws IOException {
+        DMPMessage msg = new DMPMessage(50054, payload);
+        msg.send(sink, false);
+        bh.consume(msg);
+    }
+
+    @Benchmark
+    public void sendChecksummed(Blackhole bh) throws IOException {
+        DMPMessage msg = new DMPMessage(50054, payload);
+        msg.send(sink, true);
+        bh.consume(msg);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.cam.dbs.util.ByteBufferHelper;
+import uk.ac.cam.dbs.util.SdnvByteBufferHelper;
+
+/** <p>Measures the integer codecs used to build and parse DMP,
+ * SFRP and bundle headers: SDNVs, and fixed-length big-endian
+ * numbers.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** Value to encode. The SDNV lengths are 1, 3 and 5 octets. */
+    @Param({"100", "1000000", "4000000000"})
+    public long value;
+
+    private byte[] buf;
+    private byte[] sdnv;
+    private byte[] fixed;
+
+    @Setup
+    public void setUp() {
+        buf = new byte[16];
+        sdnv = new byte[16];
+        SdnvByteBufferHelper.sdnvToBytes(value, sdnv, 0);
+        fixed = new byte[8];
+        ByteBufferHelper.numToBytes(value, fixed, 0, 8);
+    }
+
+    @Benchmark
+    public int sdnvToBytes() {
+        return SdnvByteBufferHelper.sdnvToBytes(value, buf, 0);
+    }
+
+    @Benchmark
+    public long sdnvFromBytes() {
+        return SdnvByteBufferHelper.sdnvFromBytes(sdnv, 0);
+    }
+
+    @Benchmark
+    public long numFromBytes2() {
+        return ByteBufferHelper.numFromBytes(fixed, 6, 2);
+    }
+
+    @Benchmark
+    public long numFromBytes4() {
+        return ByteBufferHelper.numFromBytes(fixed, 4, 4);
+    }
+
+    @Benchmark
+    public long numFromBytes8() {
+        return ByteBufferHelper.numFromBytes(fixed, 0, 8);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.cam.dbs.*;
+
+/** <p>Compares dedicated monitor threads with executor-scheduled
+ * monitors as the number of connections grows.</p>
+ *
+ * <p>The benchmark measures the latency from a frame being written
+ * by the remote end of a connection to it being delivered to the
+ * bound service. The memory footprint (live platform threads and
+ * heap in use) with all connections open is printed at the start of
+ * each trial.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionScalingBenchmark {
+
+    private static final int PORT = 50999;
+
+    @Param({"10", "100", "1000"})
+    public int connections;
+
+    /** "thread" for a dedicated thread per connection, or "virtual"
+     * to use <code>BusExecutors.virtualThreadExecutor()</code>. */
+    @Param({"thread", "virtual"})
+    public String monitor;
+
+    private SystemBus bus;
+    private PipeConnection[] conns;
+    private Semaphore delivered;
+    private DMPMessageListener service;
+    private byte[] frame;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        bus = SystemBus.getSystemBus();
+        if (monitor.equals("virtual")) {
+            bus.setMonitorExecutor(BusExecutors.virtualThreadExecutor());
+        } else {
+            bus.setMonitorExecutor(null);
+        }
+
+        delivered = new Semaphore(0);
+        service = new DMPMessageListener() {
+                public void recvDMPMessage(BusConnection c, DMPMessage msg) {
+                    delivered.release();
+                }
+            };
+        bus.addDMPService(service, PORT);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        new DMPMessage(PORT, new byte[24]).send(new DataOutputStream(buf));
+        frame = buf.toByteArray();
+
+        conns = new PipeConnection[connections];
+        for (int i = 0; i < connections; i++) {
+            conns[i] = new PipeConnection();
+            bus.addConnection(conns[i]);
+        }
+        next = 0;
+
+        reportFootprint();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (int i = 0; i < conns.length; i++) {
+            conns[i].disconnect();
+        }
+        bus.removeDMPService(service);
+        bus.setMonitorExecutor(null);
+    }
+
+    @Benchmark
+    public void deliver() throws IOException, InterruptedException {
+        PipeConnection c = conns[next];
+        next = (next + 1) % conns.length;
+        c.remote.write(frame);
+        c.remote.flush();
+        delivered.acquire();
+    }
+
+    private void reportFootprint() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        System.out.println("# Footprint: connections=" + connections
+                           + " monitor=" + monitor
+                           + " virtual=" + BusExecutors.isVirtualThreadSupported()
+                           + " platformThreads=" + threads.getThreadCount()
+                           + " heapUsedKiB=" + (heap / 1024));
+    }
+
+    /** A connection whose input is fed by the benchmark through a
+     * pipe, and whose output is discarded. */
+    private class PipeConnection implements BusConnection {
+        final PipedOutputStream remote;
+        private final PipedInputStream in;
+        private final OutputStream out;
+        private boolean connected;
+
+        PipeConnection() throws IOException {
+            remote = new PipedOutputStream();
+            in = new PipedInputStream(remote);
+            out = OutputStream.nullOutputStream();
+            connected = true;
+        }
+
+        public InterfaceAddress getLocalAddress() {
+            return null;
+        }
+
+        public InterfaceAddress getRemoteAddress() {
+            return null;
+        }
+
+        public synchronized boolean isConnected() {
+            return connected;
+        }
+
+        public synchronized void disconnect() throws IOException {
+            if (!connected) return;
+            connected = false;
+            bus.removeConnection(this);
+            /* Wakes up the monitor, which sees end of stream */
+            remote.close();
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+    }
+}
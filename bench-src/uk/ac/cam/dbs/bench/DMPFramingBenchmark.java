@@ -0,0 +1,76 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.cam.dbs.*;
+
+/** <p>Measures DMP framing: serialising a message onto a stream with
+ * <code>DMPMessage.send()</code>, and parsing it back with
+ * <code>DMPMessage.recv()</code>. Both use in-memory streams, so only
+ * the framing cost is measured.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DMPFramingBenchmark {
+
+    /** Payload length. 24 octets matches an SFRP HELLO. */
+    @Param({"24", "1024", "16384"})
+    public int payloadLength;
+
+    private DMPMessage msg;
+    private ByteArrayOutputStream out;
+    private DataInputStream in;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] payload = new byte[payloadLength];
+        new Random(42).nextBytes(payload);
+        msg = new DMPMessage(50054, payload);
+
+        out = new ByteArrayOutputStream(DMPMessage.HEADER_LENGTH + payloadLength);
+        msg.send(out);
+        in = new DataInputStream(new RepeatingInputStream(out.toByteArray()));
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        out.reset();
+        msg.send(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public DMPMessage recv() throws IOException {
+        return DMPMessage.recv(in);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.cam.dbs.*;
+
+/** <p>Measures the cost of dispatching an incoming DMP message to
+ * the service bound to its port.</p>
+ *
+ * <p>The number of bound services is varied; dispatch cost should
+ * not depend on it.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int MESSAGE_COUNT = 1024;
+
+    /** Number of DMP ports with a bound service. */
+    @Param({"1", "16", "256", "4096"})
+    public int services;
+
+    private SystemBus bus;
+    private Sink sink;
+    private DMPMessage[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() throws DMPBindException {
+        bus = SystemBus.getSystemBus();
+        sink = new Sink();
+
+        /* Spread the bound ports over the whole port space */
+        int[] ports = new int[services];
+        int stride = 0xfffe / services;
+        for (int i = 0; i < services; i++) {
+            ports[i] = 1 + i * stride;
+            bus.addDMPService(sink, ports[i]);
+        }
+
+        /* Address messages to randomly-chosen bound ports */
+        Random random = new Random(42);
+        messages = new DMPMessage[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int port = ports[random.nextInt(services)];
+            messages[i] = new DMPMessage(port, new byte[24]);
+        }
+        next = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        bus.removeDMPService(sink);
+    }
+
+    @Benchmark
+    public void dispatch(Blackhole bh) {
+        sink.bh = bh;
+        bus.recvDMPMessage(null, messages[next++ & (MESSAGE_COUNT - 1)]);
+    }
+
+    private static class Sink implements DMPMessageListener {
+        Blackhole bh;
+        public void recvDMPMessage(BusConnection connection, DMPMessage msg) {
+            bh.consume(msg);
+        }
+    }
+}
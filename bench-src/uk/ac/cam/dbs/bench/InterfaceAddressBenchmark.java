@@ -0,0 +1,73 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.cam.dbs.InterfaceAddress;
+
+/** <p>Measures the <code>InterfaceAddress</code> operations used
+ * when addresses are keys in routing tables and when they are
+ * formatted into bundle endpoints.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterfaceAddressBenchmark {
+
+    private InterfaceAddress a;
+    private InterfaceAddress b;
+    private InterfaceAddress c;
+
+    @Setup
+    public void setUp() {
+        a = new InterfaceAddress("fd12:3456:789a:1:0:0:0:42");
+        /* Equal to a, but a separate instance */
+        b = new InterfaceAddress(a.getBytes());
+        /* Differs from a in the last octet */
+        c = new InterfaceAddress("fd12:3456:789a:1:0:0:0:43");
+    }
+
+    @Benchmark
+    public int hashCodeAddress() {
+        return a.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return a.equals(b);
+    }
+
+    @Benchmark
+    public boolean equalsDifferent() {
+        return a.equals(c);
+    }
+
+    @Benchmark
+    public String toStringAddress() {
+        return a.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.cam.dbs.*;
+
+/** <p>Measures the cost of receiving a small DMP message from a
+ * stream, with and without a <code>DMPBufferPool</code>.</p>
+ *
+ * <p>Run with <code>-prof gc</code> to compare the allocation rate
+ * per message: with pooling enabled, only the message object itself
+ * should be allocated.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePoolBenchmark {
+
+    /** Payload length, matching an SFRP HELLO. */
+    private static final int PAYLOAD_LENGTH = 24;
+
+    /** Whether to take payload buffers from a pool. */
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private DataInputStream in;
+    private DMPBufferPool pool;
+
+    @Setup
+    public void setUp() {
+        byte[] frame = new byte[DMPMessage.HEADER_LENGTH + PAYLOAD_LENGTH];
+        new DMPMessage(50054, new byte[PAYLOAD_LENGTH]).getHeader(frame, 0);
+        in = new DataInputStream(new RepeatingInputStream(frame));
+        pool = pooled ? new DMPBufferPool(16) : null;
+    }
+
+    @Benchmark
+    public void recv(Blackhole bh) throws IOException {
+        DMPMessage msg = DMPMessage.recv(in, pool);
+        bh.consume(msg.getPayload());
+        msg.release();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bench;
+
+import java.io.InputStream;
+
+/** Endless stream which repeats the same data, for benchmarking
+ * decoders without allocating input. */
+class RepeatingInputStream extends InputStream {
+    private final byte[] data;
+    private int pos;
+
+    RepeatingInputStream(byte[] data) {
+        this.data = data;
+        pos = 0;
+    }
+
+    public int read() {
+        int b = data[pos] & 0xff;
+        pos = (pos + 1) % data.length;
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) {
+        int n = Math.min(len, data.length - pos);
+        System.arraycopy(data, pos, b, off, n);
+        pos = (pos + n) % data.length;
+        return n;
+    }
+}
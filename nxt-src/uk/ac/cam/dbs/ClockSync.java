@@ -36,7 +36,7 @@ import java.util.Enumeration;
  */
 public class ClockSync
     extends TimeProvider
-    implements DMPMessageListener, Runnable {
+    implements DMPMessageListener, LinkQualityProvider, Runnable {
 
     private static final int PORT = 50123;
     private static final int UPDATE_PERIOD = 1000;
@@ -57,6 +57,8 @@ public class ClockSync
 
     private TimeProvider internalTime;
 
+    private LinkQualityEstimator linkQuality;
+
     /** Create a new ClockSync service.
      */
     public ClockSync() {
@@ -71,6 +73,7 @@ public class ClockSync
      */
     public ClockSync(TimeProvider internalTime) {
         this.internalTime = internalTime;
+        linkQuality = new LinkQualityEstimator();
         recvStore = new Hashtable();
         sentStore = new long[10];
         offset = 0;
@@ -140,6 +143,7 @@ public class ClockSync
 
             /* Update estimate */
             updateOffset();
+            linkQuality.retain(SystemBus.getSystemBus().getConnections());
         }
         SystemBus.getSystemBus().removeDMPService(this, -1);
     }
@@ -153,6 +157,16 @@ public class ClockSync
         return sysTime + offset;
     }
 
+    /** Get the cost of a link, estimated from the round-trip times
+     * and losses of clock synchronisation messages.
+     *
+     * @param conn {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int getLinkCost(BusConnection conn) {
+        return linkQuality.getLinkCost(conn);
+    }
+
     /** Process a clock protocol message. Calculates the roundtrip
      * latency, and stores message information for the next update to
      * the clock offset estimate.
@@ -191,6 +205,10 @@ public class ClockSync
             roundTrip = localTime - sentTime - holdTime;
             roundTripValid = true;
         }
+        if (oldSeq != 0) {
+            linkQuality.probeEchoed(connection, oldSeq,
+                                    roundTripValid ? roundTrip : -1);
+        }
 
         /* Do all the synchronized operations last, in one go, to
          * avoid problems with added latency while waiting to
@@ -269,6 +287,7 @@ public class ClockSync
         synchronized(sentStore) {
             sentStore[seq % sentStore.length] = now;
         }
+        linkQuality.probeSent(connection, seq);
 
         SystemBus.getSystemBus().sendDMPMessage(connection, msg);
     }
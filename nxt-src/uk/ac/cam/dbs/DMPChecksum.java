@@ -0,0 +1,83 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>Calculates DMP frame checksums.</p>
+ *
+ * <p>The checksum is the CRC-32C of the port number, payload length
+ * (both as big-endian 16-bit values) and payload, with the upper and
+ * lower halves exclusive-ORed together to give 16 bits. A checksum of
+ * zero is never generated (0xffff is used instead), because a zero
+ * checksum field indicates that the sender did not calculate one.</p>
+ *
+ * <p>This implementation uses a 256-entry lookup table.</p>
+ *
+ * @see DMPMessage#getChecksum()
+ */
+public final class DMPChecksum {
+
+    /** Reversed CRC-32C (Castagnoli) polynomial. */
+    private static final int POLY = 0x82f63b78;
+
+    private static final int[] table = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int j = 0; j < 8; j++) {
+                if ((c & 1) != 0) {
+                    c = (c >>> 1) ^ POLY;
+                } else {
+                    c = c >>> 1;
+                }
+            }
+            table[i] = c;
+        }
+    }
+
+    private DMPChecksum() {
+    }
+
+    /** Calculate the checksum of a DMP frame.
+     *
+     * @param port    Port number of the frame.
+     * @param length  Payload length.
+     * @param payload Buffer containing the payload.
+     * @param off     Offset of the payload within <code>payload</code>.
+     *
+     * @return the checksum, which is never zero.
+     */
+    public static int compute(int port, int length, byte[] payload, int off) {
+        int crc = 0xffffffff;
+        crc = table[(crc ^ (port >> 8)) & 0xff] ^ (crc >>> 8);
+        crc = table[(crc ^ port) & 0xff] ^ (crc >>> 8);
+        crc = table[(crc ^ (length >> 8)) & 0xff] ^ (crc >>> 8);
+        crc = table[(crc ^ length) & 0xff] ^ (crc >>> 8);
+        int end = off + length;
+        for (int i = off; i < end; i++) {
+            crc = table[(crc ^ payload[i]) & 0xff] ^ (crc >>> 8);
+        }
+        crc = ~crc;
+
+        int sum = ((crc >>> 16) ^ crc) & 0xffff;
+        return (sum == 0) ? 0xffff : sum;
+    }
+}
@@ -58,6 +58,37 @@ class BundleStringCodec {
         return new String(c, 0, i);
     }
 
+    /** <p>Decode an endpoint from its scheme and scheme-specific
+     * part, without building either as a separate string.</p>
+     *
+     * @param buf          Buffer from which to decode endpoint.
+     * @param schemeOffset Offset of scheme within <code>buf</code>.
+     * @param schemeLength Length of scheme.
+     * @param sspOffset    Offset of scheme-specific part within
+     *                     <code>buf</code>.
+     * @param sspLength    Length of scheme-specific part.
+     */
+    public static String fromEndpointBytes(byte[] buf,
+                                           int schemeOffset, int schemeLength,
+                                           int sspOffset, int sspLength) {
+        char[] c = new char[schemeLength + 1 + sspLength];
+        decode(buf, schemeOffset, c, 0, schemeLength);
+        c[schemeLength] = ':';
+        decode(buf, sspOffset, c, schemeLength + 1, sspLength);
+        return new String(c);
+    }
+
+    private static void decode(byte[] buf, int offset,
+                               char[] c, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = buf[offset+i];
+            if ((b & 128) != 0) {
+                b = 0x3f; /* "?" */
+            }
+            c[start+i] = (char) b;
+        }
+    }
+
     /** <p>Encode a string into a buffer.</p>
      *
      * @param str  String to encode.
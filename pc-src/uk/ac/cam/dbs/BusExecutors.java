@@ -0,0 +1,117 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** <p>Factory methods for <code>BusExecutor</code>s backed by
+ * <code>java.util.concurrent</code>.</p>
+ *
+ * <p>For example, to monitor all connections using virtual threads
+ * where the Java runtime supports them:</p>
+ *
+ * <pre>
+ * SystemBus.getSystemBus().setMonitorExecutor(BusExecutors.virtualThreadExecutor());
+ * </pre>
+ *
+ * @see SystemBus#setMonitorExecutor(BusExecutor)
+ */
+public class BusExecutors {
+
+    private BusExecutors() {
+    }
+
+    /** Adapt a <code>java.util.concurrent.Executor</code>.
+     *
+     * @param executor Executor to run tasks on.
+     *
+     * @return a <code>BusExecutor</code> which submits tasks to
+     *         <code>executor</code>.
+     */
+    public static BusExecutor fromExecutor(final Executor executor) {
+        if (executor == null)
+            throw new NullPointerException();
+
+        return new BusExecutor() {
+            public void execute(Runnable task) {
+                executor.execute(task);
+            }
+        };
+    }
+
+    /** Create an executor which runs tasks on a pool of daemon
+     * threads. Idle threads are reused, so connections which come and
+     * go do not cause a new thread to be created every time.
+     *
+     * @return a new thread pool executor.
+     */
+    public static BusExecutor cachedThreadExecutor() {
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DMPMonitor");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        return fromExecutor(Executors.newCachedThreadPool(factory));
+    }
+
+    /** <p>Create an executor which runs each task on a new virtual
+     * thread. A blocked virtual thread does not tie up a platform
+     * thread, so this allows very large numbers of connections to be
+     * monitored.</p>
+     *
+     * <p>Virtual threads require Java 21 or later. On older runtimes,
+     * this falls back to <code>cachedThreadExecutor()</code>.</p>
+     *
+     * @return a new virtual thread executor.
+     *
+     * @see #cachedThreadExecutor()
+     */
+    public static BusExecutor virtualThreadExecutor() {
+        try {
+            Method factory =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return fromExecutor((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return cachedThreadExecutor();
+        }
+    }
+
+    /** Test whether the Java runtime supports virtual threads.
+     *
+     * @return <code>true</code> if
+     *         <code>virtualThreadExecutor()</code> will use virtual
+     *         threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/** <p>A DMP message whose payload is held in a
+ * <code>ByteBuffer</code>.</p>
+ *
+ * <p>The payload buffer is not copied: it may be a slice of a larger
+ * receive buffer, a direct buffer, or a buffer taken from a pool. It
+ * must not be modified after the message has been created. Services
+ * should use <code>getPayloadBuffer()</code> to read the payload;
+ * <code>getPayload()</code> is provided for compatibility, and copies
+ * the payload into an array the first time it is called.</p>
+ *
+ * @see NioTCPIPConnectionManager
+ */
+public class ByteBufferDMPMessage extends DMPMessage {
+
+    /** Payload, with position 0 and limit equal to its length. */
+    private ByteBuffer payloadBuffer;
+    /** Copy of the payload, created on demand. */
+    private byte[] payloadArray;
+
+    /** Create a new <code>ByteBufferDMPMessage</code>. The payload is
+     * the data between the position and limit of
+     * <code>payload</code>, which is not copied.
+     *
+     * @param port    The port number associated with the service
+     *                responsible for the message.
+     * @param payload The contents of the message.
+     */
+    public ByteBufferDMPMessage(int port, ByteBuffer payload) {
+        super(port, payload.remaining());
+        payloadBuffer = payload.slice();
+        payloadArray = null;
+    }
+
+    /** Get a read-only view of the payload data. Each call returns a
+     * new view, with its position at the start of the payload.
+     *
+     * @return the contents of the message.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payloadBuffer.asReadOnlyBuffer();
+    }
+
+    /** Get the payload data as an array. The payload is copied the
+     * first time this method is called.
+     *
+     * @return the contents of the message.
+     */
+    public synchronized byte[] getPayload() {
+        if (payloadArray == null) {
+            byte[] a = new byte[getPayloadLength()];
+            payloadBuffer.duplicate().get(a);
+            payloadArray = a;
+        }
+        return payloadArray;
+    }
+
+    /** {@inheritDoc}
+     * @param buf {@inheritDoc}
+     * @param off {@inheritDoc}
+     */
+    public void getPayload(byte[] buf, int off) {
+        payloadBuffer.duplicate().get(buf, off, getPayloadLength());
+    }
+
+    /** {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    protected int computeChecksum() {
+        return DMPChecksum.compute(getPort(), payloadBuffer);
+    }
+
+    /** {@inheritDoc}
+     * @param out {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     */
+    protected void writePayload(OutputStream out) throws IOException {
+        if (payloadBuffer.hasArray()) {
+            out.write(payloadBuffer.array(), payloadBuffer.arrayOffset(),
+                      getPayloadLength());
+        } else {
+            out.write(getPayload(), 0, getPayloadLength());
+        }
+    }
+
+    /** <p>Get the buffers making up the DMP frame for a message,
+     * without a checksum.</p>
+     *
+     * @param msg Message to get a frame for.
+     *
+     * @return an array containing header and payload buffers.
+     */
+    public static ByteBuffer[] getFrameBuffers(DMPMessage msg) {
+        return getFrameBuffers(msg, false);
+    }
+
+    /** <p>Get the buffers making up the DMP frame for a message: a
+     * new header buffer, followed by the payload. The payload is not
+     * copied, so the frame can be transmitted with a single gathering
+     * write.</p>
+     *
+     * @param msg          Message to get a frame for.
+     * @param withChecksum Whether to fill in the checksum field.
+     *
+     * @return an array containing header and payload buffers.
+     */
+    public static ByteBuffer[] getFrameBuffers(DMPMessage msg,
+                                               boolean withChecksum) {
+        byte[] header = new byte[HEADER_LENGTH];
+        msg.getHeader(header, 0, withChecksum);
+
+        ByteBuffer payload;
+        if (msg instanceof ByteBufferDMPMessage) {
+            payload = ((ByteBufferDMPMessage) msg).payloadBuffer.duplicate();
+        } else {
+            payload = ByteBuffer.wrap(msg.getPayload(), 0,
+                                      msg.getPayloadLength());
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(header), payload };
+    }
+
+    /** Send a message over a blocking channel, without a checksum.
+     *
+     * @param msg     Message to send.
+     * @param channel Channel to write the message to.
+     *
+     * @throws IOException if an error occurs in transmission.
+     */
+    public static void send(DMPMessage msg, GatheringByteChannel channel)
+        throws IOException {
+        send(msg, channel, false);
+    }
+
+    /** Send a message over a blocking channel, using a single
+     * gathering write for the header and payload where the channel
+     * allows it.
+     *
+     * @param msg          Message to send.
+     * @param channel      Channel to write the message to.
+     * @param withChecksum Whether to fill in the checksum field.
+     *
+     * @throws IOException if an error occurs in transmission.
+     */
+    public static void send(DMPMessage msg, GatheringByteChannel channel,
+                            boolean withChecksum)
+        throws IOException {
+        ByteBuffer[] frame = getFrameBuffers(msg, withChecksum);
+        synchronized (channel) {
+            while (frame[0].hasRemaining() || frame[1].hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+    }
+}
@@ -36,7 +36,7 @@ import java.util.Enumeration;
  */
 public class ClockSync
     extends TimeProvider
-    implements DMPMessageListener, Runnable {
+    implements DMPMessageListener, LinkQualityProvider, Runnable {
 
     private static final int PORT = 50123;
     private static final int UPDATE_PERIOD = 1000;
@@ -56,6 +56,8 @@ public class ClockSync
 
     private TimeProvider internalTime;
 
+    private LinkQualityEstimator linkQuality;
+
     /** Create a new ClockSync service.
      */
     public ClockSync() {
@@ -70,6 +72,7 @@ public class ClockSync
      */
     public ClockSync(TimeProvider internalTime) {
         this.internalTime = internalTime;
+        linkQuality = new LinkQualityEstimator();
         recvStore = new Hashtable<BusConnection,RecvRecord>();
         sentStore = new Hashtable<Integer,Long>();
         offset = 0;
@@ -139,6 +142,7 @@ public class ClockSync
 
             /* Update estimate */
             updateOffset();
+            linkQuality.retain(SystemBus.getSystemBus().getConnections());
         }
         SystemBus.getSystemBus().removeDMPService(this, -1);
     }
@@ -152,6 +156,16 @@ public class ClockSync
         return sysTime + offset;
     }
 
+    /** Get the cost of a link, estimated from the round-trip times
+     * and losses of clock synchronisation messages.
+     *
+     * @param conn {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int getLinkCost(BusConnection conn) {
+        return linkQuality.getLinkCost(conn);
+    }
+
     /** Process a clock protocol message. Calculates the roundtrip
      * latency, and stores message information for the next update to
      * the clock offset estimate.
@@ -184,6 +198,10 @@ public class ClockSync
             rec.roundTrip = rec.localTime - sendTime.longValue() - holdTime;
             rec.roundTripValid = true;
         }
+        if (oldSeq != 0) {
+            linkQuality.probeEchoed(connection, oldSeq,
+                                    rec.roundTripValid ? rec.roundTrip : -1);
+        }
 
         /* Record that we received a message */
         synchronized (recvStore) {
@@ -240,6 +258,7 @@ public class ClockSync
 
         /* Send message */
         DMPMessage msg = new DMPMessage(PORT, payload);
+        linkQuality.probeSent(connection, seq);
         SystemBus.getSystemBus().sendDMPMessage(connection, msg);
 
         /* Add to record of sent messages */
@@ -0,0 +1,101 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/** <p>Calculates DMP frame checksums.</p>
+ *
+ * <p>The checksum is the CRC-32C of the port number, payload length
+ * (both as big-endian 16-bit values) and payload, with the upper and
+ * lower halves exclusive-ORed together to give 16 bits. A checksum of
+ * zero is never generated (0xffff is used instead), because a zero
+ * checksum field indicates that the sender did not calculate one.</p>
+ *
+ * <p>This implementation uses <code>java.util.zip.CRC32C</code>, which
+ * the JVM implements with CPU instructions where they are
+ * available.</p>
+ *
+ * @see DMPMessage#getChecksum()
+ */
+public final class DMPChecksum {
+
+    /** Per-thread CRC state. */
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private static class State {
+        CRC32C crc = new CRC32C();
+        byte[] header = new byte[4];
+    }
+
+    private DMPChecksum() {
+    }
+
+    /** Calculate the checksum of a DMP frame.
+     *
+     * @param port    Port number of the frame.
+     * @param length  Payload length.
+     * @param payload Buffer containing the payload.
+     * @param off     Offset of the payload within <code>payload</code>.
+     *
+     * @return the checksum, which is never zero.
+     */
+    public static int compute(int port, int length, byte[] payload, int off) {
+        CRC32C crc = start(port, length);
+        crc.update(payload, off, length);
+        return fold(crc.getValue());
+    }
+
+    /** Calculate the checksum of a DMP frame.
+     *
+     * @param port    Port number of the frame.
+     * @param payload The payload, between its position and limit. The
+     *                buffer's position is not changed.
+     *
+     * @return the checksum, which is never zero.
+     */
+    public static int compute(int port, ByteBuffer payload) {
+        CRC32C crc = start(port, payload.remaining());
+        crc.update(payload.duplicate());
+        return fold(crc.getValue());
+    }
+
+    private static CRC32C start(int port, int length) {
+        State s = state.get();
+        s.header[0] = (byte) (port >> 8);
+        s.header[1] = (byte) port;
+        s.header[2] = (byte) (length >> 8);
+        s.header[3] = (byte) length;
+        s.crc.reset();
+        s.crc.update(s.header, 0, 4);
+        return s.crc;
+    }
+
+    private static int fold(long crc) {
+        int sum = (int) ((crc >>> 16) ^ crc) & 0xffff;
+        return (sum == 0) ? 0xffff : sum;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** <p>An in-memory connection between two <code>SystemBus</code>
+ * instances in the same process.</p>
+ *
+ * <p>Loopback connections are created in pairs with
+ * <code>connect()</code>, one end for each bus. Messages sent on one
+ * end are delivered to the other end's bus after a simulated delay,
+ * made up of a fixed latency and the time taken to transmit the frame
+ * at the link bandwidth. Frames on a link are serialised, so a burst
+ * of messages queues up behind the link as it would on a real
+ * interface. A proportion of frames can also be dropped at random.</p>
+ *
+ * <p>Each direction of a link is simulated independently, and the
+ * link parameters may be changed at any time. All delivery is done
+ * on a single shared timer thread, so messages are never delivered
+ * re-entrantly from within <code>sendDMPMessage()</code>.</p>
+ *
+ * @see SystemBus#SystemBus()
+ */
+public class LoopbackConnection implements FramedBusConnection {
+
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    private final SystemBus bus;
+    private final InterfaceAddress localAddress;
+    private final InterfaceAddress remoteAddress;
+    private LoopbackConnection peer;
+
+    private volatile DMPMessageListener dispatcher;
+    private volatile boolean connected;
+
+    /* Outgoing link parameters */
+    private volatile long latencyNanos;
+    private volatile long bandwidth;
+    private volatile double lossRate;
+
+    /** Time at which the outgoing link is next idle. */
+    private long linkFreeAt;
+    private Random random;
+    private long sentFrames;
+    private long droppedFrames;
+
+    private LoopbackConnection(SystemBus bus,
+                               InterfaceAddress localAddress,
+                               InterfaceAddress remoteAddress) {
+        this.bus = bus;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        random = new Random();
+        connected = true;
+    }
+
+    /** <p>Connect two buses with a new loopback link.</p>
+     *
+     * <p>Each end of the link is added to its bus before this method
+     * returns. The link initially has no latency, unlimited bandwidth
+     * and no loss.</p>
+     *
+     * @param busA  First bus.
+     * @param addrA Interface address of the first bus's end.
+     * @param busB  Second bus.
+     * @param addrB Interface address of the second bus's end.
+     *
+     * @return the two ends of the link. Element 0 is attached to
+     *         <code>busA</code> and element 1 to <code>busB</code>.
+     */
+    public static LoopbackConnection[] connect(SystemBus busA,
+                                               InterfaceAddress addrA,
+                                               SystemBus busB,
+                                               InterfaceAddress addrB) {
+        if ((busA == null) || (busB == null)
+            || (addrA == null) || (addrB == null))
+            throw new NullPointerException();
+
+        LoopbackConnection a = new LoopbackConnection(busA, addrA, addrB);
+        LoopbackConnection b = new LoopbackConnection(busB, addrB, addrA);
+        a.peer = b;
+        b.peer = a;
+        busA.addConnection(a);
+        busB.addConnection(b);
+        return new LoopbackConnection[] { a, b };
+    }
+
+    /** Set the simulated one-way latency of frames sent from this
+     * end.
+     *
+     * @param micros Latency in microseconds.
+     */
+    public void setLatency(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("Negative latency");
+        latencyNanos = micros * 1000;
+    }
+
+    /** Get the simulated one-way latency of frames sent from this
+     * end.
+     *
+     * @return latency in microseconds.
+     */
+    public long getLatency() {
+        return latencyNanos / 1000;
+    }
+
+    /** Set the simulated bandwidth of the link from this end.
+     *
+     * @param bytesPerSecond Bandwidth in octets per second, or 0 for
+     *                       unlimited bandwidth.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Negative bandwidth");
+        bandwidth = bytesPerSecond;
+    }
+
+    /** Get the simulated bandwidth of the link from this end.
+     *
+     * @return bandwidth in octets per second, or 0 if unlimited.
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /** Set the proportion of frames sent from this end which are
+     * lost.
+     *
+     * @param rate Loss rate between 0 and 1.
+     */
+    public void setLossRate(double rate) {
+        if ((rate < 0) || (rate > 1))
+            throw new IllegalArgumentException("Loss rate out of range");
+        lossRate = rate;
+    }
+
+    /** Get the proportion of frames sent from this end which are
+     * lost.
+     *
+     * @return loss rate between 0 and 1.
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /** Get the far end of the link.
+     *
+     * @return the peer connection.
+     */
+    public LoopbackConnection getPeer() {
+        return peer;
+    }
+
+    /** Get the number of frames sent from this end, including frames
+     * which were lost.
+     *
+     * @return frame count.
+     */
+    public synchronized long getSentFrameCount() {
+        return sentFrames;
+    }
+
+    /** Get the number of frames sent from this end which were lost.
+     *
+     * @return frame count.
+     */
+    public synchronized long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    public void startDispatch(DMPMessageListener dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public void stopDispatch() {
+        dispatcher = null;
+    }
+
+    /** Simulate transmission of a message. The payload is copied, so
+     * the caller may reuse <code>msg</code> as soon as this method
+     * returns. */
+    public void sendDMPMessage(DMPMessage msg, boolean withChecksum)
+        throws IOException {
+        if (!connected)
+            throw new IOException("Loopback connection closed");
+
+        int len = msg.getPayloadLength();
+        byte[] buf = new byte[len];
+        msg.getPayload(buf, 0);
+        final DMPMessage copy = new DMPMessage(msg.getPort(), buf);
+        copy.setReceivedChecksum(withChecksum ? msg.getChecksum()
+                                 : DMPMessage.NO_CHECKSUM);
+
+        long now = System.nanoTime();
+        long deliverAt;
+        synchronized (this) {
+            sentFrames++;
+            if ((lossRate > 0) && (random.nextDouble() < lossRate)) {
+                droppedFrames++;
+                return;
+            }
+            long start = (linkFreeAt > now) ? linkFreeAt : now;
+            long bw = bandwidth;
+            long txTime = (bw > 0)
+                ? (DMPMessage.HEADER_LENGTH + len) * 1000000000L / bw
+                : 0;
+            linkFreeAt = start + txTime;
+            deliverAt = linkFreeAt + latencyNanos;
+        }
+
+        getScheduler().schedule(new Runnable() {
+                public void run() {
+                    peer.deliver(copy);
+                }
+            }, deliverAt - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void deliver(DMPMessage msg) {
+        DMPMessageListener d = dispatcher;
+        if (!connected || (d == null)) return;
+        try {
+            d.recvDMPMessage(this, msg);
+        } catch (RuntimeException e) {
+            System.err.println("Loopback delivery failed: " + e);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("Loopback connections dispatch messages directly");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Loopback connections dispatch messages directly");
+    }
+
+    /** Disconnect both ends of the link, and remove them from their
+     * buses. */
+    public void disconnect() throws IOException {
+        if (close()) bus.removeConnection(this);
+        if (peer.close()) peer.bus.removeConnection(peer);
+    }
+
+    private synchronized boolean close() {
+        if (!connected) return false;
+        connected = false;
+        return true;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public InterfaceAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public InterfaceAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LoopbackConnection");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** <p>Manages bus connections tunnelled over TCP/IP, using
+ * non-blocking I/O.</p>
+ *
+ * <p>The single <code>NioTCPIPConnectionManager</code> instance,
+ * obtained via <code>getConnectionManager()</code>, is an alternative
+ * to <code>TCPIPConnectionManager</code> for nodes with many TCP/IP
+ * tunnels. Instead of one blocked thread per connection, all tunnels
+ * and the listening socket are serviced by a small number of selector
+ * threads (see <code>setSelectorThreads()</code>). Incoming DMP frames
+ * are decoded directly from the receive buffer and passed to the
+ * <code>SystemBus</code> as <code>ByteBufferDMPMessage</code>s, whose
+ * payloads are slices of the receive buffer rather than copies.</p>
+ *
+ * <p>The wire protocol is identical to the one used by
+ * <code>TCPIPConnectionManager</code>, so the two can be used at
+ * either end of the same tunnel.</p>
+ *
+ * <p>Note that incoming messages are dispatched on the selector
+ * threads, so DMP services should not block for long periods while
+ * handling them. A send made from a selector thread never waits for
+ * room in a connection's send queue, since waiting could stop the
+ * queue from ever being drained. The message is queued anyway, and
+ * the queue is drained once the service returns.</p>
+ *
+ * <p>Connections are added to the bus given when they are made, or
+ * for incoming connections, the bus set with
+ * <code>setSystemBus()</code>. Both default to the bus returned by
+ * <code>SystemBus.getSystemBus()</code>.</p>
+ *
+ * @see SystemBus
+ * @see TCPIPConnectionManager
+ * @see #getConnectionManager()
+ */
+public class NioTCPIPConnectionManager implements BusConnectionServer {
+    private int tcp_port = 51992;
+
+    /** Length of the interface address exchanged on connection. */
+    private static final int ADDRESS_LENGTH = 16;
+    /** Default size of each receive chunk. */
+    private static final int RECV_BUFFER_SIZE = 8192;
+    /** Number of bytes which may be queued for transmission on a
+     * connection before senders are blocked. */
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+    /** Time to wait for a remote device to send its address. */
+    private static final int HANDSHAKE_TIMEOUT = 10000; /* ms */
+
+    /** Set on the selector threads, which must never wait for room
+     * to send. */
+    private static final ThreadLocal<Boolean> onSelectorThread =
+        new ThreadLocal<Boolean>();
+
+    /* ************************************************** */
+
+    /** <p>Connect to a remote host over TCP/IP. Equivalent to
+     * calling:</p>
+     *
+     * <p><code>connectHost(hostname, getTCPPort())</code></p>
+     *
+     * @param hostname The hostname of the remote device.
+     *
+     * @return a newly-established <code>BusConnection</code>.
+     *
+     * @see #connectHost(String, int)
+     */
+    public BusConnection connectHost(String hostname)
+        throws IOException {
+
+        return connectHost(hostname, tcp_port);
+    }
+
+    /** <p>Connect to a remote host over TCP/IP. The remote device,
+     * identified by <code>hostname</code>, must be listening for
+     * incoming connections on the given <code>port</code>.
+     *
+     * <p>The resulting <code>BusConnection</code> is automatically
+     * registered with the <code>SystemBus</code>.</p>
+     *
+     * @param hostname The hostname of the remote device.
+     * @param port     The TCP port to connect to.
+     *
+     * @return a newly-established <code>BusConnection</code>.
+     */
+    public BusConnection connectHost(String hostname, int port)
+        throws IOException {
+
+        return connectHost(SystemBus.getSystemBus(), hostname, port);
+    }
+
+    /** <p>Connect to a remote host over TCP/IP, adding the resulting
+     * <code>BusConnection</code> to a particular bus.</p>
+     *
+     * @param bus      The bus to add the connection to.
+     * @param hostname The hostname of the remote device.
+     * @param port     The TCP port to connect to.
+     *
+     * @return a newly-established <code>BusConnection</code>.
+     */
+    public BusConnection connectHost(SystemBus bus, String hostname, int port)
+        throws IOException {
+
+        if (bus == null) throw new NullPointerException();
+
+        InetAddress hostAddr = InetAddress.getByName(hostname);
+        SocketChannel channel =
+            SocketChannel.open(new InetSocketAddress(hostAddr, port));
+
+        NioConnection conn;
+        try {
+            conn = this.new NioConnection(bus, channel, getLocalAddress());
+            nextLoop().register(conn);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        conn.awaitHandshake();
+        return conn;
+    }
+
+    /** BusConnection implementation for non-blocking TCP/IP tunnels. */
+    private class NioConnection implements FramedBusConnection {
+        private final SystemBus bus;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private InterfaceAddress localAddress;
+        private InterfaceAddress remoteAddress;
+
+        /** Current receive chunk. Kept in "write mode" between
+         * reads. */
+        private ByteBuffer recvBuf;
+        /** Offset in <code>recvBuf</code> of the first octet not yet
+         * decoded. */
+        private int parsePos;
+        /** Whether any payload slices of <code>recvBuf</code> have
+         * been handed out. If so, it must not be overwritten. */
+        private boolean sliced;
+        /** Queue of ByteBuffers awaiting transmission. */
+        private ArrayDeque<ByteBuffer> sendQueue;
+        /** Messages whose payloads are queued, keyed by the last
+         * buffer of their frame. Each is retained until that buffer
+         * has been written. */
+        private IdentityHashMap<ByteBuffer, DMPMessage> queuedMessages;
+        private int pendingBytes;
+        private OutputStream outStream;
+
+        private volatile DMPMessageListener dispatcher;
+        private boolean handshakeDone;
+        private boolean closed;
+
+        NioConnection(SystemBus bus, SocketChannel channel,
+                      InterfaceAddress localAddress)
+            throws IOException {
+            this.bus = bus;
+            this.channel = channel;
+            this.localAddress = localAddress;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            recvBuf = ByteBuffer.allocate(RECV_BUFFER_SIZE);
+            parsePos = 0;
+            sliced = false;
+            sendQueue = new ArrayDeque<ByteBuffer>();
+            queuedMessages = new IdentityHashMap<ByteBuffer, DMPMessage>();
+            pendingBytes = 0;
+            outStream = new OutputStream() {
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+                    public void write(byte[] b, int off, int len)
+                        throws IOException {
+                        ByteBuffer buf = ByteBuffer.allocate(len);
+                        buf.put(b, off, len);
+                        buf.flip();
+                        queueSend(new ByteBuffer[] { buf }, null);
+                    }
+                    public void close() throws IOException {
+                        NioConnection.this.disconnect();
+                    }
+                };
+
+            /* Exchange interface addresses (should be the first 16
+             * bytes sent over connection) */
+            sendQueue.add(ByteBuffer.wrap(getLocalAddress().getBytes()));
+            pendingBytes = ADDRESS_LENGTH;
+        }
+
+        /** Wait until the remote device's address has been received
+         * and the connection has been added to the SystemBus. */
+        synchronized void awaitHandshake() throws IOException {
+            long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+            while (!handshakeDone && !closed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    disconnect();
+                    throw new IOException("Timed out waiting for remote address");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    disconnect();
+                    throw new IOException("Interrupted waiting for remote address");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed during handshake");
+            }
+        }
+
+        /** Called on the selector thread when the channel is
+         * registered. */
+        void registered(SelectionKey key) {
+            this.key = key;
+            updateInterest();
+        }
+
+        /** Called on the selector thread when the channel is
+         * readable. */
+        void handleRead() throws IOException {
+            int n = channel.read(recvBuf);
+            if (n < 0) {
+                disconnect();
+                return;
+            }
+
+            if (remoteAddress == null) {
+                if (recvBuf.position() - parsePos < ADDRESS_LENGTH) {
+                    return;
+                }
+                byte[] addr = new byte[ADDRESS_LENGTH];
+                ByteBuffer b = recvBuf.duplicate();
+                b.position(parsePos);
+                b.get(addr);
+                parsePos += ADDRESS_LENGTH;
+                remoteAddress = new InterfaceAddress(addr);
+                bus.addConnection(this);
+                synchronized (this) {
+                    handshakeDone = true;
+                    notifyAll();
+                }
+            }
+            decodeFrames();
+        }
+
+        /** <p>Decode and dispatch every complete frame in the
+         * receive buffer, leaving it ready for the next read.</p>
+         *
+         * <p>Each payload is passed on as a slice of the receive
+         * chunk. Once a slice has been handed out, the chunk is never
+         * reused: when it fills up, a new one is allocated and any
+         * partial frame is moved across. A service which holds on to a
+         * small message therefore keeps the whole chunk alive.</p> */
+        private void decodeFrames() throws IOException {
+            int need = DMPMessage.HEADER_LENGTH;
+            while (recvBuf.position() - parsePos >= DMPMessage.HEADER_LENGTH) {
+                int port = recvBuf.getChar(parsePos);
+                int len = recvBuf.getChar(parsePos + 2);
+                int sum = recvBuf.getChar(parsePos + 4);
+
+                need = DMPMessage.HEADER_LENGTH + len;
+                if (recvBuf.position() - parsePos < need) break;
+
+                ByteBuffer payload = recvBuf.duplicate();
+                payload.limit(parsePos + need);
+                payload.position(parsePos + DMPMessage.HEADER_LENGTH);
+                parsePos += need;
+                need = DMPMessage.HEADER_LENGTH;
+                sliced = true;
+
+                DMPMessage msg;
+                try {
+                    msg = new ByteBufferDMPMessage(port, payload);
+                    msg.setReceivedChecksum(sum);
+                } catch (IllegalArgumentException e) {
+                    disconnect();
+                    throw new IOException("Malformed DMP frame: " + e.getMessage());
+                }
+
+                DMPMessageListener d = dispatcher;
+                if (d == null) continue;
+                try {
+                    d.recvDMPMessage(this, msg);
+                } catch (RuntimeException e) {
+                    /* Don't let one bad message stop the selector */
+                    System.err.println("NIO delivery failed: " + e);
+                }
+            }
+
+            if (!sliced && (parsePos == recvBuf.position())) {
+                /* Nothing pending and nothing referenced: rewind */
+                recvBuf.clear();
+                parsePos = 0;
+            } else if (recvBuf.capacity() - parsePos < need) {
+                /* The pending frame won't fit in the rest of the
+                 * chunk */
+                relocate(Math.max(RECV_BUFFER_SIZE, need));
+            }
+        }
+
+        /** Move undecoded data to the start of a receive chunk of the
+         * given size, allocating a new chunk if the current one has
+         * slices handed out or is the wrong size. */
+        private void relocate(int size) {
+            recvBuf.limit(recvBuf.position());
+            recvBuf.position(parsePos);
+            if (!sliced && (recvBuf.capacity() == size)) {
+                recvBuf.compact();
+            } else {
+                ByteBuffer chunk = ByteBuffer.allocate(size);
+                chunk.put(recvBuf);
+                recvBuf = chunk;
+            }
+            parsePos = 0;
+            sliced = false;
+        }
+
+        /** Called on the selector thread when the channel is
+         * writable. */
+        void handleWrite() throws IOException {
+            synchronized (this) {
+                flushSendQueue();
+            }
+            updateInterest();
+        }
+
+        /** Write as much of the send queue as the channel will
+         * accept without blocking. Must hold the lock. */
+        private void flushSendQueue() throws IOException {
+            while (!sendQueue.isEmpty()) {
+                ByteBuffer[] bufs = sendQueue.toArray(new ByteBuffer[sendQueue.size()]);
+                long n = channel.write(bufs);
+                pendingBytes -= (int) n;
+                while (!sendQueue.isEmpty() && !sendQueue.peek().hasRemaining()) {
+                    ByteBuffer done = sendQueue.poll();
+                    if (!queuedMessages.isEmpty()) {
+                        DMPMessage msg = queuedMessages.remove(done);
+                        if (msg != null) msg.release();
+                    }
+                }
+                if (n == 0) break;
+            }
+            notifyAll();
+        }
+
+        /** Add buffers to the send queue, blocking if too much data
+         * is already waiting. A selector thread may be the only thread
+         * able to drain the queue, so it never blocks, and may take
+         * the queue over its limit. Tries to write immediately if
+         * nothing else is queued.
+         *
+         * @param bufs  Buffers to send.
+         * @param owner Message whose payload is in the last buffer,
+         *              which is retained until it has been written, or
+         *              null. */
+        void queueSend(ByteBuffer[] bufs, DMPMessage owner) throws IOException {
+            boolean needWrite;
+            boolean mayWait = (onSelectorThread.get() == null);
+            synchronized (this) {
+                while (mayWait && (pendingBytes > MAX_PENDING_BYTES) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting to send");
+                    }
+                }
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+
+                boolean wasEmpty = sendQueue.isEmpty();
+                for (int i = 0; i < bufs.length; i++) {
+                    sendQueue.add(bufs[i]);
+                    pendingBytes += bufs[i].remaining();
+                }
+                if (owner != null) {
+                    queuedMessages.put(bufs[bufs.length - 1], owner.retain());
+                }
+                if (wasEmpty && (key != null)) {
+                    flushSendQueue();
+                }
+                needWrite = !sendQueue.isEmpty();
+            }
+            if (needWrite) updateInterest();
+        }
+
+        /** Select for writability only while data is queued. */
+        private void updateInterest() {
+            SelectionKey k = key;
+            if ((k == null) || !k.isValid()) return;
+
+            int ops = SelectionKey.OP_READ;
+            synchronized (this) {
+                if (!sendQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                if (k.interestOps() != ops) {
+                    k.interestOps(ops);
+                    k.selector().wakeup();
+                }
+            } catch (java.nio.channels.CancelledKeyException e) {
+                /* Connection closed concurrently */
+            }
+        }
+
+        public void startDispatch(DMPMessageListener dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        public void stopDispatch() {
+            dispatcher = null;
+        }
+
+        /** Queue a message for transmission. The payload is not
+         * copied, but the message is retained until it has been
+         * written, so pooled messages may be sent directly. Header and
+         * payload are sent with a single gathering write where
+         * possible. */
+        public void sendDMPMessage(DMPMessage msg, boolean withChecksum)
+            throws IOException {
+            queueSend(ByteBufferDMPMessage.getFrameBuffers(msg, withChecksum),
+                      msg);
+        }
+
+        public InputStream getInputStream()
+            throws IOException {
+
+            throw new IOException("Input is dispatched by the selector");
+        }
+
+        public OutputStream getOutputStream()
+            throws IOException {
+
+            return outStream;
+        }
+
+        public void disconnect() throws IOException {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                /* Nothing more will be written */
+                for (DMPMessage msg : queuedMessages.values()) {
+                    msg.release();
+                }
+                queuedMessages.clear();
+                notifyAll();
+            }
+
+            /* Unregister with SystemBus */
+            if (remoteAddress != null) {
+                bus.removeConnection(this);
+            }
+
+            if (key != null) key.cancel();
+            channel.close();
+        }
+
+        public boolean isConnected() {
+            return channel.isConnected() && !closed;
+        }
+
+        public InterfaceAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        public InterfaceAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+    }
+
+    /* ************************************************** */
+
+    /** Runs a selector, servicing the channels registered with it. */
+    private class SelectorLoop implements Runnable {
+        private Selector selector;
+        private ConcurrentLinkedQueue<Runnable> tasks;
+        private Thread thread;
+
+        SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            tasks = new ConcurrentLinkedQueue<Runnable>();
+            thread = new Thread(this, "NioTCPIP-" + index);
+            /* Don't let selector threads keep the program running. */
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Run a task on the selector thread. */
+        void invoke(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /** Register a connection's channel with this selector. */
+        void register(final NioConnection conn) {
+            invoke(new Runnable() {
+                    public void run() {
+                        try {
+                            SelectionKey key =
+                                conn.channel.register(selector,
+                                                      SelectionKey.OP_READ,
+                                                      conn);
+                            conn.registered(key);
+                        } catch (IOException e) {
+                            closeQuietly(conn);
+                        }
+                    }
+                });
+        }
+
+        public void run() {
+            onSelectorThread.set(Boolean.TRUE);
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("NIO selector error: " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("NIO selector task failed: " + e);
+                    }
+                }
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.handleRead();
+                        if (key.isValid() && key.isWritable()) conn.handleWrite();
+                    } catch (IOException e) {
+                        closeQuietly(conn);
+                    } catch (RuntimeException e) {
+                        /* Only this connection's state is suspect */
+                        System.err.println("NIO connection failed: " + e);
+                        closeQuietly(conn);
+                    }
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel server) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                System.err.println("TCP/IP server error: " + e.getMessage());
+                return;
+            }
+            if (client == null) return;
+
+            try {
+                NioConnection conn =
+                    NioTCPIPConnectionManager.this.new NioConnection(getSystemBus(),
+                                                                     client,
+                                                                     getLocalAddress());
+                nextLoop().register(conn);
+            } catch (IOException e) {
+                try {
+                    client.close();
+                } catch (IOException f) { }
+            }
+        }
+    }
+
+    private static void closeQuietly(NioConnection conn) {
+        try {
+            conn.disconnect();
+        } catch (IOException e) { }
+    }
+
+    /* ************************************************** */
+
+    private int selectorThreads;
+    private SelectorLoop[] loops;
+    private int nextLoopIndex;
+    private ServerSocketChannel serverChannel;
+    private SystemBus bus;
+
+    /** <p>Set the bus which incoming connections are added to.</p>
+     *
+     * <p>Calling this method has no effect on existing connections.</p>
+     *
+     * @param bus Bus for incoming connections.
+     */
+    public synchronized void setSystemBus(SystemBus bus) {
+        if (bus == null) throw new NullPointerException();
+        this.bus = bus;
+    }
+
+    /** Get the bus which incoming connections are added to.
+     *
+     * @return the bus for incoming connections.
+     */
+    public synchronized SystemBus getSystemBus() {
+        if (bus == null) bus = SystemBus.getSystemBus();
+        return bus;
+    }
+
+    /** <p>Set the number of selector threads. Connections are spread
+     * across the selector threads in turn.</p>
+     *
+     * <p>This must be called before any connections are made or
+     * listening is enabled; after that it has no effect.</p>
+     *
+     * @param n Number of selector threads to use.
+     */
+    public synchronized void setSelectorThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Need at least one selector thread");
+        selectorThreads = n;
+    }
+
+    /** Get the number of selector threads.
+     *
+     * @return the number of threads used to service connections.
+     */
+    public synchronized int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /** Get the selector thread to use for the next connection,
+     * starting the selector threads if necessary. */
+    private synchronized SelectorLoop nextLoop() throws IOException {
+        if (loops == null) {
+            SelectorLoop[] l = new SelectorLoop[selectorThreads];
+            for (int i = 0; i < l.length; i++) {
+                l[i] = this.new SelectorLoop(i);
+            }
+            loops = l;
+        }
+        SelectorLoop result = loops[nextLoopIndex];
+        nextLoopIndex = (nextLoopIndex + 1) % loops.length;
+        return result;
+    }
+
+    /** <p>Set the default TCP port. The
+     * <code>NioTCPIPConnectionManager</code> will listen on this
+     * port, and it will be used as the default port when connecting
+     * to remote hosts.</p>
+     *
+     * <p>Calling this method has no effect on existing connections.</p>
+     *
+     * @param port New default TCP port.
+     *
+     * @see #setListenEnabled(boolean)
+     * @see #connectHost(String)
+     */
+    public synchronized void setTCPPort(int port) {
+        if (tcp_port == port) return;
+        tcp_port = port;
+
+        /* If necessary, restart the server. */
+        if (isListenEnabled()) {
+            setListenEnabled(false);
+            setListenEnabled(true);
+        }
+    }
+
+    /** Get the default TCP port.
+     *
+     * @return the default TCP port for new TCP/IP tunnel connections.
+     */
+    public int getTCPPort() {
+        return tcp_port;
+    }
+
+    /** <p>Set whether connections are accepted from other devices.<p>
+     *
+     * <p>If <code>enabled</code> is <code>true</code>, accept
+     * incoming connections on the current default TCP port. The
+     * listening socket is serviced by one of the selector
+     * threads.</p>
+     *
+     * @param enabled If <code>true</code>, listen for incoming
+     *                connections.
+     *
+     * @see #setTCPPort(int)
+     */
+    public synchronized void setListenEnabled(boolean enabled) {
+
+        if (isListenEnabled() && !enabled) {
+            try {
+                /* Closing the channel also cancels its key */
+                serverChannel.close();
+            } catch (IOException e) { }
+            serverChannel = null;
+        } else if (!isListenEnabled() && enabled) {
+            try {
+                final ServerSocketChannel server = ServerSocketChannel.open();
+                server.socket().setReuseAddress(true);
+                server.socket().bind(new InetSocketAddress(tcp_port));
+                server.configureBlocking(false);
+
+                final SelectorLoop loop = nextLoop();
+                loop.invoke(new Runnable() {
+                        public void run() {
+                            try {
+                                server.register(loop.selector,
+                                                SelectionKey.OP_ACCEPT);
+                            } catch (ClosedChannelException e) {
+                                /* Listening was disabled again */
+                            }
+                        }
+                    });
+                serverChannel = server;
+            } catch (IOException e) {
+                System.err.println("TCP/IP server error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** <p>Test whether connections are accepted from other devices.</p>
+     *
+     * @return <code>true</code> if listening for incoming connections.
+     */
+    public synchronized boolean isListenEnabled() {
+        return (serverChannel != null) && serverChannel.isOpen();
+    }
+
+    /* ************************************************** */
+
+    /** Get the local interface address. This is the same address as
+     * is used by the <code>TCPIPConnectionManager</code>.
+     *
+     * @return the interface address used by TCP/IP
+     * <code>BusConnection</code>s created by this connection manager.
+     *
+     * @see BusConnection#getLocalAddress()
+     * @see TCPIPConnectionManager#getLocalAddress()
+     */
+    public InterfaceAddress getLocalAddress() {
+        return TCPIPConnectionManager.getConnectionManager().getLocalAddress();
+    }
+
+    /** Create a new <code>NioTCPIPConnectionManager</code>. Do not
+     * call this directly: use <code>getConnectionManager()</code>.
+     *
+     * @see #getConnectionManager()
+     */
+    protected NioTCPIPConnectionManager() {
+        selectorThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        loops = null;
+        nextLoopIndex = 0;
+        serverChannel = null;
+        bus = null;
+    }
+
+    /** The singleton instance of the connection manager. */
+    private static NioTCPIPConnectionManager instance = null;
+
+    /** Get the non-blocking TCP/IP connection manager
+     *
+     * @return the global <code>NioTCPIPConnectionManager</code>.
+     */
+    public static synchronized NioTCPIPConnectionManager getConnectionManager() {
+        if (instance == null) {
+            instance = new NioTCPIPConnectionManager();
+        }
+        return instance;
+    }
+}
@@ -30,6 +30,8 @@ import java.nio.charset.Charset;
  */
 class BundleStringCodec {
 
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
     /** <p>Decode a nul-terminated string.</p>
      *
      * @param buf       Buffer from which to decode string.
@@ -53,8 +55,37 @@ class BundleStringCodec {
      * @param length Length of string.
      */
     public static String fromBytes(byte[] buf, int offset, int length) {
-        return new String(buf, offset, length,
-                          Charset.forName("US-ASCII"));
+        return new String(buf, offset, length, ASCII);
+    }
+
+    /** <p>Decode an endpoint from its scheme and scheme-specific
+     * part, without building either as a separate string.</p>
+     *
+     * @param buf          Buffer from which to decode endpoint.
+     * @param schemeOffset Offset of scheme within <code>buf</code>.
+     * @param schemeLength Length of scheme.
+     * @param sspOffset    Offset of scheme-specific part within
+     *                     <code>buf</code>.
+     * @param sspLength    Length of scheme-specific part.
+     */
+    public static String fromEndpointBytes(byte[] buf,
+                                           int schemeOffset, int schemeLength,
+                                           int sspOffset, int sspLength) {
+        char[] c = new char[schemeLength + 1 + sspLength];
+        decode(buf, schemeOffset, c, 0, schemeLength);
+        c[schemeLength] = ':';
+        decode(buf, sspOffset, c, schemeLength + 1, sspLength);
+        return new String(c);
+    }
+
+    /* Decodes in the same way as the US-ASCII charset, which replaces
+     * octets above 127 with U+FFFD. */
+    private static void decode(byte[] buf, int offset,
+                               char[] c, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = buf[offset+i];
+            c[start+i] = ((b & 128) != 0) ? '\ufffd' : (char) b;
+        }
     }
 
     /** <p>Encode a string into a buffer.</p>
@@ -64,6 +95,6 @@ class BundleStringCodec {
      * @return A byte array containing the encoded string.
      */
     public static byte[] toBytes(String str) {
-        return str.getBytes(Charset.forName("US-ASCII"));
+        return str.getBytes(ASCII);
     }
 }
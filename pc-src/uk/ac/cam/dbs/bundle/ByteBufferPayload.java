@@ -0,0 +1,103 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** <p>A bundle payload held in a <code>ByteBuffer</code>.</p>
+ *
+ * <p>The buffer is not copied: it may be a direct buffer, a mapped
+ * file, or a slice of a larger buffer. Its contents must not be
+ * changed after the payload has been created.</p>
+ */
+public class ByteBufferPayload extends BundlePayload {
+
+    /** Payload, with position 0 and limit equal to its length. */
+    private final ByteBuffer buffer;
+    private final int length;
+
+    /** Create a new <code>ByteBufferPayload</code>. The payload is
+     * the data between the position and limit of
+     * <code>data</code>.
+     *
+     * @param data Buffer holding the payload.
+     */
+    public ByteBufferPayload(ByteBuffer data) {
+        buffer = data.slice();
+        length = buffer.remaining();
+    }
+
+    /** Get a read-only view of the payload. Each call returns a new
+     * view, with its position at the start of the payload.
+     *
+     * @return the payload data.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /** {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /** {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param buf    {@inheritDoc}
+     * @param off    {@inheritDoc}
+     * @param len    {@inheritDoc}
+     */
+    public void read(int offset, byte[] buf, int off, int len) {
+        checkRange(offset, len, length);
+        ByteBuffer d = buffer.duplicate();
+        d.position(offset);
+        d.get(buf, off, len);
+    }
+
+    /** {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param len    {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public BundlePayload slice(int offset, int len) {
+        checkRange(offset, len, length);
+        ByteBuffer d = buffer.duplicate();
+        d.position(offset);
+        d.limit(offset + len);
+        return new ByteBufferPayload(d);
+    }
+
+    /** {@inheritDoc}
+     * @param out {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), length);
+        } else {
+            super.writeTo(out);
+        }
+    }
+}
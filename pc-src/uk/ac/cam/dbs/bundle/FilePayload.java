@@ -0,0 +1,147 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** <p>A bundle payload read from a region of a file.</p>
+ *
+ * <p>The file is read as the payload is needed, so a large file can
+ * be sent as a bundle, a fragment at a time, without being read into
+ * memory. The file must not change while the payload is in use.
+ * Reads use absolute positions, so a channel may be shared by several
+ * payloads and threads.</p>
+ */
+public class FilePayload extends BundlePayload {
+
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+
+    /** Create a payload from a region of a file.
+     *
+     * @param channel  Channel to read the file from.
+     * @param position Position of the payload within the file.
+     * @param length   Length of the payload.
+     */
+    public FilePayload(FileChannel channel, long position, int length) {
+        if ((position < 0) || (length < 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    /** Create a payload from the whole of a file. The file is opened
+     * for reading, and stays open until <code>close()</code> is
+     * called.
+     *
+     * @param file File to read.
+     *
+     * @throws IOException if the file could not be opened.
+     */
+    public FilePayload(File file) throws IOException {
+        this(openChannel(file), 0, fileLength(file));
+    }
+
+    private static FileChannel openChannel(File file) throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    private static int fileLength(File file) {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File too large: " + file);
+        }
+        return (int) length;
+    }
+
+    /** Close the file the payload is read from. It must not be used
+     * afterwards.
+     *
+     * @throws IOException if the file could not be closed.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /** {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param buf    {@inheritDoc}
+     * @param off    {@inheritDoc}
+     * @param len    {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     */
+    public void read(int offset, byte[] buf, int off, int len)
+        throws IOException {
+        checkRange(offset, len, length);
+        ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+        long pos = position + offset;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) throw new EOFException("File shorter than payload");
+            pos += n;
+        }
+    }
+
+    /** {@inheritDoc}
+     * @param offset {@inheritDoc}
+     * @param len    {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public BundlePayload slice(int offset, int len) {
+        checkRange(offset, len, length);
+        return new FilePayload(channel, position + offset, len);
+    }
+
+    /** Write the payload to a stream. The file is transferred
+     * directly to the stream, where the platform allows it.
+     *
+     * @param out {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long pos = position;
+        long end = position + length;
+        while (pos < end) {
+            long n = channel.transferTo(pos, end - pos, target);
+            if (n <= 0) throw new EOFException("File shorter than payload");
+            pos += n;
+        }
+    }
+}
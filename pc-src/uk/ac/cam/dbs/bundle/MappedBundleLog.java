@@ -0,0 +1,495 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/** <p>Bundle log kept in memory-mapped files.</p>
+ *
+ * <p>The log is a directory of segment files, each of a fixed size
+ * and mapped into memory. Bundles are only ever appended, to the
+ * newest segment, and a new segment is started when it is full. A
+ * removed bundle is marked as deleted in place. A segment is deleted
+ * once none of its bundles are left, and once fewer than a quarter
+ * of its bytes belong to bundles which haven't been removed, those
+ * bundles are copied to the newest segment so that it can be
+ * deleted.</p>
+ *
+ * <p>Each record holds the bundle's identifier, the fields which
+ * identify the bundle, the encoded bundle and a checksum. When the
+ * log is opened the records are scanned to rebuild the index, without
+ * decoding any bundles. The scan of a segment stops at the first
+ * record which is incomplete or fails its checksum, which may happen
+ * if the system stopped while it was being written.</p>
+ *
+ * <p>By default, changes are left for the operating system to write
+ * to disk, so they survive the process stopping but not necessarily
+ * the system losing power. <code>setForceWrites()</code> makes each
+ * change be written to disk before the method making it returns, at
+ * some cost in speed.</p>
+ */
+public class MappedBundleLog implements BundleLog {
+
+    /** Default segment file size, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final String SEGMENT_PREFIX = "bundles-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /* Record layout:
+     *
+     *  32 bits: record length, or 0 at the end of the segment
+     *  32 bits: CRC-32 of the rest of the record from the identifier
+     *   8 bits: state (live or deleted)
+     *  64 bits: identifier
+     *  64 bits: creation timestamp
+     *  64 bits: creation sequence number
+     *  64 bits: fragment offset, or -1 if not a fragment
+     *  64 bits: fragment length, or -1 if not a fragment
+     *  16 bits: length of source endpoint
+     *  source endpoint, UTF-8
+     *  encoded bundle
+     */
+    private static final int OFS_CRC = 4;
+    private static final int OFS_STATE = 8;
+    private static final int OFS_ID = 9;
+    private static final int HEADER_LENGTH = 51;
+
+    private static final byte STATE_DELETED = 0;
+    private static final byte STATE_LIVE = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int segmentSize;
+    private volatile boolean forceWrites;
+
+    /** Segments, by number. */
+    private TreeMap<Long, Segment> segments;
+    /** Segment new records are appended to. */
+    private Segment active;
+    /** Location of each live record, by identifier. */
+    private TreeMap<Long, Location> byId;
+    /** Identifier of each live record, by identifying fields. */
+    private Map<BundleId, Long> byKey;
+    private long nextId;
+
+    /** Open a log in a directory, with the default segment size.
+     *
+     * @param directory Directory holding the segment files. It is
+     *                  created if it doesn't exist.
+     *
+     * @throws IOException if the log could not be opened.
+     */
+    public MappedBundleLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Open a log in a directory.
+     *
+     * @param directory   Directory holding the segment files. It is
+     *                    created if it doesn't exist.
+     * @param segmentSize Size of new segment files, in bytes. This
+     *                    limits the size of bundle which can be
+     *                    logged.
+     *
+     * @throws IOException if the log could not be opened.
+     */
+    public MappedBundleLog(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        forceWrites = false;
+        segments = new TreeMap<Long, Segment>();
+        byId = new TreeMap<Long, Location>();
+        byKey = new HashMap<BundleId, Long>();
+        nextId = 0;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        recover();
+    }
+
+    /** <p>Set whether each change is written to disk before
+     * returning.</p>
+     *
+     * @param force <code>true</code> to write changes to disk
+     *              immediately.
+     */
+    public void setForceWrites(boolean force) {
+        forceWrites = force;
+    }
+
+    /** <p>Test whether each change is written to disk before
+     * returning.</p>
+     *
+     * @return <code>true</code> if changes are written to disk
+     *         immediately.
+     */
+    public boolean isForceWrites() {
+        return forceWrites;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long append(Bundle b, byte[] bytes) throws IOException {
+        checkOpen();
+        BundleId key = new BundleId(b);
+        byte[] source = key.source.getBytes(UTF8);
+        int length = HEADER_LENGTH + source.length + bytes.length;
+        if ((source.length > 0xffff) || (length > segmentSize)) {
+            throw new IOException("Bundle too large to log");
+        }
+
+        long id = nextId++;
+        byte[] record = new byte[length];
+        ByteBuffer r = ByteBuffer.wrap(record);
+        r.position(OFS_STATE);
+        r.put(STATE_LIVE);
+        r.putLong(id);
+        r.putLong(key.timestamp);
+        r.putLong(key.seq);
+        r.putLong(key.fragmentOffset);
+        r.putLong(key.fragmentLength);
+        r.putShort((short) source.length);
+        r.put(source);
+        r.put(bytes);
+        r.putInt(0, length);
+        r.putInt(OFS_CRC, checksum(r, 0, length));
+
+        Location loc = place(record);
+        loc.key = key;
+        loc.dataOffset = HEADER_LENGTH + source.length;
+        byId.put(id, loc);
+        byKey.put(key, id);
+        if (forceWrites) loc.segment.buf.force();
+        return id;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void remove(long id) throws IOException {
+        checkOpen();
+        Location loc = byId.remove(id);
+        if (loc == null) return;
+        Long keyed = byKey.get(loc.key);
+        if ((keyed != null) && (keyed.longValue() == id)) {
+            byKey.remove(loc.key);
+        }
+
+        Segment seg = loc.segment;
+        seg.buf.put(loc.offset + OFS_STATE, STATE_DELETED);
+        seg.liveBytes -= loc.length;
+        seg.liveCount--;
+        if (forceWrites) seg.buf.force();
+
+        if (seg != active) {
+            if (seg.liveCount == 0) {
+                dropSegment(seg);
+            } else if (seg.liveBytes * 4 < seg.end) {
+                compact(seg);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized byte[] read(long id) throws IOException {
+        checkOpen();
+        Location loc = byId.get(id);
+        if (loc == null) return null;
+        byte[] bytes = new byte[loc.length - loc.dataOffset];
+        ByteBuffer d = loc.segment.buf.duplicate();
+        d.position(loc.offset + loc.dataOffset);
+        d.get(bytes);
+        return bytes;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long[] getIds() {
+        long[] ids = new long[byId.size()];
+        int i = 0;
+        for (Long id : byId.keySet()) ids[i++] = id.longValue();
+        return ids;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean contains(Bundle b) {
+        return byKey.containsKey(new BundleId(b));
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void close() throws IOException {
+        if (segments == null) return;
+        IOException error = null;
+        for (Segment seg : segments.values()) {
+            try {
+                seg.buf.force();
+                seg.channel.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        segments = null;
+        active = null;
+        byId.clear();
+        byKey.clear();
+        if (error != null) throw error;
+    }
+
+    /** Get the number of segment files in use.
+     *
+     * @return the number of segments.
+     */
+    public synchronized int getSegmentCount() {
+        return (segments != null) ? segments.size() : 0;
+    }
+
+    /* Opens the existing segments and rebuilds the index from them. */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) throw new IOException("Could not list " + directory);
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long number;
+            try {
+                number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                       name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            segments.put(number, openSegment(number, files[i], 0));
+        }
+
+        for (Segment seg : segments.values()) {
+            scan(seg);
+            active = seg;
+        }
+
+        /* Delete segments which no longer hold anything, apart from
+         * the newest, which new records will be appended to. */
+        Iterator<Segment> iter = segments.values().iterator();
+        while (iter.hasNext()) {
+            Segment seg = iter.next();
+            if ((seg != active) && (seg.liveCount == 0)) {
+                iter.remove();
+                seg.channel.close();
+                seg.file.delete();
+            }
+        }
+    }
+
+    /* Reads the records in a segment into the index. A record copied
+     * by compaction may appear in two segments if the system stopped
+     * before the old segment was deleted. The copy in the later
+     * segment is used, even if it has been deleted since, and the
+     * earlier copy is marked as deleted. */
+    private void scan(Segment seg) {
+        MappedByteBuffer buf = seg.buf;
+        int capacity = buf.capacity();
+        int ofs = 0;
+        while (ofs + HEADER_LENGTH <= capacity) {
+            int length = buf.getInt(ofs);
+            if ((length < HEADER_LENGTH) || (length > capacity - ofs)) break;
+            if (buf.getInt(ofs + OFS_CRC) != checksum(buf, ofs, length)) break;
+
+            long id = buf.getLong(ofs + OFS_ID);
+            if (id >= nextId) nextId = id + 1;
+            Location old = byId.remove(id);
+            if (old != null) {
+                old.segment.buf.put(old.offset + OFS_STATE, STATE_DELETED);
+                old.segment.liveBytes -= old.length;
+                old.segment.liveCount--;
+                Long keyed = byKey.get(old.key);
+                if ((keyed != null) && (keyed.longValue() == id)) {
+                    byKey.remove(old.key);
+                }
+            }
+            if (buf.get(ofs + OFS_STATE) == STATE_LIVE) {
+                int sourceLength = buf.getShort(ofs + HEADER_LENGTH - 2) & 0xffff;
+                byte[] source = new byte[sourceLength];
+                ByteBuffer d = buf.duplicate();
+                d.position(ofs + HEADER_LENGTH);
+                d.get(source);
+
+                Location loc = new Location();
+                loc.segment = seg;
+                loc.offset = ofs;
+                loc.length = length;
+                loc.dataOffset = HEADER_LENGTH + sourceLength;
+                loc.key = new BundleId(new String(source, UTF8),
+                                  buf.getLong(ofs + OFS_ID + 8),
+                                  buf.getLong(ofs + OFS_ID + 16),
+                                  buf.getLong(ofs + OFS_ID + 24),
+                                  buf.getLong(ofs + OFS_ID + 32));
+
+                byId.put(id, loc);
+                byKey.put(loc.key, id);
+                seg.liveBytes += length;
+                seg.liveCount++;
+            }
+            ofs += length;
+        }
+        seg.end = ofs;
+    }
+
+    /* Writes a record to the end of the active segment, starting a
+     * new segment if it doesn't fit. The length is written last, and
+     * the record is followed by an end marker, so that a partly
+     * written record is never read. */
+    private Location place(byte[] record) throws IOException {
+        int length = record.length;
+        if ((active == null) || (active.end + length > active.buf.capacity())) {
+            Segment full = active;
+            long number = (full == null) ? 0 : full.number + 1;
+            File file = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+            active = openSegment(number, file, segmentSize);
+            segments.put(number, active);
+            if ((full != null) && (full.liveCount == 0)) dropSegment(full);
+        }
+
+        Segment seg = active;
+        int ofs = seg.end;
+        ByteBuffer d = seg.buf.duplicate();
+        d.position(ofs + 4);
+        d.put(record, 4, length - 4);
+        if (ofs + length + 4 <= seg.buf.capacity()) {
+            seg.buf.putInt(ofs + length, 0);
+        }
+        seg.buf.putInt(ofs, length);
+        seg.end = ofs + length;
+        seg.liveBytes += length;
+        seg.liveCount++;
+
+        Location loc = new Location();
+        loc.segment = seg;
+        loc.offset = ofs;
+        loc.length = length;
+        return loc;
+    }
+
+    /* Copies the live records in a segment to the active segment,
+     * and deletes it. */
+    private void compact(Segment seg) throws IOException {
+        List<Location> moving = new ArrayList<Location>();
+        for (Location loc : byId.values()) {
+            if (loc.segment == seg) moving.add(loc);
+        }
+        for (Location loc : moving) {
+            byte[] record = new byte[loc.length];
+            ByteBuffer d = seg.buf.duplicate();
+            d.position(loc.offset);
+            d.get(record);
+            Location moved = place(record);
+            moved.key = loc.key;
+            moved.dataOffset = loc.dataOffset;
+            byId.put(ByteBuffer.wrap(record).getLong(OFS_ID), moved);
+        }
+        /* The copies must be on disk before the originals go. */
+        active.buf.force();
+        dropSegment(seg);
+    }
+
+    private void dropSegment(Segment seg) throws IOException {
+        segments.remove(seg.number);
+        seg.channel.close();
+        if (!seg.file.delete()) {
+            throw new IOException("Could not delete " + seg.file);
+        }
+    }
+
+    private static Segment openSegment(long number, File file, int size)
+        throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length < size) {
+                raf.setLength(size);
+                length = size;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Segment too large: " + file);
+            }
+            Segment seg = new Segment();
+            seg.number = number;
+            seg.file = file;
+            seg.channel = raf.getChannel();
+            seg.buf = seg.channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return seg;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /* Computes the checksum of a record, from its identifier to its
+     * end. */
+    private static int checksum(ByteBuffer buf, int ofs, int length) {
+        ByteBuffer d = buf.duplicate();
+        d.limit(ofs + length);
+        d.position(ofs + OFS_ID);
+        CRC32 crc = new CRC32();
+        crc.update(d);
+        return (int) crc.getValue();
+    }
+
+    private void checkOpen() throws IOException {
+        if (segments == null) throw new IOException("Bundle log closed");
+    }
+
+    private static class Segment {
+        long number;
+        File file;
+        FileChannel channel;
+        MappedByteBuffer buf;
+        /** Offset just past the last record. */
+        int end;
+        /** Bytes and number of records not yet removed. */
+        int liveBytes;
+        int liveCount;
+    }
+
+    private static class Location {
+        Segment segment;
+        int offset;
+        int length;
+        /** Offset of the encoded bundle within the record. */
+        int dataOffset;
+        BundleId key;
+    }
+}
@@ -16,6 +16,9 @@ public class GenericDBSNode {
 
     public GenericDBSNode() {
         bundleDaemon = new BundleAgent();
+        /* The defaults suit the NXT, so allow for larger bundles */
+        bundleDaemon.setStorageCapacity(256 * 1024);
+        bundleDaemon.setReassemblyCapacity(1024 * 1024);
         sfrpDaemon = new SimplifiedFloodRouting();
         clockDaemon = new ClockSync();
 
@@ -43,6 +43,10 @@ public class DBSChat extends JFrame {
                 public void run() {
                     SimplifiedFloodRouting routing = new SimplifiedFloodRouting();
                     BundleAgent agent = new BundleAgent();
+                    /* The defaults suit the NXT, so allow for larger
+                     * bundles */
+                    agent.setStorageCapacity(256 * 1024);
+                    agent.setReassemblyCapacity(1024 * 1024);
                     agent.setRoutingProvider(routing);
 
                     try {
@@ -0,0 +1,617 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.tools;
+
+import uk.ac.cam.dbs.*;
+import uk.ac.cam.dbs.bundle.*;
+import uk.ac.cam.dbs.sfrp.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import gnu.getopt.Getopt;
+
+import static uk.ac.cam.dbs.util.ByteBufferHelper.numFromBytes;
+import static uk.ac.cam.dbs.util.ByteBufferHelper.numToBytes;
+
+/** <p>Simulates a mesh of distributed bus nodes in a single
+ * process.</p>
+ *
+ * <p>Each simulated node has its own <code>SystemBus</code>, running
+ * SFRP and a bundle agent. Nodes are linked with
+ * <code>LoopbackConnection</code>s in a line, a square grid or a
+ * random graph. Some of the links can be made slow, to simulate a
+ * mixture of TCP and Bluetooth links. The simulation measures how
+ * long SFRP takes until every node has a route to every other node,
+ * the rate at which bundles can be delivered between pairs of nodes
+ * and their delivery latency, the SFRP traffic once the network is
+ * idle, and how long it takes to find a new route after a link on the
+ * route fails.</p>
+ *
+ * <p>SFRP can be given link costs calculated from each link's
+ * simulated latency, bandwidth and loss rate, standing in for the
+ * costs <code>ClockSync</code> would measure.</p>
+ *
+ * @see LoopbackConnection
+ */
+public class MeshSimulation {
+
+    private static final String ENDPOINT_SERVICE = "sim";
+
+    private int nodeCount = 100;
+    private String topology = "grid";
+    private int degree = 3;
+    private long latency = 1000;
+    private long bandwidth = 0;
+    private double lossRate = 0;
+    private int bundleCount = 1000;
+    private int payloadSize = 64;
+    private int bundleRate = 100;
+    private int flowCount = 1;
+    private int timeout = 120;
+    private long seed = 1;
+    private int relayJitter = -1;
+    private int suppressionThreshold = 0;
+    private boolean adaptiveHello = false;
+    private int maxPaths = -1;
+    private int idleTime = 10;
+    private double slowFraction = 0;
+    private long slowLatency = 30000;
+    private long slowBandwidth = 20000;
+    private boolean linkCosts = false;
+    private int custodyTimeout = 0;
+
+    private Node[] nodes;
+    private HashMap<InterfaceAddress, Node> nodesByAddress;
+    private ArrayList<LoopbackConnection> links;
+    private Random random;
+
+    /** A simulated node. */
+    private static class Node {
+        SystemBus bus;
+        InterfaceAddress address;
+        SimplifiedFloodRouting sfrp;
+        BundleAgent agent;
+        volatile int delivered;
+        long latencySum;
+        long latencyMax;
+
+        Node(int index) {
+            bus = new SystemBus();
+            address = new InterfaceAddress("fd00:0:0:0:0:0:"
+                                           + Integer.toHexString(index >>> 16) + ":"
+                                           + Integer.toHexString(index & 0xffff));
+            bus.setMainAddress(address);
+            sfrp = new SimplifiedFloodRouting(bus);
+            agent = new BundleAgent(bus);
+            /* The defaults suit the NXT, so allow for larger
+             * bundles */
+            agent.setStorageCapacity(256 * 1024);
+            agent.setReassemblyCapacity(1024 * 1024);
+            agent.setRoutingProvider(sfrp);
+            agent.registerEndpoint(endpoint(address), new EndpointEventListener() {
+                    public void deliverBundle(Bundle b) {
+                        /* The payload starts with the time it was sent */
+                        long latency = System.nanoTime()
+                            - numFromBytes(b.getPayload(), 0, 8);
+                        synchronized (Node.this) {
+                            latencySum += latency;
+                            if (latency > latencyMax) latencyMax = latency;
+                        }
+                        delivered++;
+                    }
+                });
+        }
+    }
+
+    /** Link costs derived from the simulated link parameters. The
+     * cost is the round-trip time of a 24-octet probe in milliseconds,
+     * plus one, scaled up by the loss rate in both directions, as
+     * <code>LinkQualityEstimator</code> would estimate it. */
+    private static class SimulatedLinkQuality implements LinkQualityProvider {
+        public int getLinkCost(BusConnection conn) {
+            if (!(conn instanceof LoopbackConnection)) return UNKNOWN_COST;
+            LoopbackConnection out = (LoopbackConnection) conn;
+            LoopbackConnection in = out.getPeer();
+            double rtt = (out.getLatency() + in.getLatency()) / 1000.0
+                + probeTime(out) + probeTime(in);
+            double delivery = (1 - out.getLossRate()) * (1 - in.getLossRate());
+            double cost = (rtt + 1) / Math.max(delivery, 1 / 16.0);
+            return (int) Math.min(cost, LinkQualityEstimator.MAX_COST);
+        }
+
+        private static double probeTime(LoopbackConnection c) {
+            long bw = c.getBandwidth();
+            return (bw > 0) ? 24 * 1000.0 / bw : 0;
+        }
+    }
+
+    private static String endpoint(InterfaceAddress addr) {
+        return "dtn://[" + addr.toString() + "]/" + ENDPOINT_SERVICE;
+    }
+
+    /** Create the nodes and the links between them. */
+    public void build() {
+        random = new Random(seed);
+        nodes = new Node[nodeCount];
+        nodesByAddress = new HashMap<InterfaceAddress, Node>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node(i);
+            nodesByAddress.put(nodes[i].address, nodes[i]);
+            nodes[i].sfrp.setAdaptiveHello(adaptiveHello);
+            if (maxPaths > 0) nodes[i].sfrp.setMaxPaths(maxPaths);
+            if (relayJitter >= 0) nodes[i].sfrp.setRelayJitter(relayJitter);
+            nodes[i].sfrp.setSuppressionThreshold(suppressionThreshold);
+            if (linkCosts) {
+                nodes[i].sfrp.setLinkQualityProvider(new SimulatedLinkQuality());
+            }
+            if (custodyTimeout > 0) nodes[i].agent.setCustodyTimeout(custodyTimeout);
+        }
+
+        links = new ArrayList<LoopbackConnection>();
+        if (topology.equals("line")) {
+            for (int i = 1; i < nodeCount; i++) link(i - 1, i);
+        } else if (topology.equals("grid")) {
+            int width = (int) Math.ceil(Math.sqrt(nodeCount));
+            for (int i = 0; i < nodeCount; i++) {
+                if ((i % width != 0)) link(i - 1, i);
+                if (i >= width) link(i - width, i);
+            }
+        } else if (topology.equals("random")) {
+            /* Start with a random spanning tree so that the graph is
+             * connected, then add edges until the mean degree is
+             * reached. */
+            for (int i = 1; i < nodeCount; i++) link(random.nextInt(i), i);
+            int extra = (nodeCount * degree) / 2 - (nodeCount - 1);
+            for (int k = 0; k < extra; k++) {
+                int a = random.nextInt(nodeCount);
+                int b = random.nextInt(nodeCount);
+                if ((a != b) && !linked(a, b)) link(a, b);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown topology: " + topology);
+        }
+    }
+
+    private boolean linked(int a, int b) {
+        for (LoopbackConnection c : links) {
+            if ((c.getLocalAddress().equals(nodes[a].address)
+                 && c.getRemoteAddress().equals(nodes[b].address))
+                || (c.getLocalAddress().equals(nodes[b].address)
+                    && c.getRemoteAddress().equals(nodes[a].address))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void link(int a, int b) {
+        LoopbackConnection[] ends =
+            LoopbackConnection.connect(nodes[a].bus, nodes[a].address,
+                                       nodes[b].bus, nodes[b].address);
+        boolean slow = (slowFraction > 0) && (random.nextDouble() < slowFraction);
+        for (LoopbackConnection c : ends) {
+            c.setLatency(slow ? slowLatency : latency);
+            c.setBandwidth(slow ? slowBandwidth : bandwidth);
+            c.setLossRate(lossRate);
+        }
+        links.add(ends[0]);
+    }
+
+    /** Start every node's daemons and wait until every node has a
+     * route to every other node.
+     *
+     * @return convergence time in milliseconds, or -1 on timeout.
+     */
+    public long converge() throws DMPBindException, InterruptedException {
+        long start = System.nanoTime();
+        for (Node n : nodes) {
+            n.sfrp.start();
+            n.agent.start();
+        }
+
+        long deadline = start + timeout * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            int minRoutes = Integer.MAX_VALUE;
+            for (Node n : nodes) {
+                int r = n.sfrp.getRouteSnapshot().size();
+                if (r < minRoutes) minRoutes = r;
+                if (minRoutes < nodeCount - 1) break;
+            }
+            if (minRoutes >= nodeCount - 1) {
+                return (System.nanoTime() - start) / 1000000;
+            }
+            Thread.sleep(50);
+        }
+        return -1;
+    }
+
+    /** Send bundles at a fixed rate over each flow, and wait for them
+     * to be delivered.
+     *
+     * @return number of bundles delivered.
+     */
+    public int measureThroughput() throws InterruptedException {
+        /* Flow 0 runs between the first and last nodes, which are the
+         * furthest apart in the line and grid topologies. */
+        Node[] src = new Node[flowCount];
+        Node[] dst = new Node[flowCount];
+        for (int f = 0; f < flowCount; f++) {
+            if (f == 0) {
+                src[f] = nodes[0];
+                dst[f] = nodes[nodeCount - 1];
+            } else {
+                int a = random.nextInt(nodeCount);
+                int b;
+                do {
+                    b = random.nextInt(nodeCount);
+                } while (b == a);
+                src[f] = nodes[a];
+                dst[f] = nodes[b];
+            }
+        }
+        for (Node n : nodes) {
+            synchronized (n) {
+                n.delivered = 0;
+                n.latencySum = 0;
+                n.latencyMax = 0;
+            }
+        }
+
+        byte[] payload = new byte[Math.max(payloadSize, 8)];
+        random.nextBytes(payload);
+        long interval = (bundleRate > 0) ? 1000000000L / bundleRate : 0;
+        int total = bundleCount * flowCount;
+
+        long start = System.nanoTime();
+        long next = start;
+        for (int i = 0; i < bundleCount; i++) {
+            for (int f = 0; f < flowCount; f++) {
+                Bundle b = new Bundle();
+                b.setSourceEndpoint(endpoint(src[f].address));
+                b.setDestEndpoint(endpoint(dst[f].address));
+                b.setLifetime(timeout);
+                if (custodyTimeout > 0) b.setFlags(Bundle.FLAG_CUSTODY);
+                byte[] p = (byte[]) payload.clone();
+                numToBytes(System.nanoTime(), p, 0, 8);
+                b.setPayload(p);
+                src[f].agent.sendBundle(b);
+            }
+            next += interval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            }
+        }
+        long sent = System.nanoTime();
+
+        /* Wait for deliveries to stop arriving */
+        long deadline = sent + timeout * 1000000000L;
+        int delivered = 0;
+        int lastDelivered = -1;
+        long lastChange = System.nanoTime();
+        long lastDelivery = lastChange;
+        while (System.nanoTime() < deadline) {
+            delivered = 0;
+            for (Node n : nodes) delivered += n.delivered;
+            long now = System.nanoTime();
+            if (delivered != lastDelivered) {
+                lastDelivered = delivered;
+                lastChange = now;
+                lastDelivery = now;
+            }
+            if ((delivered >= total) || (now - lastChange > 2000000000L)) break;
+            Thread.sleep(10);
+        }
+
+        double elapsed = (lastDelivery - start) / 1e9;
+        long latencySum = 0;
+        long latencyMax = 0;
+        for (Node n : nodes) {
+            synchronized (n) {
+                latencySum += n.latencySum;
+                latencyMax = Math.max(latencyMax, n.latencyMax);
+            }
+        }
+        System.out.println("Bundles sent:      " + total);
+        System.out.println("Bundles delivered: " + delivered
+                           + " (" + (100.0 * delivered / total) + "%)");
+        System.out.println("Send time:         " + ((sent - start) / 1000000) + " ms");
+        System.out.println("Throughput:        " + (delivered / elapsed) + " bundles/s, "
+                           + (delivered * (double) payloadSize / elapsed) + " payload octets/s");
+        if (delivered > 0) {
+            System.out.println("Delivery latency:  " + (latencySum / delivered / 1000)
+                               + " us mean, " + (latencyMax / 1000) + " us max");
+        }
+        return delivered;
+    }
+
+    /** Count the frames sent on all links so far. */
+    private long countFrames() {
+        long sent = 0;
+        for (LoopbackConnection c : links) {
+            sent += c.getSentFrameCount() + c.getPeer().getSentFrameCount();
+        }
+        return sent;
+    }
+
+    /** Measure the rate at which frames are sent while no bundles
+     * are being sent.
+     *
+     * @return frames per second.
+     */
+    public double measureIdleTraffic() throws InterruptedException {
+        long before = countFrames();
+        long start = System.nanoTime();
+        Thread.sleep(idleTime * 1000L);
+        double rate = (countFrames() - before) / ((System.nanoTime() - start) / 1e9);
+        System.out.println("Idle traffic:      " + rate + " frames/s");
+        return rate;
+    }
+
+    /** Follow SFRP next hops from one node towards another.
+     *
+     * @return the connections on the route, or <code>null</code> if
+     *         there is no complete loop-free route.
+     */
+    private ArrayList<BusConnection> route(Node from, Node to) {
+        ArrayList<BusConnection> path = new ArrayList<BusConnection>();
+        Node n = from;
+        while ((n != to) && (path.size() < nodeCount)) {
+            BusConnection c = n.sfrp.nextHop(to.address);
+            if (c == null) return null;
+            path.add(c);
+            n = nodesByAddress.get(c.getRemoteAddress());
+        }
+        return (n == to) ? path : null;
+    }
+
+    /** Disconnect the first link on the route between the first and
+     * last nodes, and wait until a new route is found.
+     *
+     * @return time to find a new route in milliseconds, or -1 on
+     *         timeout.
+     */
+    public long measureFailover() throws Exception {
+        Node from = nodes[0];
+        Node to = nodes[nodeCount - 1];
+        ArrayList<BusConnection> path = route(from, to);
+        if (path == null) {
+            System.out.println("Failover:          no initial route");
+            return -1;
+        }
+
+        long start = System.nanoTime();
+        path.get(0).disconnect();
+        long deadline = start + timeout * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            if (route(from, to) != null) {
+                long t = (System.nanoTime() - start) / 1000000;
+                System.out.println("Failover:          " + t + " ms");
+                return t;
+            }
+            Thread.sleep(5);
+        }
+        System.out.println("Failover:          no route after " + timeout + " s");
+        return -1;
+    }
+
+    /** Stop every node's daemons and disconnect all links. */
+    public void shutdown() {
+        for (Node n : nodes) {
+            n.agent.stop();
+            n.sfrp.stop();
+        }
+        for (LoopbackConnection c : links) {
+            try {
+                c.disconnect();
+            } catch (Exception e) {
+                /* Ignore */
+            }
+        }
+    }
+
+    private void report() {
+        long sent = countFrames();
+        long dropped = 0;
+        for (LoopbackConnection c : links) {
+            dropped += c.getDroppedFrameCount() + c.getPeer().getDroppedFrameCount();
+        }
+        long relays = 0, saved = 0;
+        for (Node n : nodes) {
+            relays += n.sfrp.getRelayCount();
+            saved += n.sfrp.getSuppressedRelayCount();
+        }
+        System.out.println("Frames sent:       " + sent);
+        System.out.println("Frames lost:       " + dropped);
+        System.out.println("SFRP relays sent:  " + relays
+                           + " (" + saved + " suppressed)");
+        if (custodyTimeout > 0) {
+            long resent = 0, signals = 0;
+            for (Node n : nodes) {
+                resent += n.agent.getCustodyRetransmissionCount();
+                signals += n.agent.getCustodySignalCount();
+            }
+            System.out.println("Custody resends:   " + resent);
+            System.out.println("Custody signals:   " + signals);
+        }
+        if (payloadSize > nodes[0].agent.getFragmentSize()) {
+            long abandoned = 0;
+            for (Node n : nodes) {
+                abandoned += n.agent.getAbandonedReassemblyCount();
+            }
+            System.out.println("Reassemblies lost: " + abandoned);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        MeshSimulation sim = new MeshSimulation();
+
+        Getopt g = new Getopt("meshsim", args, "hn:T:d:l:b:x:m:s:r:f:w:S:j:c:AI:k:M:L:B:QC:");
+        g.setOpterr(false); /* We'll print our own errors. */
+        int c;
+
+        try {
+            while ((c = g.getopt()) != -1) {
+                switch (c) {
+                case 'h':
+                    usage(0);
+                    break;
+                case 'n':
+                    sim.nodeCount = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'T':
+                    sim.topology = g.getOptarg();
+                    break;
+                case 'd':
+                    sim.degree = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'l':
+                    sim.latency = Long.parseLong(g.getOptarg());
+                    break;
+                case 'b':
+                    sim.bandwidth = Long.parseLong(g.getOptarg());
+                    break;
+                case 'x':
+                    sim.lossRate = Double.parseDouble(g.getOptarg());
+                    break;
+                case 'm':
+                    sim.bundleCount = Integer.parseInt(g.getOptarg());
+                    break;
+                case 's':
+                    sim.payloadSize = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'r':
+                    sim.bundleRate = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'f':
+                    sim.flowCount = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'w':
+                    sim.timeout = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'S':
+                    sim.seed = Long.parseLong(g.getOptarg());
+                    break;
+                case 'j':
+                    sim.relayJitter = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'c':
+                    sim.suppressionThreshold = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'A':
+                    sim.adaptiveHello = true;
+                    break;
+                case 'I':
+                    sim.idleTime = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'k':
+                    sim.maxPaths = Integer.parseInt(g.getOptarg());
+                    break;
+                case 'M':
+                    sim.slowFraction = Double.parseDouble(g.getOptarg());
+                    break;
+                case 'L':
+                    sim.slowLatency = Long.parseLong(g.getOptarg());
+                    break;
+                case 'B':
+                    sim.slowBandwidth = Long.parseLong(g.getOptarg());
+                    break;
+                case 'Q':
+                    sim.linkCosts = true;
+                    break;
+                case 'C':
+                    sim.custodyTimeout = Integer.parseInt(g.getOptarg());
+                    break;
+                case '?':
+                    System.err.println("Invalid option: " + (char) g.getOptopt());
+                    usage(1);
+                    break;
+                default:
+                    usage(1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Malformed number: " + e.getMessage());
+            usage(1);
+        }
+        if (sim.nodeCount < 2) {
+            System.err.println("At least two nodes are required.");
+            usage(1);
+        }
+
+        try {
+            sim.build();
+            System.out.println("Nodes:             " + sim.nodeCount
+                               + " (" + sim.topology + ", "
+                               + sim.links.size() + " links)");
+
+            long t = sim.converge();
+            if (t < 0) {
+                System.out.println("SFRP did not converge within "
+                                   + sim.timeout + " s");
+            } else {
+                System.out.println("SFRP convergence:  " + t + " ms");
+                sim.measureThroughput();
+                sim.measureIdleTraffic();
+                sim.measureFailover();
+            }
+            sim.report();
+            sim.shutdown();
+        } catch (Exception e) {
+            System.err.println("Simulation failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void usage(int exitstatus) {
+        System.out.println("Usage: \n"
+                           + "        MeshSimulation [options]\n\n"
+                           + "Options:\n"
+                           + "        -h        Display help\n"
+                           + "        -n count  Number of nodes (default 100)\n"
+                           + "        -T topo   Topology: line, grid or random (default grid)\n"
+                           + "        -d degree Mean node degree for random topology (default 3)\n"
+                           + "        -l usec   Link latency in microseconds (default 1000)\n"
+                           + "        -b rate   Link bandwidth in octets/s, 0 for unlimited\n"
+                           + "        -x rate   Link frame loss rate (default 0)\n"
+                           + "        -m count  Bundles to send per flow (default 1000)\n"
+                           + "        -s size   Bundle payload size (default 64)\n"
+                           + "        -r rate   Bundles per second per flow, 0 for unpaced\n"
+                           + "        -f count  Number of flows (default 1)\n"
+                           + "        -w secs   Timeout for each phase (default 120)\n"
+                           + "        -S seed   Random seed for topology and flows\n"
+                           + "        -j msec   SFRP relay jitter\n"
+                           + "        -c count  SFRP relay suppression threshold\n"
+                           + "        -A        Use adaptive SFRP HELLO intervals\n"
+                           + "        -I secs   Idle traffic measurement time (default 10)\n"
+                           + "        -k count  SFRP next hops per destination\n"
+                           + "        -M frac   Fraction of links which are slow (default 0)\n"
+                           + "        -L usec   Slow link latency (default 30000)\n"
+                           + "        -B rate   Slow link bandwidth in octets/s (default 20000)\n"
+                           + "        -Q        Give SFRP link costs from the link parameters\n"
+                           + "        -C msec   Request custody transfer, resending after msec");
+        System.exit(exitstatus);
+    }
+}
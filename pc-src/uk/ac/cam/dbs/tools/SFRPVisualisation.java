@@ -13,7 +13,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Vector;
 import javax.swing.BorderFactory;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
@@ -57,12 +56,9 @@ public class SFRPVisualisation extends JPanel {
         synchronized (knownHosts) {
             routing.addRouteChangeListener(this.new ChangeHandler());
 
-            Vector<InterfaceAddress> addresses =
-                (Vector<InterfaceAddress>) routing.getKnownRoutes();
-
-            Iterator<InterfaceAddress> iter = addresses.iterator();
-            while (iter.hasNext()) {
-                HostRecord rec = new HostRecord(iter.next());
+            RouteSnapshot routes = routing.getRouteSnapshot();
+            for (int i = 0; i < routes.size(); i++) {
+                HostRecord rec = new HostRecord(routes.getAddress(i));
                 rec.lastUpdate = 0; /* Don't use alert color at all. */
                 knownHosts.add(rec);
             }
@@ -17,6 +17,12 @@ package uk.ac.cam.dbs;
  * services that need multiple daemon threads, or which need to listen
  * on multiple DMP ports, should not rely on this class.</p>
  *
+ * <p>A daemon is attached to a single <code>SystemBus</code>. By
+ * default this is the global bus returned by
+ * <code>SystemBus.getSystemBus()</code>, but another bus can be given
+ * to the constructor, for example to run several simulated nodes in
+ * one process.</p>
+ *
  * <p><b>Warning:</b> LeJOS users should be aware that LeJOS only
  * supports 256 threads total to be created during a program's
  * execution, and that starting and stopping services will rapidly use
@@ -31,12 +37,34 @@ public abstract class AbstractDMPDaemon {
     private Object enabledLock;
     private Thread daemonThread;
     private DMPMessageListener listener;
+    private SystemBus bus;
 
     /** DMP port used by the DMP daemon. */
     private int dmpPort;
 
     /** Create a new <code>AbstractDMPDaemon</code>. */
     public AbstractDMPDaemon() {
+        this(SystemBus.getSystemBus(), 0);
+    }
+
+    /** Create a new <code>AbstractDMPDaemon</code>.
+     *
+     * @param port DMP port to listen on.
+     */
+    public AbstractDMPDaemon(int port) {
+        this(SystemBus.getSystemBus(), port);
+    }
+
+    /** Create a new <code>AbstractDMPDaemon</code> attached to a
+     * particular bus.
+     *
+     * @param bus  Bus to bind the daemon's DMP port on.
+     * @param port DMP port to listen on.
+     */
+    public AbstractDMPDaemon(SystemBus bus, int port) {
+        if (bus == null)
+            throw new NullPointerException();
+        this.bus = bus;
         enabled = false;
         enabledLock = new Object();
         daemonThread = null;
@@ -45,15 +73,6 @@ public abstract class AbstractDMPDaemon {
                     AbstractDMPDaemon.this.messageReceived(conn, msg);
                 };
             };
-        dmpPort = 0;
-    }
-
-    /** Create a new <code>AbstractDMPDaemon</code>.
-     *
-     * @param port DMP port to listen on.
-     */
-    public AbstractDMPDaemon(int port) {
-        this();
         dmpPort = port;
     }
 
@@ -67,7 +86,7 @@ public abstract class AbstractDMPDaemon {
         synchronized (enabledLock) {
             if (!enabled) {
                 enabled = true;
-                SystemBus.getSystemBus().addDMPService(listener, dmpPort);
+                bus.addDMPService(listener, dmpPort);
             }
             if (!isRunning()) {
                 daemonThread = new Thread() {
@@ -97,7 +116,7 @@ public abstract class AbstractDMPDaemon {
         synchronized (enabledLock) {
             if (enabled) {
                 enabled = false;
-                SystemBus.getSystemBus().removeDMPService(listener, dmpPort);
+                bus.removeDMPService(listener, dmpPort);
             }
             if (isRunning()) {
                 daemonThread.interrupt();
@@ -133,6 +152,14 @@ public abstract class AbstractDMPDaemon {
         return enabled;
     }
 
+    /** Get the bus that the daemon is attached to.
+     *
+     * @return the daemon's <code>SystemBus</code>.
+     */
+    protected final SystemBus getBus() {
+        return bus;
+    }
+
     /** Get the DMP port used by the daemon. */
     protected final int getDMPPort() {
         return dmpPort;
@@ -151,8 +178,8 @@ public abstract class AbstractDMPDaemon {
         synchronized (enabledLock) {
             if (port == dmpPort) return;
             if (enabled) {
-                SystemBus.getSystemBus().addDMPService(listener, port);
-                SystemBus.getSystemBus().removeDMPService(listener, dmpPort);
+                bus.addDMPService(listener, port);
+                bus.removeDMPService(listener, dmpPort);
             }
             dmpPort = port;
         }
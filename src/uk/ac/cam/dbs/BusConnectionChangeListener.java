@@ -45,6 +45,10 @@ public interface BusConnectionChangeListener extends EventListener {
      *
      * <p>All other possible values for <code>status</code> are reserved.</p>
      *
+     * <p>Events are delivered asynchronously, and only the latest
+     * status of a connection which changes more than once before it
+     * can be delivered is passed on.</p>
+     *
      * @param connection The connection that changed.
      * @param status     How the connection changed.
      */
@@ -0,0 +1,40 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>Runs tasks on behalf of the distributed bus.</p>
+ *
+ * <p>This plays the same role as
+ * <code>java.util.concurrent.Executor</code>, which is not available
+ * on all of the platforms supported by the bus.</p>
+ *
+ * @see SystemBus#setMonitorExecutor(BusExecutor)
+ */
+public interface BusExecutor {
+
+    /** Run a task at some time in the future. Tasks passed to a
+     * <code>BusExecutor</code> may run for a long time, and may block
+     * on I/O.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task);
+}
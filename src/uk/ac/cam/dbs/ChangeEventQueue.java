@@ -0,0 +1,238 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/** <p>Delivers change events asynchronously.</p>
+ *
+ * <p>Events are posted with <code>post()</code>, which normally
+ * returns at once, and are passed to <code>dispatch()</code> later by
+ * a separate task. This means that a slow event listener only holds
+ * up the delivery of other events, and not the code which generated
+ * them.</p>
+ *
+ * <p>Each event concerns some object, such as a connection or an
+ * address, and has an integer status. Events are coalesced: if an
+ * event is posted for an object which already has an event waiting to
+ * be delivered, the waiting event's status is replaced and no new
+ * event is queued. Listeners therefore only see the latest status of
+ * an object which changes several times in quick succession, so they
+ * should treat events as reports of the current state rather than of
+ * a transition. Events for different objects are delivered in the
+ * order in which they were first posted.</p>
+ *
+ * <p>The queue is bounded. If as many objects as the queue's capacity
+ * already have events waiting, <code>post()</code> blocks until there
+ * is room, except when called from the delivery task itself or when
+ * the posting thread is interrupted.</p>
+ *
+ * <p>The delivery task only runs while there are events to deliver,
+ * and for a short time afterwards in case more arrive. By default it
+ * is given its own thread, but it can instead be scheduled on a
+ * <code>BusExecutor</code>.</p>
+ */
+public abstract class ChangeEventQueue {
+
+    /** Time for which the delivery task waits for more events before
+     * finishing, in milliseconds. */
+    private static final int LINGER_TIME = 1000;
+
+    /* Objects with events waiting, in order */
+    private Vector order;
+    /* Event, keyed by object */
+    private Hashtable pending;
+    private int capacity;
+    private BusExecutor executor;
+    /* Thread running the delivery task, or null if it isn't running */
+    private Thread dispatchThread;
+    private boolean running;
+    private boolean delivering;
+    private long postedCount;
+    private long coalescedCount;
+
+    /** Create a new event queue.
+     *
+     * @param capacity Maximum number of objects which may have events
+     *                 waiting.
+     */
+    public ChangeEventQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        this.capacity = capacity;
+        order = new Vector();
+        pending = new Hashtable();
+        running = false;
+    }
+
+    /** Deliver an event. Called by the delivery task for each event
+     * in turn. Exceptions thrown by this method are reported and
+     * otherwise ignored.
+     *
+     * @param object The object the event concerns.
+     * @param status The latest status posted for the object.
+     */
+    protected abstract void dispatch(Object object, int status);
+
+    /** Set the executor used to run the delivery task.
+     *
+     * @param executor Executor to use, or <code>null</code> to start
+     *                 a new thread whenever there are events to
+     *                 deliver.
+     */
+    public synchronized void setExecutor(BusExecutor executor) {
+        this.executor = executor;
+    }
+
+    /** Post an event for later delivery.
+     *
+     * @param object The object the event concerns.
+     * @param status The object's new status.
+     */
+    public void post(Object object, int status) {
+        Runnable task = null;
+        BusExecutor exec = null;
+        synchronized (this) {
+            postedCount++;
+            Event e = (Event) pending.get(object);
+            if (e != null) {
+                e.status = status;
+                coalescedCount++;
+                return;
+            }
+            while ((order.size() >= capacity)
+                   && (Thread.currentThread() != dispatchThread)) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    /* Queue the event anyway rather than lose it */
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                /* Someone else may have queued an event for the same
+                 * object while we were waiting. */
+                e = (Event) pending.get(object);
+                if (e != null) {
+                    e.status = status;
+                    coalescedCount++;
+                    return;
+                }
+            }
+            e = new Event(object, status);
+            pending.put(object, e);
+            order.addElement(e);
+            notifyAll();
+            if (!running) {
+                running = true;
+                task = new DispatchTask();
+                exec = executor;
+            }
+        }
+
+        if (task == null) return;
+        if (exec == null) {
+            Thread t = new Thread(task);
+            t.setDaemon(true);
+            t.start();
+        } else {
+            exec.execute(task);
+        }
+    }
+
+    /** Wait until every event posted so far has been delivered.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void drain() throws InterruptedException {
+        if (Thread.currentThread() == dispatchThread) return;
+        while ((order.size() > 0) || delivering) wait();
+    }
+
+    /** Get the number of events posted.
+     *
+     * @return count of events, including coalesced events.
+     */
+    public synchronized long getPostedCount() {
+        return postedCount;
+    }
+
+    /** Get the number of events which were coalesced with an event
+     * already waiting, rather than being delivered separately.
+     *
+     * @return count of coalesced events.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /** A waiting event. */
+    private static class Event {
+        Object object;
+        int status;
+
+        Event(Object object, int status) {
+            this.object = object;
+            this.status = status;
+        }
+    }
+
+    /** Delivers waiting events until there are none left. */
+    private class DispatchTask implements Runnable {
+        public void run() {
+            synchronized (ChangeEventQueue.this) {
+                dispatchThread = Thread.currentThread();
+            }
+            while (true) {
+                Object object;
+                int status;
+                synchronized (ChangeEventQueue.this) {
+                    delivering = false;
+                    if (order.size() == 0) {
+                        ChangeEventQueue.this.notifyAll();
+                        try {
+                            ChangeEventQueue.this.wait(LINGER_TIME);
+                        } catch (InterruptedException ex) {
+                            /* Finish */
+                        }
+                    }
+                    if (order.size() == 0) {
+                        running = false;
+                        dispatchThread = null;
+                        return;
+                    }
+                    delivering = true;
+                    Event e = (Event) order.elementAt(0);
+                    order.removeElementAt(0);
+                    pending.remove(e.object);
+                    object = e.object;
+                    status = e.status;
+                    ChangeEventQueue.this.notifyAll();
+                }
+                try {
+                    dispatch(object, status);
+                } catch (RuntimeException e) {
+                    System.err.println("Event listener failed: " + e);
+                }
+            }
+        }
+    }
+}
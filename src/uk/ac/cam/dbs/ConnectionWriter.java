@@ -0,0 +1,637 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** <p>Coalesces outgoing DMP frames for a stream-based connection.</p>
+ *
+ * <p>Messages sent to a connection with a <code>WritePolicy</code>
+ * are placed on the connection's send queue rather than being written
+ * directly to its <code>OutputStream</code>. A writer task copies
+ * queued frames into a buffer and writes the buffer out in a single
+ * call, as described by the policy. This avoids a separate write and
+ * flush for each small frame when many are sent back to back, for
+ * example when SFRP floods a HELLO message.</p>
+ *
+ * <p>The send queue is bounded by the policy. A message sent with
+ * <code>write()</code> is still sent synchronously: the caller waits
+ * until it has been written to the connection, and is told if that
+ * fails, but other messages queued meanwhile are written with it.
+ * Messages may also be queued asynchronously with
+ * <code>writeAsync()</code>, in which case the policy decides what
+ * happens when the queue is full, and the caller is given a
+ * <code>SendCompletion</code> to track the message.</p>
+ *
+ * <p>Statistics are kept on how many frames are written with each
+ * call, so that the effect of a policy can be observed, and on how
+ * many messages have been dropped.</p>
+ *
+ * <p>Instances are created and started by the <code>SystemBus</code>
+ * when a write policy is set for a connection.</p>
+ *
+ * @see SystemBus#setWritePolicy(BusConnection, WritePolicy)
+ * @see SystemBus#getConnectionWriter(BusConnection)
+ */
+public class ConnectionWriter implements Runnable {
+
+    /** Number of buckets in the batch size histogram. */
+    public static final int HISTOGRAM_BUCKETS = 8;
+
+    private SystemBus bus;
+    private BusConnection conn;
+    private OutputStream out;
+    private WritePolicy policy;
+
+    /** Send queue, as a circular buffer. */
+    private DMPMessage[] queue;
+    /** Completions for queued messages, in parallel with
+     * <code>queue</code>. */
+    private SendCompletion[] completions;
+    private int queueHead;
+    private int queueCount;
+    /** Total number of messages queued. This is also the sequence
+     * number of the most recently queued message. */
+    private long queuedCount;
+    /** Sequence number of the last message taken by the writer. */
+    private long takenSeq;
+    /** Sequence number of the last message written to the
+     * connection. */
+    private long writtenSeq;
+    /** Set when a caller is waiting in <code>flush()</code>. */
+    private boolean flushRequested;
+    private IOException error;
+    private boolean closed;
+    private boolean finished;
+
+    /* The coalescing buffer is only accessed by the writer task. */
+    private byte[] buf;
+    private int buffered;
+    private int bufferedFrames;
+    /** Completions for the frames in the buffer. */
+    private SendCompletion[] bufferedCompletions;
+    private int bufferedCompletionCount;
+    /** Sequence number of the last message copied into the
+     * buffer. */
+    private long bufferedSeq;
+    /** Time by which the buffer must be flushed. */
+    private long deadline;
+
+    private long frameCount;
+    private long writeCount;
+    private long dropCount;
+    private int[] batchHistogram;
+
+    /** Create a new <code>ConnectionWriter</code>. The writer does
+     * nothing until its <code>run()</code> method is started.
+     *
+     * @param bus        Bus whose checksum mode is followed.
+     * @param connection Connection to write to.
+     * @param policy     Initial write policy.
+     *
+     * @throws IOException if the connection's output stream could not
+     *                     be obtained.
+     */
+    ConnectionWriter(SystemBus bus, BusConnection connection,
+                     WritePolicy policy)
+        throws IOException {
+        this.bus = bus;
+        conn = connection;
+        out = connection.getOutputStream();
+        this.policy = policy;
+
+        queue = new DMPMessage[policy.getQueueCapacity()];
+        completions = new SendCompletion[queue.length];
+        queueHead = 0;
+        queueCount = 0;
+        queuedCount = 0;
+        takenSeq = 0;
+        writtenSeq = 0;
+        flushRequested = false;
+        error = null;
+        closed = false;
+        finished = false;
+
+        buf = new byte[policy.getFlushThreshold()];
+        buffered = 0;
+        bufferedFrames = 0;
+        bufferedCompletions = new SendCompletion[8];
+        bufferedCompletionCount = 0;
+        bufferedSeq = 0;
+
+        frameCount = 0;
+        writeCount = 0;
+        dropCount = 0;
+        batchHistogram = new int[HISTOGRAM_BUCKETS];
+    }
+
+    /** Get the connection that this writer sends messages over.
+     *
+     * @return the connection.
+     */
+    public BusConnection getConnection() {
+        return conn;
+    }
+
+    /** Get the write policy currently in use.
+     *
+     * @return the write policy.
+     */
+    public synchronized WritePolicy getPolicy() {
+        return policy;
+    }
+
+    /** Change the write policy. The new flush threshold takes effect
+     * the next time the coalescing buffer is empty. If the queue
+     * capacity is reduced, messages already queued are kept. */
+    synchronized void setPolicy(WritePolicy policy) {
+        this.policy = policy;
+        if (policy.getQueueCapacity() > queue.length) {
+            DMPMessage[] q = new DMPMessage[policy.getQueueCapacity()];
+            SendCompletion[] c = new SendCompletion[q.length];
+            for (int i = 0; i < queueCount; i++) {
+                q[i] = queue[(queueHead + i) % queue.length];
+                c[i] = completions[(queueHead + i) % queue.length];
+            }
+            queue = q;
+            completions = c;
+            queueHead = 0;
+        }
+        notifyAll();
+    }
+
+    /** <p>Send a message, waiting until it has been written to the
+     * connection. If the send queue is full, blocks until there is
+     * space. The coalescing buffer is flushed as soon as the message
+     * has been copied into it, without waiting for the policy's flush
+     * delay.</p>
+     *
+     * <p>A message sent this way is never dropped to make room in the
+     * queue.</p>
+     *
+     * @param msg Message to send.
+     *
+     * @throws IOException if the connection has failed, or the writer
+     *                     has been closed.
+     */
+    public void write(DMPMessage msg) throws IOException {
+        if (!writeIfOpen(msg)) {
+            throw new IOException("Connection writer closed");
+        }
+    }
+
+    /** Send a message as <code>write()</code> does, unless the bus
+     * has closed the writer because the connection's write policy was
+     * removed.
+     *
+     * @param msg Message to send.
+     *
+     * @return <code>true</code> if the message was written, or
+     *         <code>false</code> if the writer had been closed by the
+     *         bus before the message was queued, in which case it
+     *         should be written directly to the connection.
+     *
+     * @throws IOException if the connection has failed.
+     */
+    boolean writeIfOpen(DMPMessage msg) throws IOException {
+        SendCompletion c = new SendCompletion();
+        c.synchronous = true;
+        synchronized (this) {
+            waitForSpace();
+            if (closed && (error == null)) return false;
+            checkOpen();
+            enqueue(msg, c);
+            flushRequested = true;
+        }
+        try {
+            c.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting to send");
+        }
+        if (!c.isSent()) {
+            IOException e = c.getException();
+            throw new IOException("Write failed: "
+                                  + ((e != null) ? e.getMessage() : "closed"));
+        }
+        return true;
+    }
+
+    /** <p>Queue a message for transmission without waiting for it to
+     * be sent. If the send queue is full, the policy's overflow
+     * policy is applied: with <code>OVERFLOW_BLOCK</code> this method
+     * waits for space.</p>
+     *
+     * @param msg Message to send.
+     *
+     * @return a completion tracking the message.
+     */
+    public synchronized SendCompletion writeAsync(DMPMessage msg) {
+        return writeAsync(msg, policy.getOverflowPolicy());
+    }
+
+    /** <p>Queue a message for transmission without waiting for it to
+     * be sent, applying a particular overflow policy instead of the
+     * write policy's if the send queue is full.</p>
+     *
+     * @param msg            Message to send.
+     * @param overflowPolicy One of the <code>WritePolicy</code>
+     *                       overflow policies.
+     *
+     * @return a completion tracking the message.
+     */
+    public synchronized SendCompletion writeAsync(DMPMessage msg,
+                                                  int overflowPolicy) {
+        WritePolicy.checkOverflowPolicy(overflowPolicy);
+        SendCompletion c = writeAsyncIfOpen(msg, overflowPolicy);
+        if (c == null) {
+            c = new SendCompletion(new IOException("Connection writer closed"));
+        }
+        return c;
+    }
+
+    /** Queue a message as <code>writeAsync()</code> does, unless the
+     * bus has closed the writer because the connection's write policy
+     * was removed.
+     *
+     * @param msg            Message to send.
+     * @param overflowPolicy One of the <code>WritePolicy</code>
+     *                       overflow policies, or -1 to use the write
+     *                       policy's.
+     *
+     * @return a completion tracking the message, or <code>null</code>
+     *         if the writer had been closed by the bus, in which case
+     *         the message should be written directly to the
+     *         connection.
+     */
+    synchronized SendCompletion writeAsyncIfOpen(DMPMessage msg,
+                                                 int overflowPolicy) {
+        if (closed && (error == null)) return null;
+        if (overflowPolicy == -1) overflowPolicy = policy.getOverflowPolicy();
+        SendCompletion c = new SendCompletion();
+        if (isFull()) {
+            switch (overflowPolicy) {
+            case WritePolicy.OVERFLOW_DROP_NEWEST:
+                dropCount++;
+                c.complete(SendCompletion.DROPPED, null);
+                return c;
+            case WritePolicy.OVERFLOW_DROP_OLDEST:
+                while (isFull()) {
+                    /* Someone is waiting for the oldest message, so
+                     * drop this one instead */
+                    if (completions[queueHead].synchronous) {
+                        dropCount++;
+                        c.complete(SendCompletion.DROPPED, null);
+                        return c;
+                    }
+                    SendCompletion old = dequeue();
+                    dropCount++;
+                    if (old != null) {
+                        old.complete(SendCompletion.DROPPED, null);
+                    }
+                }
+                break;
+            default:
+                try {
+                    waitForSpace();
+                } catch (IOException e) {
+                    c.complete(SendCompletion.FAILED, e);
+                    return c;
+                }
+            }
+        }
+        if (closed && (error == null)) return null;
+        try {
+            checkOpen();
+        } catch (IOException e) {
+            c.complete(SendCompletion.FAILED, e);
+            return c;
+        }
+        enqueue(msg, c);
+        return c;
+    }
+
+    private boolean isFull() {
+        return (queueCount >= policy.getQueueCapacity());
+    }
+
+    /** Wait until the queue has space. Must hold the lock. */
+    private void waitForSpace() throws IOException {
+        while (isFull() && (error == null) && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting to send");
+            }
+        }
+    }
+
+    /** Add a message to the tail of the queue. Must hold the lock. */
+    private void enqueue(DMPMessage msg, SendCompletion c) {
+        int i = (queueHead + queueCount) % queue.length;
+        queue[i] = msg.retain();
+        completions[i] = c;
+        queueCount++;
+        queuedCount++;
+        notifyAll();
+    }
+
+    /** Remove the message at the head of the queue and release it.
+     * Must hold the lock.
+     *
+     * @return the message's completion, which may be null. */
+    private SendCompletion dequeue() {
+        SendCompletion c = completions[queueHead];
+        queue[queueHead].release();
+        queue[queueHead] = null;
+        completions[queueHead] = null;
+        queueHead = (queueHead + 1) % queue.length;
+        queueCount--;
+        notifyAll();
+        return c;
+    }
+
+    /** Wait until every message queued so far has been written to the
+     * connection, flushing the coalescing buffer immediately rather
+     * than waiting for the policy's flush delay.
+     *
+     * @throws IOException if the connection fails first.
+     */
+    public synchronized void flush() throws IOException {
+        long target = queuedCount;
+        while (((queuedCount - queueCount < target)
+                || (writtenSeq < Math.min(target, takenSeq)))
+               && (error == null) && !finished) {
+            flushRequested = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting to flush");
+            }
+        }
+        if (error != null) {
+            throw new IOException("Write failed: " + error.getMessage());
+        }
+    }
+
+    /** Stop the writer. Messages which have already been queued are
+     * still written. */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void checkOpen() throws IOException {
+        if (error != null) {
+            throw new IOException("Write failed: " + error.getMessage());
+        }
+        if (closed) {
+            throw new IOException("Connection writer closed");
+        }
+    }
+
+    /** Get the number of messages waiting in the send queue.
+     *
+     * @return the queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return queueCount;
+    }
+
+    /** Get the number of frames written to the connection.
+     *
+     * @return the total number of frames written.
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /** Get the number of messages dropped because the send queue
+     * was full.
+     *
+     * @return the total number of dropped messages.
+     */
+    public synchronized long getDropCount() {
+        return dropCount;
+    }
+
+    /** Get the number of write calls made to the connection's output
+     * stream. Each write call is followed by a single flush.
+     *
+     * @return the total number of writes.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /** <p>Get a histogram of the number of frames in each write. Entry
+     * <var>i</var> counts writes containing between
+     * 2<sup><var>i</var></sup> and 2<sup><var>i</var>+1</sup>-1
+     * frames, except for the last entry, which counts all larger
+     * writes.</p>
+     *
+     * @return a copy of the batch size histogram.
+     */
+    public synchronized int[] getBatchHistogram() {
+        int[] h = new int[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            h[i] = batchHistogram[i];
+        }
+        return h;
+    }
+
+    /** Run the writer task. Returns when the writer is closed or the
+     * connection fails. */
+    public void run() {
+        SendCompletion current = null;
+        try {
+            while (true) {
+                DMPMessage msg = null;
+                long seq = 0;
+                WritePolicy p;
+                synchronized (this) {
+                    p = policy;
+                    while (queueCount == 0) {
+                        if (buffered > 0) {
+                            if (flushRequested || closed || (p.getFlushDelay() == 0)) {
+                                break;
+                            }
+                            long wait = deadline - System.currentTimeMillis();
+                            if (wait <= 0) break;
+                            wait(wait);
+                        } else {
+                            if (closed) return;
+                            wait();
+                        }
+                        p = policy;
+                    }
+                    if (queueCount > 0) {
+                        seq = queuedCount - queueCount + 1;
+                        msg = queue[queueHead];
+                        current = completions[queueHead];
+                        queue[queueHead] = null;
+                        completions[queueHead] = null;
+                        queueHead = (queueHead + 1) % queue.length;
+                        queueCount--;
+                        takenSeq = seq;
+                        notifyAll();
+                    }
+                }
+
+                if (msg == null) {
+                    flushBuffer();
+                } else {
+                    try {
+                        append(msg, current, seq, p);
+                    } finally {
+                        msg.release();
+                    }
+                }
+                current = null;
+            }
+        } catch (IOException e) {
+            fail(e, current);
+        } catch (InterruptedException e) {
+            fail(new IOException("Connection writer interrupted"), current);
+        } finally {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Copy a frame into the coalescing buffer, flushing as
+     * required. */
+    private void append(DMPMessage msg, SendCompletion c, long seq,
+                        WritePolicy p)
+        throws IOException {
+        int size = DMPMessage.HEADER_LENGTH + msg.getPayloadLength();
+        boolean withChecksum =
+            (bus.getChecksumMode() != SystemBus.CHECKSUM_OFF);
+        if (buffered + size > buf.length) {
+            flushBuffer();
+        }
+        if ((buffered == 0) && (buf.length != p.getFlushThreshold())) {
+            buf = new byte[p.getFlushThreshold()];
+        }
+
+        if (c != null) {
+            if (bufferedCompletionCount == bufferedCompletions.length) {
+                SendCompletion[] bigger =
+                    new SendCompletion[bufferedCompletionCount * 2];
+                for (int i = 0; i < bufferedCompletionCount; i++) {
+                    bigger[i] = bufferedCompletions[i];
+                }
+                bufferedCompletions = bigger;
+            }
+            bufferedCompletions[bufferedCompletionCount++] = c;
+        }
+        bufferedSeq = seq;
+
+        if (size > buf.length) {
+            /* Too big to coalesce, so send on its own */
+            synchronized (out) {
+                msg.send(out, withChecksum);
+            }
+            recordWrite(1);
+            return;
+        }
+
+        if (buffered == 0) {
+            deadline = System.currentTimeMillis() + p.getFlushDelay();
+        }
+        msg.getHeader(buf, buffered, withChecksum);
+        msg.getPayload(buf, buffered + DMPMessage.HEADER_LENGTH);
+        buffered += size;
+        bufferedFrames++;
+
+        if (buffered == buf.length) {
+            flushBuffer();
+        }
+    }
+
+    /** Write out the contents of the coalescing buffer. */
+    private void flushBuffer() throws IOException {
+        if (buffered == 0) return;
+        synchronized (out) {
+            out.write(buf, 0, buffered);
+            out.flush();
+        }
+        int frames = bufferedFrames;
+        buffered = 0;
+        bufferedFrames = 0;
+        recordWrite(frames);
+    }
+
+    /** Update statistics and complete sends after a write. */
+    private void recordWrite(int frames) {
+        for (int i = 0; i < bufferedCompletionCount; i++) {
+            bufferedCompletions[i].complete(SendCompletion.SENT, null);
+            bufferedCompletions[i] = null;
+        }
+        bufferedCompletionCount = 0;
+
+        synchronized (this) {
+            frameCount += frames;
+            writeCount++;
+            int bucket = 0;
+            while ((frames > 1) && (bucket < HISTOGRAM_BUCKETS - 1)) {
+                frames >>= 1;
+                bucket++;
+            }
+            batchHistogram[bucket]++;
+
+            writtenSeq = bufferedSeq;
+            if (queueCount == 0) flushRequested = false;
+            notifyAll();
+        }
+    }
+
+    /** Give up after a write error, failing and discarding any
+     * unsent messages and disconnecting the connection. */
+    private void fail(IOException e, SendCompletion current) {
+        if (current != null) {
+            current.complete(SendCompletion.FAILED, e);
+        }
+        for (int i = 0; i < bufferedCompletionCount; i++) {
+            bufferedCompletions[i].complete(SendCompletion.FAILED, e);
+            bufferedCompletions[i] = null;
+        }
+        bufferedCompletionCount = 0;
+
+        synchronized (this) {
+            error = e;
+            closed = true;
+            while (queueCount > 0) {
+                SendCompletion c = dequeue();
+                if (c != null) c.complete(SendCompletion.FAILED, e);
+            }
+            notifyAll();
+        }
+        try {
+            conn.disconnect();
+        } catch (IOException f) {
+            System.err.println("ConnectionWriter: Disconnect failed");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>A bounded pool of DMP payload buffers.</p>
+ *
+ * <p>A pool holds free buffers for payloads of up to
+ * <code>getMaxLength()</code> octets. Buffers are kept in a separate
+ * free list for each length, so a buffer taken from the pool always
+ * has exactly the requested length and can be used as a
+ * <code>DMPMessage</code> payload without any change to the services
+ * that read it. This suits DMP traffic, which is dominated by a few
+ * small fixed-size messages such as SFRP HELLOs.</p>
+ *
+ * <p>At most <code>getMaxBuffers()</code> free buffers are held at
+ * once; any further buffers returned to the pool are simply left for
+ * the garbage collector. Larger payloads are never pooled.</p>
+ *
+ * <p>The <code>SystemBus</code> gives each connection its own pool
+ * when pooled receive is enabled.</p>
+ *
+ * @see SystemBus#setReceivePoolSize(int)
+ * @see DMPMessage#release()
+ */
+public class DMPBufferPool {
+
+    /** Default largest payload length held in a pool. */
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private int maxBuffers;
+    private int maxLength;
+
+    /** Free buffers, indexed by length. Each stack is allocated when
+     * a buffer of that length is first returned. */
+    private byte[][][] free;
+    /** Number of free buffers of each length. */
+    private int[] freeCount;
+    /** Total number of free buffers. */
+    private int pooled;
+
+    private int hits;
+    private int misses;
+
+    /** Create a new <code>DMPBufferPool</code> for payloads of up to
+     * <code>DEFAULT_MAX_LENGTH</code> octets.
+     *
+     * @param maxBuffers The maximum number of free buffers to hold.
+     */
+    public DMPBufferPool(int maxBuffers) {
+        this(maxBuffers, DEFAULT_MAX_LENGTH);
+    }
+
+    /** Create a new <code>DMPBufferPool</code>.
+     *
+     * @param maxBuffers The maximum number of free buffers to hold.
+     * @param maxLength  The largest payload length to pool.
+     */
+    public DMPBufferPool(int maxBuffers, int maxLength) {
+        if ((maxBuffers < 0) || (maxLength < 0)) {
+            throw new IllegalArgumentException("Invalid buffer pool size.");
+        }
+        this.maxBuffers = maxBuffers;
+        this.maxLength = maxLength;
+        free = new byte[maxLength + 1][][];
+        freeCount = new int[maxLength + 1];
+        pooled = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    /** Get a buffer from the pool. If no free buffer of the required
+     * length is available, a new one is allocated. The contents of
+     * the buffer are undefined.
+     *
+     * @param length The required buffer length.
+     *
+     * @return a buffer of exactly <code>length</code> octets.
+     */
+    public synchronized byte[] get(int length) {
+        if ((length <= maxLength) && (freeCount[length] > 0)) {
+            int n = --freeCount[length];
+            byte[] buf = free[length][n];
+            free[length][n] = null;
+            pooled--;
+            hits++;
+            return buf;
+        }
+        misses++;
+        return new byte[length];
+    }
+
+    /** Return a buffer to the pool. The buffer must not be used again
+     * by the caller. If the pool is full, or the buffer is too large
+     * to pool, it is discarded.
+     *
+     * @param buf The buffer to return.
+     */
+    public synchronized void put(byte[] buf) {
+        int length = buf.length;
+        if ((length > maxLength) || (pooled >= maxBuffers)) return;
+
+        byte[][] stack = free[length];
+        int n = freeCount[length];
+        if ((stack == null) || (n == stack.length)) {
+            /* Grow this length's stack, up to the pool size */
+            int size = (stack == null) ? 4 : stack.length * 2;
+            if (size > maxBuffers) size = maxBuffers;
+            byte[][] bigger = new byte[size][];
+            for (int i = 0; i < n; i++) {
+                bigger[i] = stack[i];
+            }
+            stack = bigger;
+            free[length] = stack;
+        }
+        stack[n] = buf;
+        freeCount[length] = n + 1;
+        pooled++;
+    }
+
+    /** Get the maximum number of free buffers held by the pool.
+     *
+     * @return the pool capacity.
+     */
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /** Get the largest payload length held by the pool.
+     *
+     * @return the maximum pooled buffer length, in octets.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /** Get the number of free buffers currently held by the pool.
+     *
+     * @return the number of free buffers.
+     */
+    public synchronized int getPooledCount() {
+        return pooled;
+    }
+
+    /** Get the number of requests satisfied from the pool.
+     *
+     * @return the number of pool hits.
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /** Get the number of requests that required a new buffer to be
+     * allocated.
+     *
+     * @return the number of pool misses.
+     */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+}
@@ -30,21 +30,58 @@ import java.io.EOFException;
 /** <p>A message sent over DMP. A message consists of a payload, a
  * service port number, and a checksum.</p>
  *
- * <p>Instances of this class are immutable: this is to ensure that they
- * can be passed between services and stored with minimum risk of them
- * being altered unexpectedly.</p>
+ * <p>The port and payload of a message are fixed when it is created,
+ * so that messages can be passed between services and stored with
+ * minimum risk of them being altered unexpectedly. Messages are not
+ * otherwise immutable: each has a reference count, and records the
+ * checksum field of the frame it was received in.</p>
  *
- * <p><strong>Note:</strong> This implementation does not currently
- * generate or verify checksums.</p>
+ * <p>A message received with <code>SystemBus</code> pooled receive
+ * enabled has its payload on loan from a per-connection
+ * <code>DMPBufferPool</code>. The receiving connection holds one
+ * reference, which it releases once the
+ * <code>DMPMessageListener</code> the message was passed to returns;
+ * the payload then goes back to the pool, and
+ * <code>getPayload()</code> returns <code>null</code>. Anything which
+ * needs the message after that, including a connection which queues
+ * it for sending, must either call <code>retain()</code> first and
+ * <code>release()</code> when it has finished, or take a
+ * <code>copy()</code>. For messages that are not pooled these methods
+ * are harmless.</p>
+ *
+ * <p>The checksum is only calculated when it is needed, and is then
+ * cached. A zero checksum field in a frame means that the sender did
+ * not calculate a checksum; see <code>DMPChecksum</code>. Received
+ * checksums are verified by the <code>SystemBus</code>, according to
+ * its checksum mode.</p>
  *
  * @see SystemBus
  * @see DMPMessageListener
+ * @see DMPBufferPool
+ * @see DMPChecksum
+ * @see SystemBus#setChecksumMode(int)
  */
 public class DMPMessage {
+    /** Length of the DMP header, in octets. */
+    public static final int HEADER_LENGTH = 6;
+    /** Checksum field value indicating that no checksum was
+     * calculated. */
+    public static final int NO_CHECKSUM = 0;
+
     /** Service port number. */
     private int port;
     /** Payload data */
     private byte[] payload;
+    /** Payload length */
+    private int length;
+    /** Pool to return the payload to, or null if not pooled. */
+    private DMPBufferPool pool;
+    /** Number of outstanding references to the message. */
+    private int refCount;
+    /** Cached checksum, or NO_CHECKSUM if not yet calculated. */
+    private int checksum;
+    /** Checksum field of the received frame, or -1. */
+    private int receivedChecksum;
 
     /** Create a new <code>DMPMessage</code>.
      *
@@ -53,16 +90,41 @@ public class DMPMessage {
      * @param payload  The contents of the message.
      **/
     public DMPMessage (int port, byte[] payload) {
-
+        this(port, payload.length);
         this.payload = payload;
-        this.port = port;
+    }
+
+    /** Create a new <code>DMPMessage</code> with a pooled payload. */
+    private DMPMessage (int port, byte[] payload, DMPBufferPool pool) {
+        this(port, payload);
+        this.pool = pool;
+    }
 
-        int len = payload.length;
+    /** <p>Create a new <code>DMPMessage</code> without a payload
+     * array.</p>
+     *
+     * <p>This is for use by subclasses which store their payload in
+     * some other way. Such subclasses must override
+     * <code>getPayload()</code> and
+     * <code>writePayload()</code>.</p>
+     *
+     * @param port   The port number associated with the service
+     *               responsible for the message.
+     * @param length The length of the payload.
+     */
+    protected DMPMessage (int port, int length) {
+        this.port = port;
+        this.length = length;
+        this.payload = null;
+        this.pool = null;
+        this.refCount = 1;
+        this.checksum = NO_CHECKSUM;
+        this.receivedChecksum = -1;
 
         if ((port >= 0x10000) || (port <= 0)) {
             throw new IllegalArgumentException("Invalid port number.");
         }
-        if (len >= 0x10000) {
+        if ((length >= 0x10000) || (length < 0)) {
             throw new IllegalArgumentException("Payload too large.");
         }
     }
@@ -83,12 +145,163 @@ public class DMPMessage {
         return payload;
     }
 
+    /** Copy the payload data into a buffer.
+     *
+     * @param buf Buffer to copy the payload into.
+     * @param off Offset within <code>buf</code> at which to store the
+     *            payload.
+     */
+    public void getPayload(byte[] buf, int off) {
+        System.arraycopy(getPayload(), 0, buf, off, length);
+    }
+
+    /** Get the length of the payload data. Unlike
+     * <code>getPayload().length</code>, this never requires the
+     * payload to be copied.
+     *
+     * @return the payload length in octets.
+     */
+    public int getPayloadLength() {
+        return length;
+    }
+
+    /** <p>Add a reference to the message. Each call must be matched
+     * by a call to <code>release()</code>.</p>
+     *
+     * <p>A <code>DMPMessageListener</code> which keeps a message
+     * after returning must call this before it returns.</p>
+     *
+     * @return this message.
+     *
+     * @throws IllegalStateException if the message has already been
+     *                               released.
+     */
+    public DMPMessage retain() {
+        synchronized (this) {
+            if (refCount <= 0) {
+                throw new IllegalStateException("DMP message already released.");
+            }
+            refCount++;
+        }
+        return this;
+    }
+
+    /** Drop a reference to the message. When the last reference is
+     * dropped, a pooled payload is returned to its pool, and the
+     * message must not be used again.
+     *
+     * @throws IllegalStateException if the message has already been
+     *                               released.
+     */
+    public void release() {
+        byte[] buf = null;
+        synchronized (this) {
+            if (refCount <= 0) {
+                throw new IllegalStateException("DMP message already released.");
+            }
+            refCount--;
+            if ((refCount == 0) && (pool != null)) {
+                buf = payload;
+                payload = null;
+            }
+        }
+        if (buf != null) pool.put(buf);
+    }
+
+    /** Create an unpooled copy of the message, which may be kept
+     * indefinitely.
+     *
+     * @return a new message with the same port and a copy of the
+     *         payload.
+     */
+    public DMPMessage copy() {
+        byte[] src = getPayload();
+        byte[] buf = new byte[length];
+        System.arraycopy(src, 0, buf, 0, length);
+        return new DMPMessage(port, buf);
+    }
+
+    /** Get the checksum of the message. The checksum is calculated
+     * the first time this method is called.
+     *
+     * @return the checksum, which is never <code>NO_CHECKSUM</code>.
+     */
+    public int getChecksum() {
+        int sum = checksum;
+        if (sum == NO_CHECKSUM) {
+            sum = computeChecksum();
+            checksum = sum;
+        }
+        return sum;
+    }
+
+    /** Calculate the checksum of the message. Subclasses which do not
+     * store their payload in an array may override this.
+     *
+     * @return the checksum.
+     */
+    protected int computeChecksum() {
+        return DMPChecksum.compute(port, length, getPayload(), 0);
+    }
+
+    /** Get the checksum field of the frame that this message was
+     * received in.
+     *
+     * @return the received checksum, which may be
+     *         <code>NO_CHECKSUM</code>, or -1 if the message was not
+     *         received from a connection.
+     */
+    public int getReceivedChecksum() {
+        return receivedChecksum;
+    }
+
+    /** Record the checksum field of the frame that this message was
+     * received in. This may only be called by the
+     * <code>FramedBusConnection</code> which received the message,
+     * before passing it to its dispatcher; after that the message may
+     * be shared, and must not be changed.
+     *
+     * @param sum The checksum field of the received frame.
+     */
+    public void setReceivedChecksum(int sum) {
+        receivedChecksum = sum;
+    }
+
     /** Get the full size of the message including headers.
      *
      * @return size in octets.
      */
     public int getSize() {
-        return payload.length + 8;
+        return length + 8;
+    }
+
+    /** Store the DMP header for this message in a buffer, without a
+     * checksum.
+     *
+     * @param buf Buffer to store the header in.
+     * @param off Offset within <code>buf</code> at which to store the
+     *            <code>HEADER_LENGTH</code> octets of the header.
+     */
+    public void getHeader(byte[] buf, int off) {
+        getHeader(buf, off, false);
+    }
+
+    /** Store the DMP header for this message in a buffer.
+     *
+     * @param buf          Buffer to store the header in.
+     * @param off          Offset within <code>buf</code> at which to
+     *                     store the <code>HEADER_LENGTH</code> octets
+     *                     of the header.
+     * @param withChecksum Whether to fill in the checksum field.
+     */
+    public void getHeader(byte[] buf, int off, boolean withChecksum) {
+        int sum = withChecksum ? getChecksum() : NO_CHECKSUM;
+        buf[off]   = (byte) (port >> 8);
+        buf[off+1] = (byte) port;
+        buf[off+2] = (byte) (length >> 8);
+        buf[off+3] = (byte) length;
+        buf[off+4] = (byte) (sum >> 8);
+        buf[off+5] = (byte) sum;
     }
 
     /** Send this message over a stream.
@@ -99,23 +312,54 @@ public class DMPMessage {
      * @throws IOException if an error occurs in transmission.
      */
     public void send(DataOutputStream out) throws IOException {
+        send(out, false);
+    }
 
-        int port = getPort();
-        int len   = getPayload().length;
+    /** Send this message over a stream, without a checksum.
+     *
+     * @param out the <code>OutputStream</code> the message should be
+     *            serialised onto.
+     *
+     * @throws IOException if an error occurs in transmission.
+     */
+    public void send(OutputStream out) throws IOException {
+        send(out, false);
+    }
 
-        /** Turn values into signed 16-bit integers */
-        port  = (port >= 0x8000) ? (port - 0x10000) : port;
-        len   = (len  >= 0x8000) ? (len  - 0x10000) : len;
+    /** Send this message over a stream. The header is written in a
+     * single call, followed by the payload, and the stream is then
+     * flushed.
+     *
+     * @param out          the <code>OutputStream</code> the message
+     *                     should be serialised onto.
+     * @param withChecksum Whether to fill in the checksum field.
+     *
+     * @throws IOException if an error occurs in transmission.
+     */
+    public void send(OutputStream out, boolean withChecksum)
+        throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        getHeader(header, 0, withChecksum);
 
         synchronized (out) {
-            out.writeChar((char) port);
-            out.writeChar((char) len);
-            out.writeChar(0); /* FIXME Don't bother with checksum */
-            out.write(getPayload(), 0, len);
+            out.write(header, 0, HEADER_LENGTH);
+            writePayload(out);
             out.flush();
         }
     }
 
+    /** Write the payload of this message to a stream. Subclasses
+     * which do not store their payload in an array must override
+     * this.
+     *
+     * @param out the <code>OutputStream</code> to write to.
+     *
+     * @throws IOException if an error occurs in transmission.
+     */
+    protected void writePayload(OutputStream out) throws IOException {
+        out.write(payload, 0, length);
+    }
+
     /** Scan a message from a stream.
      *
      * @param in the <code>DataInputStream</code> the message should
@@ -125,35 +369,54 @@ public class DMPMessage {
      */
     public static DMPMessage recv(DataInputStream in)
         throws IOException {
+        return recv(in, null);
+    }
 
-        int port;
+    /** Scan a message from a stream, taking the payload buffer from
+     * a pool. The caller owns the returned message, and must call
+     * <code>release()</code> once it has been dispatched.
+     *
+     * @param in   the <code>DataInputStream</code> the message should
+     *             be read from.
+     * @param pool the pool to take the payload buffer from, or
+     *             <code>null</code> to allocate a new one.
+     *
+     * @throws IOException if an error occurs in reception.
+     */
+    public static DMPMessage recv(DataInputStream in, DMPBufferPool pool)
+        throws IOException {
+
+        int port, sum;
         byte[] buf;
         synchronized (in) {
-            int len, sum;
+            int len;
             /* Grab header */
             port = in.readChar();
             len = in.readChar();
             sum = in.readChar();
 
-            /* Convert from signed char to unsigned integer */
-            port = (port < 0) ? (port + 0x10000) : port;
-            len =  (len  < 0) ? (len  + 0x10000) : len;
-            sum =  (sum  < 0) ? (sum  + 0x10000) : sum;
-
-            /* FIXME: Don't bother validating the checksum */
+            /* The checksum is verified by the SystemBus */
 
             /* Grab payload */
-            buf = new byte[len];
+            buf = (pool != null) ? pool.get(len) : new byte[len];
             int read_len = 0;
             while (read_len < len) {
                 int status = in.read(buf, read_len,
                                      (len - read_len));
                 if (status < 0) {
+                    if (pool != null) pool.put(buf);
                     throw new EOFException("Unexpected end of file reading message payload.");
                 }
                 read_len += status;
             }
         }
-        return new DMPMessage(port, buf);
+        DMPMessage msg;
+        if (pool != null) {
+            msg = new DMPMessage(port, buf, pool);
+        } else {
+            msg = new DMPMessage(port, buf);
+        }
+        msg.receivedChecksum = sum;
+        return msg;
     }
 }
@@ -25,7 +25,13 @@ import java.util.EventListener;
 /** Handler for DMP message receipt. */
 public interface DMPMessageListener extends EventListener {
 
-    /** Handle a received DMP message.
+    /** <p>Handle a received DMP message.</p>
+     *
+     * <p>The message may only be valid until this method returns:
+     * implementations which keep it, or its payload, for longer must
+     * call <code>msg.retain()</code> or take a
+     * <code>msg.copy()</code>.</p>
+     *
      * @param connection The connection over which the message was
      *                   received.
      * @param msg        The DMP message to be processed.
@@ -0,0 +1,67 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+
+/** <p>A connection which carries out DMP framing itself.</p>
+ *
+ * <p>The <code>SystemBus</code> does not start a monitor for a
+ * <code>FramedBusConnection</code>. Instead, it calls
+ * <code>startDispatch()</code> when the connection is added, and the
+ * connection is responsible for delivering each incoming message to
+ * the dispatcher it was given, after recording the frame's checksum
+ * field with <code>DMPMessage.setReceivedChecksum()</code>. Outgoing
+ * messages are passed to <code>sendDMPMessage()</code> rather than
+ * being written to the connection's <code>OutputStream</code>.</p>
+ *
+ * <p>This allows connections to be serviced without dedicating a
+ * blocked thread to each of them, for example by using non-blocking
+ * I/O.</p>
+ *
+ * @see SystemBus#addConnection(BusConnection)
+ */
+public interface FramedBusConnection extends BusConnection {
+
+    /** Start delivering incoming messages. Called by the
+     * <code>SystemBus</code> when the connection is added.
+     *
+     * @param dispatcher Listener to pass each incoming message to.
+     */
+    void startDispatch(DMPMessageListener dispatcher);
+
+    /** Stop delivering incoming messages. Called by the
+     * <code>SystemBus</code> when the connection is removed.
+     */
+    void stopDispatch();
+
+    /** Transmit a message over the connection.
+     *
+     * @param msg          The message to send.
+     * @param withChecksum Whether to fill in the frame's checksum
+     *                     field.
+     *
+     * @throws IOException if an error occurs while transmitting the
+     *                     message.
+     */
+    void sendDMPMessage(DMPMessage msg, boolean withChecksum)
+        throws IOException;
+}
@@ -0,0 +1,156 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.util.Hashtable;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/** <p>Estimates link costs from periodic probe messages.</p>
+ *
+ * <p>The estimator is driven by a protocol which sends numbered
+ * probes to each neighbour, and in which each neighbour echoes the
+ * number of the last probe it received from us, such as the clock
+ * synchronisation protocol. The round-trip time is smoothed with an
+ * exponentially-weighted moving average with gain 1/8, as in TCP. A
+ * probe counts as lost if no echo of it or of a later probe has
+ * arrived by the time the next-but-one probe is sent, and the loss
+ * rate is smoothed in the same way. Lost echoes count as well as
+ * lost probes.</p>
+ *
+ * <p>The cost of a link is its smoothed round-trip time plus one
+ * millisecond, divided by the estimated fraction of probes which got
+ * through.</p>
+ */
+public class LinkQualityEstimator implements LinkQualityProvider {
+
+    /** Largest cost returned. */
+    public static final int MAX_COST = 0x3fff;
+
+    /* Contains LinkRecord, keyed by BusConnection */
+    private Hashtable links;
+
+    /** Create a new link quality estimator. */
+    public LinkQualityEstimator() {
+        links = new Hashtable();
+    }
+
+    /** Record that a probe has been sent over a connection.
+     *
+     * @param conn Connection the probe was sent over.
+     * @param seq  Sequence number of the probe.
+     */
+    public void probeSent(BusConnection conn, int seq) {
+        LinkRecord rec = getRecord(conn);
+        synchronized (rec) {
+            if (rec.probes >= 2) {
+                /* Has the probe before last, or a later one, been
+                 * echoed? */
+                int sample = (rec.echoed - rec.lastSeq[1] >= 0) ? 0 : 256;
+                rec.loss8 += sample - (rec.loss8 >> 3);
+            } else {
+                rec.probes++;
+            }
+            rec.lastSeq[1] = rec.lastSeq[0];
+            rec.lastSeq[0] = seq;
+        }
+    }
+
+    /** Record that a neighbour has echoed a probe.
+     *
+     * @param conn      Connection the echo arrived on.
+     * @param seq       Sequence number of the probe which was echoed.
+     * @param roundTrip The round-trip time measured, in milliseconds,
+     *                  or a negative number if none could be
+     *                  measured.
+     */
+    public void probeEchoed(BusConnection conn, int seq, long roundTrip) {
+        LinkRecord rec = getRecord(conn);
+        synchronized (rec) {
+            if ((rec.probes > 0) && (seq - rec.echoed > 0)
+                && (rec.lastSeq[0] - seq >= 0)) {
+                rec.echoed = seq;
+            }
+            if (roundTrip < 0) return;
+            int r = (roundTrip > MAX_COST) ? MAX_COST : (int) roundTrip;
+            if (rec.srtt8 < 0) {
+                rec.srtt8 = r << 3;
+            } else {
+                rec.srtt8 += r - (rec.srtt8 >> 3);
+            }
+        }
+    }
+
+    /** Get the cost of a link.
+     *
+     * @param conn {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int getLinkCost(BusConnection conn) {
+        LinkRecord rec = (LinkRecord) links.get(conn);
+        if (rec == null) return UNKNOWN_COST;
+        synchronized (rec) {
+            if (rec.srtt8 < 0) return UNKNOWN_COST;
+            int loss = rec.loss8 >> 3;
+            if (loss > 240) loss = 240;
+            int cost = ((rec.srtt8 >> 3) + 1) * 256 / (256 - loss);
+            return (cost > MAX_COST) ? MAX_COST : cost;
+        }
+    }
+
+    /** Forget about connections which have gone away.
+     *
+     * @param connections Connections which are still in use.
+     */
+    public void retain(Vector connections) {
+        synchronized (links) {
+            Enumeration e = links.keys();
+            while (e.hasMoreElements()) {
+                Object k = e.nextElement();
+                if (!connections.contains(k)) links.remove(k);
+            }
+        }
+    }
+
+    private LinkRecord getRecord(BusConnection conn) {
+        synchronized (links) {
+            LinkRecord rec = (LinkRecord) links.get(conn);
+            if (rec == null) {
+                rec = new LinkRecord();
+                links.put(conn, rec);
+            }
+            return rec;
+        }
+    }
+
+    /** Measurements for a single link. */
+    private static class LinkRecord {
+        /* Smoothed round-trip time, times 8, or -1 if unknown */
+        int srtt8 = -1;
+        /* Smoothed loss rate out of 256, times 8 */
+        int loss8 = 0;
+        /* Sequence numbers of the last two probes */
+        int[] lastSeq = new int[2];
+        int probes = 0;
+        /* Latest probe echoed */
+        int echoed = 0;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>A provider of link quality information.</p>
+ *
+ * <p>Link quality is expressed as a cost, which is roughly the
+ * round-trip time of the link in milliseconds, scaled up to account
+ * for lost messages. Routing protocols add up the costs of the links
+ * along a route to choose between routes.</p>
+ *
+ * @see LinkQualityEstimator
+ */
+public interface LinkQualityProvider {
+    /** Value returned when the cost of a link isn't known. */
+    int UNKNOWN_COST = -1;
+
+    /** Get the cost of sending messages over a connection.
+     *
+     * @param conn The connection to look up.
+     *
+     * @return the link cost, which is at least 1, or
+     *         <code>UNKNOWN_COST</code> if the link hasn't been
+     *         measured yet.
+     */
+    int getLinkCost(BusConnection conn);
+}
@@ -0,0 +1,61 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>A provider of routing information which knows about more than
+ * one route to each destination.</p>
+ *
+ * <p>Users can spread traffic over equal-cost routes by passing a
+ * per-flow hash to <code>nextHop(InterfaceAddress, int)</code>, so
+ * that messages belonging to the same flow always take the same
+ * route while it remains available. If sending over the chosen hop
+ * fails, the alternatives from <code>nextHops()</code> can be tried
+ * without waiting for the routing protocol to notice.</p>
+ */
+public interface MultipathRoutingProvider extends RoutingProvider {
+    /** <p>Get the next hop towards a remote device or interface for a
+     * particular flow. The hop is chosen from the lowest-cost routes
+     * using <code>flowHash</code>, so the same hash gives the same
+     * hop as long as the set of routes doesn't change.</p>
+     *
+     * <p>Must always return <code>null</code> when passed the main
+     * address of the local device.</p>
+     *
+     * @param dest     The address of the remote device or interface.
+     * @param flowHash Hash identifying the flow.
+     *
+     * @return a connection over which to send a message in order to
+     *         reach the remote device or interface, or
+     *         <code>null</code> if no route is available.
+     */
+    BusConnection nextHop(InterfaceAddress dest, int flowHash);
+
+    /** Get all known next hops towards a remote device or interface,
+     * best first.
+     *
+     * @param dest The address of the remote device or interface.
+     * @param hops Array to store the next hops in. At most
+     *             <code>hops.length</code> hops are stored.
+     *
+     * @return the number of next hops stored in <code>hops</code>.
+     */
+    int nextHops(InterfaceAddress dest, BusConnection[] hops);
+}
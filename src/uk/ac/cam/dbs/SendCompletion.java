@@ -0,0 +1,149 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+import java.io.IOException;
+
+/** <p>Tracks the progress of a DMP message sent with
+ * <code>SystemBus.sendDMPMessageAsync()</code>.</p>
+ *
+ * <p>A completion starts out <code>PENDING</code>, and changes state
+ * exactly once: to <code>SENT</code> when the message has been written
+ * to the connection, to <code>DROPPED</code> if it was discarded
+ * because the connection's send queue was full, or to
+ * <code>FAILED</code> if the connection failed first.</p>
+ *
+ * @see SystemBus#sendDMPMessageAsync(BusConnection, DMPMessage)
+ * @see WritePolicy
+ */
+public class SendCompletion {
+
+    /** The message is waiting to be sent. */
+    public static final int PENDING = 0;
+    /** The message was written to the connection. */
+    public static final int SENT = 1;
+    /** The message was discarded by the send queue's overflow
+     * policy. */
+    public static final int DROPPED = 2;
+    /** The message could not be sent. */
+    public static final int FAILED = 3;
+
+    private int state;
+    private IOException exception;
+    /** Set for a message sent by <code>ConnectionWriter.write()</code>,
+     * whose sender is waiting for it and which must not be
+     * dropped. */
+    boolean synchronous;
+
+    /** Create a new, pending <code>SendCompletion</code>. */
+    SendCompletion() {
+        state = PENDING;
+        exception = null;
+    }
+
+    /** Create a <code>SendCompletion</code> for a message that has
+     * already been sent or has failed. */
+    SendCompletion(IOException e) {
+        this();
+        if (e == null) {
+            complete(SENT, null);
+        } else {
+            complete(FAILED, e);
+        }
+    }
+
+    /** Get the state of the send.
+     *
+     * @return one of <code>PENDING</code>, <code>SENT</code>,
+     *         <code>DROPPED</code> or <code>FAILED</code>.
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /** Test whether the send has finished, successfully or not.
+     *
+     * @return <code>true</code> if the state is no longer
+     *         <code>PENDING</code>.
+     */
+    public synchronized boolean isDone() {
+        return (state != PENDING);
+    }
+
+    /** Test whether the message was sent successfully.
+     *
+     * @return <code>true</code> if the state is <code>SENT</code>.
+     */
+    public synchronized boolean isSent() {
+        return (state == SENT);
+    }
+
+    /** Get the reason that the send failed.
+     *
+     * @return the error, or <code>null</code> if the state is not
+     *         <code>FAILED</code>.
+     */
+    public synchronized IOException getException() {
+        return exception;
+    }
+
+    /** Wait until the send has finished.
+     *
+     * @return the final state.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting.
+     */
+    public synchronized int waitFor() throws InterruptedException {
+        while (state == PENDING) {
+            wait();
+        }
+        return state;
+    }
+
+    /** Wait until the send has finished, or a timeout expires.
+     *
+     * @param timeout Maximum time to wait, in milliseconds.
+     *
+     * @return the state, which is <code>PENDING</code> if the timeout
+     *         expired.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting.
+     */
+    public synchronized int waitFor(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (state == PENDING) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) break;
+            wait(wait);
+        }
+        return state;
+    }
+
+    /** Move to a final state, if not already done. */
+    synchronized void complete(int state, IOException e) {
+        if (this.state != PENDING) return;
+        this.state = state;
+        exception = e;
+        notifyAll();
+    }
+}
@@ -21,16 +21,16 @@
 package uk.ac.cam.dbs;
 
 import java.util.Vector;
+import java.util.Hashtable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 
 /** <p>Manages global distributed bus state.</p>
  *
- * <p>The single <code>SystemBus</code> instance, obtained via
+ * <p>The global <code>SystemBus</code> instance, obtained via
  * <code>getSystemBus()</code>, contains the global state of the
  * distributed bus system. It provides methods for sending and
  * receiving DMP messages, and registering and removing connections
@@ -38,19 +38,51 @@ import java.io.DataOutputStream;
  *
  * <p>The bus system provides a low-level packet multiplexing service
  * that allows multiple "services" to transparently share the same
- * connections. In order to do this, it runs one thread per
+ * connections. In order to do this, it runs a monitor task for each
  * <code>BusConnection</code> which polls for incoming messages and
  * dispatches them to the appropriate
- * <code>DMPMessageListener</code>.</p>
+ * <code>DMPMessageListener</code>. By default each monitor gets its
+ * own thread, but monitors can instead be scheduled on a
+ * <code>BusExecutor</code>.</p>
  *
  * @see #getSystemBus()
+ * @see #setMonitorExecutor(BusExecutor)
  * @see BusConnection
  * @see DMPMessageListener
  */
 public class SystemBus implements DMPMessageListener {
 
-    /** A list of DMP port bindings */
-    private Vector portBindings;
+    /** Number of bits of the port number used to index a page of the
+     * port table. */
+    private static final int PORT_PAGE_BITS = 8;
+    /** Number of entries in each page of the port table. */
+    private static final int PORT_PAGE_SIZE = 1 << PORT_PAGE_BITS;
+    /** Mask selecting a port's index within its page. */
+    private static final int PORT_PAGE_MASK = PORT_PAGE_SIZE - 1;
+    /** Number of connections which may have change events waiting
+     * to be delivered. */
+    private static final int EVENT_QUEUE_SIZE = 64;
+
+    /** Checksum mode: don't generate or verify checksums. */
+    public static final int CHECKSUM_OFF = 0;
+    /** Checksum mode: generate checksums, and verify them on frames
+     * that have one. */
+    public static final int CHECKSUM_ON = 1;
+    /** Checksum mode: generate checksums, and drop frames that don't
+     * have a valid one. */
+    public static final int CHECKSUM_REQUIRED = 2;
+
+    /** <p>DMP port bindings, as a two-level table indexed by port
+     * number. Pages that contain no bindings are <code>null</code>.</p>
+     *
+     * <p>The table is never modified in place. Writers hold
+     * <code>portTableLock</code>, build a modified copy of the top
+     * level and of the affected pages, and then publish it, so
+     * message dispatch can look up a port without taking any
+     * lock.</p> */
+    private volatile DMPMessageListener[][] portTable;
+    /** Lock serialising modifications to the port table. */
+    private Object portTableLock;
 
     /** Bind a DMP <code>service</code> to a particular DMP
      * <code>port</code>.
@@ -66,16 +98,28 @@ public class SystemBus implements DMPMessageListener {
         if (service == null) {
             throw new IllegalArgumentException ("Invalid service");
         }
-        /* Check that the port is not already bound */
-        synchronized (portBindings) {
-            for (int i = 0; i < portBindings.size(); i++) {
-                DMPBinding b = (DMPBinding) portBindings.elementAt(i);
-                if (port == b.port) {
-                    throw new DMPBindException("Port " + Integer.toString(port) +
-                                               " in use");
-                }
+        if ((port < 0) || (port >= 0x10000)) {
+            throw new IllegalArgumentException ("Invalid port number");
+        }
+        synchronized (portTableLock) {
+            DMPMessageListener[][] table = portTable;
+            DMPMessageListener[] page = table[port >>> PORT_PAGE_BITS];
+
+            /* Check that the port is not already bound */
+            if ((page != null) && (page[port & PORT_PAGE_MASK] != null)) {
+                throw new DMPBindException("Port " + Integer.toString(port) +
+                                           " in use");
+            }
+
+            DMPMessageListener[] newPage = new DMPMessageListener[PORT_PAGE_SIZE];
+            if (page != null) {
+                System.arraycopy(page, 0, newPage, 0, PORT_PAGE_SIZE);
             }
-            portBindings.addElement(new DMPBinding(service, port));
+            newPage[port & PORT_PAGE_MASK] = service;
+
+            DMPMessageListener[][] newTable = copyPortTable(table);
+            newTable[port >>> PORT_PAGE_BITS] = newPage;
+            portTable = newTable;
         }
     }
 
@@ -89,24 +133,45 @@ public class SystemBus implements DMPMessageListener {
      * @param port    The port to be unbound, or -1 to match all ports.
      */
     public void removeDMPService(DMPMessageListener service, int port) {
-        synchronized (portBindings) {
-            for (int i = 0; i < portBindings.size(); i++) {
-                DMPBinding b = (DMPBinding) portBindings.elementAt(i);
-                if (service == b.service) {
-                    /* If the port was specified, only remove that
-                     * particular binding */
-                    if (port == b.port) {
-                        portBindings.removeElement(b);
-                        break;
-                    }
-                    /* If the port was not specified, remove every
-                     * binding of this service */
-                    if (port < 0) {
-                        portBindings.removeElement(b);
+        if (port >= 0x10000) return;
+
+        synchronized (portTableLock) {
+            DMPMessageListener[][] table = portTable;
+            DMPMessageListener[][] newTable = null;
+
+            /* If the port was specified, only look at that particular
+             * binding; otherwise, look at every page. */
+            int firstPage = (port < 0) ? 0 : (port >>> PORT_PAGE_BITS);
+            int lastPage = (port < 0) ? (table.length - 1) : firstPage;
+
+            for (int i = firstPage; i <= lastPage; i++) {
+                DMPMessageListener[] page = table[i];
+                if (page == null) continue;
+
+                DMPMessageListener[] newPage = null;
+                int remaining = 0;
+                for (int j = 0; j < PORT_PAGE_SIZE; j++) {
+                    if (page[j] == null) continue;
+                    boolean match = (page[j] == service)
+                        && ((port < 0) || (j == (port & PORT_PAGE_MASK)));
+                    if (!match) {
+                        remaining++;
                         continue;
                     }
+                    if (newPage == null) {
+                        newPage = new DMPMessageListener[PORT_PAGE_SIZE];
+                        System.arraycopy(page, 0, newPage, 0, PORT_PAGE_SIZE);
+                    }
+                    newPage[j] = null;
                 }
+                if (newPage == null) continue;
+
+                if (newTable == null) newTable = copyPortTable(table);
+                /* Release pages which no longer contain any bindings */
+                newTable[i] = (remaining > 0) ? newPage : null;
             }
+
+            if (newTable != null) portTable = newTable;
         }
     }
 
@@ -122,9 +187,19 @@ public class SystemBus implements DMPMessageListener {
         removeDMPService(service, -1);
     }
 
+    /** Make a shallow copy of the top level of the port table. */
+    private static DMPMessageListener[][] copyPortTable(DMPMessageListener[][] table) {
+        DMPMessageListener[][] result = new DMPMessageListener[table.length][];
+        System.arraycopy(table, 0, result, 0, table.length);
+        return result;
+    }
+
     /** Send a DMP message. Transmits <code>msg</code> on
      * <code>connection</code>.  If <code>connection</code> is
-     * <code>null</code>, delivers the message locally.
+     * <code>null</code>, delivers the message locally. If the
+     * connection has a write policy, the message is passed through
+     * its send queue, but this method still returns only once it has
+     * been written.
      *
      * @param connection The connection to transmit on.
      * @param msg        The message to send.
@@ -141,9 +216,19 @@ public class SystemBus implements DMPMessageListener {
 
         /* Pass message into connection */
         try {
+            boolean withChecksum = (checksumMode != CHECKSUM_OFF);
+            if (connection instanceof FramedBusConnection) {
+                ((FramedBusConnection) connection).sendDMPMessage(msg,
+                                                                 withChecksum);
+                return;
+            }
+            /* If setWritePolicy() removes the writer meanwhile, it
+             * refuses the message, which is then written directly. */
+            ConnectionWriter w = (ConnectionWriter) writers.get(connection);
+            if ((w != null) && w.writeIfOpen(msg)) return;
             OutputStream out = connection.getOutputStream();
             synchronized (out) {
-                msg.send(new DataOutputStream(out));
+                msg.send(out, withChecksum);
             }
         } catch (IOException e) {
             connection.disconnect();
@@ -151,10 +236,93 @@ public class SystemBus implements DMPMessageListener {
         }
     }
 
-    /** Deliver a DMP message. Examines the destination port of
+    /** <p>Send a DMP message without waiting for it to be
+     * transmitted, if the connection has a write policy. The message
+     * is placed on the connection's bounded send queue, and a
+     * <code>SendCompletion</code> is returned which can be used to
+     * find out whether it was sent. If the queue is full, the
+     * overflow policy of the connection's <code>WritePolicy</code>
+     * decides whether to wait for space or to drop a message.</p>
+     *
+     * <p>A stream connection with no write policy has no send queue,
+     * so the message is written directly, as by
+     * <code>sendDMPMessage()</code>. Framed connections, and local
+     * delivery when <code>connection</code> is <code>null</code>, are
+     * handled in the same way. In each case the returned completion
+     * is already done.</p>
+     *
+     * @param connection The connection to transmit on.
+     * @param msg        The message to send.
+     *
+     * @return a completion tracking the message.
+     *
+     * @see #setWritePolicy(BusConnection, WritePolicy)
+     * @see WritePolicy#getOverflowPolicy()
+     */
+    public SendCompletion sendDMPMessageAsync(BusConnection connection,
+                                              DMPMessage msg) {
+        return sendAsync(connection, msg, -1);
+    }
+
+    /** <p>Send a DMP message without waiting for it to be
+     * transmitted, overriding the overflow policy of the connection's
+     * write policy. This lets a service which sends periodic control
+     * messages, each superseding the last, drop them rather than wait
+     * for a slow connection, whatever the connection's policy.</p>
+     *
+     * <p>Otherwise this is the same as
+     * <code>sendDMPMessageAsync(BusConnection, DMPMessage)</code>.</p>
+     *
+     * @param connection     The connection to transmit on.
+     * @param msg            The message to send.
+     * @param overflowPolicy Action to take if the send queue is full:
+     *                       one of the <code>WritePolicy</code>
+     *                       overflow policies.
+     *
+     * @return a completion tracking the message.
+     *
+     * @see WritePolicy#OVERFLOW_DROP_OLDEST
+     */
+    public SendCompletion sendDMPMessageAsync(BusConnection connection,
+                                              DMPMessage msg,
+                                              int overflowPolicy) {
+        WritePolicy.checkOverflowPolicy(overflowPolicy);
+        return sendAsync(connection, msg, overflowPolicy);
+    }
+
+    /** Send a DMP message asynchronously, with a particular overflow
+     * policy, or the connection's own if it is -1. */
+    private SendCompletion sendAsync(BusConnection connection,
+                                     DMPMessage msg, int overflowPolicy) {
+        if ((connection != null)
+            && !(connection instanceof FramedBusConnection)) {
+            ConnectionWriter w = (ConnectionWriter) writers.get(connection);
+            if (w != null) {
+                SendCompletion c = w.writeAsyncIfOpen(msg, overflowPolicy);
+                if (c != null) return c;
+            }
+        }
+
+        try {
+            sendDMPMessage(connection, msg);
+        } catch (IOException e) {
+            return new SendCompletion(e);
+        }
+        return new SendCompletion(null);
+    }
+
+    /** <p>Deliver a DMP message. Examines the destination port of
      * <code>msg</code>, and if there has been a service bound to that
      * port, delivers it to the service. If no service has been bound,
-     * drops the <code>msg</code> silently.
+     * drops the <code>msg</code> silently.</p>
+     *
+     * <p>The port lookup does not take any locks, and the service is
+     * called without any locks held, so binding and unbinding
+     * services never delays message delivery.</p>
+     *
+     * <p>If <code>msg</code> was received from a connection, its
+     * checksum is first verified according to the checksum mode, and
+     * the message is dropped if it fails.</p>
      *
      * @param connection Connection the <code>msg</code> arrived from.
      * @param msg        Message to deliver.
@@ -162,25 +330,29 @@ public class SystemBus implements DMPMessageListener {
      * @see DMPMessage#getPort()
      */
     public void recvDMPMessage(BusConnection connection, DMPMessage msg) {
-        synchronized (portBindings) {
-            for (int i = 0; i < portBindings.size(); i++) {
-                DMPBinding b = (DMPBinding) portBindings.elementAt(i);
-                if (msg.getPort() == b.port) {
-                    b.service.recvDMPMessage(connection, msg);
-                    return;
+        int sum = msg.getReceivedChecksum();
+        if ((sum >= 0) && (checksumMode != CHECKSUM_OFF)) {
+            if (sum == DMPMessage.NO_CHECKSUM) {
+                synchronized (checksumLock) {
+                    uncheckedFrames++;
+                }
+                if (checksumMode == CHECKSUM_REQUIRED) return;
+            } else if (sum != msg.getChecksum()) {
+                synchronized (checksumLock) {
+                    corruptFrames++;
                 }
+                return;
             }
-            /* No port binding was present, so silently drop the packet */
         }
-    }
 
-    /** Binding of DMP service to DMP port */
-    private class DMPBinding {
-        DMPMessageListener service;
-        int port;
-        DMPBinding(DMPMessageListener service, int port) {
-            this.service = service;
-            this.port = port;
+        int port = msg.getPort();
+        DMPMessageListener[] page = portTable[port >>> PORT_PAGE_BITS];
+        /* No port binding was present, so silently drop the packet */
+        if (page == null) return;
+
+        DMPMessageListener service = page[port & PORT_PAGE_MASK];
+        if (service != null) {
+            service.recvDMPMessage(connection, msg);
         }
     }
 
@@ -192,12 +364,281 @@ public class SystemBus implements DMPMessageListener {
     private Vector connectionMonitors;
     /** A list of BusConnectionChangeListener. */
     private Vector connectionListeners;
+    /** Queue of connection change events waiting to be delivered */
+    private ChangeEventQueue connectionEvents;
+    /** Executor for DMPMonitors, or null to use dedicated threads */
+    private volatile BusExecutor monitorExecutor;
+    /** Size of each connection's receive buffer pool, or 0 */
+    private int receivePoolSize;
+    /** Checksum mode */
+    private volatile int checksumMode;
+    /** Lock protecting checksum statistics */
+    private Object checksumLock;
+    private long corruptFrames;
+    private long uncheckedFrames;
+    /** ConnectionWriters, indexed by BusConnection */
+    private Hashtable writers;
+    /** WritePolicy for new connections, or null to write directly */
+    private WritePolicy defaultWritePolicy;
+
+    /** <p>Set the executor used to run connection monitors. Each
+     * monitor blocks reading from its connection's
+     * <code>InputStream</code> for as long as the connection is
+     * active, so the executor must be able to run as many tasks
+     * concurrently as there are connections.</p>
+     *
+     * <p>If <code>executor</code> is <code>null</code> (the default),
+     * a new thread is started for each connection.</p>
+     *
+     * <p>The executor is also used to deliver connection change
+     * events.</p>
+     *
+     * <p>Only connections added after this method is called are
+     * affected.</p>
+     *
+     * @param executor Executor to run monitors on, or
+     *                 <code>null</code>.
+     */
+    public void setMonitorExecutor(BusExecutor executor) {
+        synchronized (connectionMonitors) {
+            monitorExecutor = executor;
+        }
+        connectionEvents.setExecutor(executor);
+    }
+
+    /** Get the executor used to run connection monitors.
+     *
+     * @return the monitor executor, or <code>null</code> if each
+     *         connection is monitored by a dedicated thread.
+     *
+     * @see #setMonitorExecutor(BusExecutor)
+     */
+    public BusExecutor getMonitorExecutor() {
+        return monitorExecutor;
+    }
+
+    /** <p>Enable or disable pooled receive. If <code>size</code> is
+     * greater than zero, each connection monitor takes incoming
+     * payload buffers from its own <code>DMPBufferPool</code> holding
+     * up to <code>size</code> free buffers, and recycles them once
+     * the message has been dispatched. This avoids allocating a new
+     * buffer for every small incoming message.</p>
+     *
+     * <p>With pooled receive enabled, a <code>DMPMessage</code> is
+     * only valid until the <code>DMPMessageListener</code> it is
+     * passed to returns, unless the listener calls
+     * <code>retain()</code> on it. Listeners that keep messages or
+     * payloads for longer must retain or copy them.</p>
+     *
+     * <p>Pooled receive is disabled by default. Only connections
+     * added after this method is called are affected.</p>
+     *
+     * @param size Number of free buffers to pool per connection, or
+     *             0 to disable pooling.
+     *
+     * @see DMPMessage#retain()
+     * @see DMPMessage#copy()
+     */
+    public void setReceivePoolSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid receive pool size.");
+        }
+        synchronized (connectionMonitors) {
+            receivePoolSize = size;
+        }
+    }
+
+    /** Get the number of free buffers pooled per connection.
+     *
+     * @return the receive pool size, or 0 if pooled receive is
+     *         disabled.
+     *
+     * @see #setReceivePoolSize(int)
+     */
+    public int getReceivePoolSize() {
+        return receivePoolSize;
+    }
+
+    /** <p>Set the checksum mode.</p>
+     *
+     * <p>With <code>CHECKSUM_OFF</code> (the default), the checksum
+     * field of outgoing frames is left as zero, and the checksums of
+     * incoming frames are not checked.</p>
+     *
+     * <p>With <code>CHECKSUM_ON</code>, outgoing frames carry a
+     * checksum, and incoming frames with a bad checksum are dropped.
+     * Frames with a zero checksum field are still accepted, so this
+     * mode can be used with peers which do not generate checksums;
+     * such peers ignore the checksum field on incoming frames.</p>
+     *
+     * <p>With <code>CHECKSUM_REQUIRED</code>, incoming frames with a
+     * zero checksum field are dropped as well.</p>
+     *
+     * @param mode One of <code>CHECKSUM_OFF</code>,
+     *             <code>CHECKSUM_ON</code> or
+     *             <code>CHECKSUM_REQUIRED</code>.
+     *
+     * @see DMPChecksum
+     * @see #getCorruptFrameCount()
+     * @see #getUncheckedFrameCount()
+     */
+    public void setChecksumMode(int mode) {
+        if ((mode != CHECKSUM_OFF) && (mode != CHECKSUM_ON)
+            && (mode != CHECKSUM_REQUIRED)) {
+            throw new IllegalArgumentException("Invalid checksum mode.");
+        }
+        checksumMode = mode;
+    }
+
+    /** Get the checksum mode.
+     *
+     * @return the checksum mode.
+     *
+     * @see #setChecksumMode(int)
+     */
+    public int getChecksumMode() {
+        return checksumMode;
+    }
+
+    /** Get the number of incoming frames dropped because their
+     * checksum was wrong.
+     *
+     * @return the number of corrupt frames.
+     */
+    public long getCorruptFrameCount() {
+        synchronized (checksumLock) {
+            return corruptFrames;
+        }
+    }
+
+    /** Get the number of incoming frames received without a
+     * checksum while checksums were enabled. In
+     * <code>CHECKSUM_REQUIRED</code> mode, these frames were dropped.
+     *
+     * @return the number of unchecked frames.
+     */
+    public long getUncheckedFrameCount() {
+        synchronized (checksumLock) {
+            return uncheckedFrames;
+        }
+    }
+
+    /** <p>Set the write policy for a connection. If
+     * <code>policy</code> is not <code>null</code>, messages sent over
+     * the connection are queued and coalesced by a
+     * <code>ConnectionWriter</code>, which runs on the monitor
+     * executor (or its own thread if there is none). If
+     * <code>policy</code> is <code>null</code>, any queued messages
+     * are written out and subsequent messages are written directly to
+     * the connection's <code>OutputStream</code>.</p>
+     *
+     * <p>Framed connections, such as those created by
+     * <code>NioTCPIPConnectionManager</code>, manage their own
+     * output and cannot have a write policy.</p>
+     *
+     * @param connection A connection managed by the bus.
+     * @param policy     Write policy to use, or <code>null</code>.
+     *
+     * @throws IOException if the connection's output stream could not
+     *                     be obtained.
+     *
+     * @see #setDefaultWritePolicy(WritePolicy)
+     * @see #getConnectionWriter(BusConnection)
+     */
+    public void setWritePolicy(BusConnection connection, WritePolicy policy)
+        throws IOException {
+        if (connection instanceof FramedBusConnection) {
+            throw new IllegalArgumentException("Framed connections cannot have a write policy.");
+        }
+        ConnectionWriter w;
+        synchronized (writers) {
+            synchronized (connections) {
+                if (!connections.contains(connection)) {
+                    throw new IllegalArgumentException("Connection is not managed by the bus.");
+                }
+            }
+            w = (ConnectionWriter) writers.get(connection);
+            if (policy != null) {
+                if (w != null) {
+                    w.setPolicy(policy);
+                } else {
+                    startWriter(new ConnectionWriter(this, connection, policy));
+                }
+                return;
+            }
+            if (w == null) return;
+            writers.remove(connection);
+            w.close();
+        }
+        /* Drain queued messages before allowing direct writes */
+        try {
+            w.flush();
+        } catch (IOException e) {
+            /* The writer disconnects the connection itself */
+        }
+    }
+
+    /** <p>Set the write policy used for connections added in
+     * future. The default is <code>null</code>, meaning that messages
+     * are written directly to each connection's
+     * <code>OutputStream</code>.</p>
+     *
+     * @param policy Write policy for new connections, or
+     *               <code>null</code>.
+     *
+     * @see #setWritePolicy(BusConnection, WritePolicy)
+     */
+    public void setDefaultWritePolicy(WritePolicy policy) {
+        synchronized (writers) {
+            defaultWritePolicy = policy;
+        }
+    }
+
+    /** Get the write policy used for connections added in future.
+     *
+     * @return the default write policy, or <code>null</code>.
+     */
+    public WritePolicy getDefaultWritePolicy() {
+        return defaultWritePolicy;
+    }
+
+    /** Get the writer coalescing messages sent over a connection, if
+     * any. This can be used to monitor the writer's statistics.
+     *
+     * @param connection A connection managed by the bus.
+     *
+     * @return the connection's writer, or <code>null</code> if it has
+     *         no write policy.
+     */
+    public ConnectionWriter getConnectionWriter(BusConnection connection) {
+        return (ConnectionWriter) writers.get(connection);
+    }
 
-    /** Add a a listener for connection change events. The
+    /** Register and start a ConnectionWriter. Must hold the writers
+     * lock. */
+    private void startWriter(ConnectionWriter w) {
+        writers.put(w.getConnection(), w);
+        BusExecutor executor = monitorExecutor;
+        if (executor == null) {
+            Thread t = new Thread(w);
+            t.setDaemon(true);
+            t.start();
+        } else {
+            executor.execute(w);
+        }
+    }
+
+    /** <p>Add a a listener for connection change events. The
      * <code>BusConnectionChangeListener</code>'s
      * <code>connectionChanged()</code> method is called whenever a
      * connection is added or removed from the list of active
-     * connections.
+     * connections.</p>
+     *
+     * <p>Events are delivered asynchronously, one at a time, by a
+     * task which runs while there are events waiting, so a slow
+     * listener doesn't hold up the bus. If a connection is added and
+     * removed before the listeners have been told about it being
+     * added, they are only told about it being removed.</p>
      *
      * @param l Event handler to add.
      *
@@ -223,15 +664,34 @@ public class SystemBus implements DMPMessageListener {
         }
     }
 
-    /** Dispatch a connection change event to listeners. */
+    /** Wait until all pending connection change events have been
+     * delivered to the listeners.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flushConnectionChanges() throws InterruptedException {
+        connectionEvents.drain();
+    }
+
+    /** Queue a connection change event for the listeners. */
     private void connectionChangeDispatch(BusConnection c, int s) {
+        connectionEvents.post(c, s);
+    }
+
+    /** Deliver a connection change event to the listeners. The
+     * listener list is copied first, so that listeners may add or
+     * remove listeners. */
+    private void deliverConnectionChange(BusConnection c, int s) {
+        BusConnectionChangeListener[] ls;
         synchronized (connectionListeners) {
-            for (int i = 0; i < connectionListeners.size(); i++) {
-                BusConnectionChangeListener l = (BusConnectionChangeListener)
-                    connectionListeners.elementAt(i);
-                l.connectionChanged(c, s);
+            ls = new BusConnectionChangeListener[connectionListeners.size()];
+            for (int i = 0; i < ls.length; i++) {
+                ls[i] = (BusConnectionChangeListener) connectionListeners.elementAt(i);
             }
         }
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].connectionChanged(c, s);
+        }
     }
 
     /** <p>Get a list of active connections.</p>
@@ -247,10 +707,12 @@ public class SystemBus implements DMPMessageListener {
         return connections;
     }
 
-    /** Add a connection to the active connections. Starts a thread
+    /** Add a connection to the active connections. Starts a task
      * which monitors <code>connection</code>'s
      * <code>InputStream</code> for incoming messages, and dispatches
-     * them when they arrive, until the connection is removed.
+     * them when they arrive, until the connection is removed. If
+     * <code>connection</code> is a <code>FramedBusConnection</code>,
+     * asks it to dispatch its own incoming messages instead.
      *
      * @param connection Connection to add.
      */
@@ -267,18 +729,47 @@ public class SystemBus implements DMPMessageListener {
             connections.addElement(connection);
         }
 
+        if (connection instanceof FramedBusConnection) {
+            ((FramedBusConnection) connection).startDispatch(this);
+            connectionChangeDispatch(connection,
+                                     BusConnectionChangeListener.CONNECTION_ADDED);
+            return;
+        }
+
         synchronized (connectionMonitors) {
-            DMPMonitor m = new DMPMonitor(connection);
-            (new Thread(m)).start();
+            DMPMonitor m;
+            DMPBufferPool pool = null;
+            if (receivePoolSize > 0) {
+                pool = new DMPBufferPool(receivePoolSize);
+            }
+            if (monitorExecutor == null) {
+                m = new DMPMonitor(connection, true, pool);
+                (new Thread(m)).start();
+            } else {
+                m = new DMPMonitor(connection, false, pool);
+                monitorExecutor.execute(m);
+            }
             connectionMonitors.addElement(m);
         }
 
+        synchronized (writers) {
+            if (defaultWritePolicy != null) {
+                try {
+                    startWriter(new ConnectionWriter(this, connection,
+                                                     defaultWritePolicy));
+                } catch (IOException e) {
+                    System.err.println("SystemBus: Could not create connection writer: "
+                                       + e.getMessage());
+                }
+            }
+        }
+
         connectionChangeDispatch(connection,
                                  BusConnectionChangeListener.CONNECTION_ADDED);
     }
 
     /** Remove a connection from the active connections. Halts the
-     * monitoring thread.
+     * monitoring task.
      *
      * Note that this does <em>not</em> call
      * <code>connection.disconnect()</code>.
@@ -293,19 +784,28 @@ public class SystemBus implements DMPMessageListener {
 
         /* Remove the connection from the list of active
          * connections. */
+        boolean removed;
         synchronized (connections) {
-            connections.removeElement(connection);
+            removed = connections.removeElement(connection);
         }
 
-        synchronized (connectionMonitors) {
-            for (int i = 0; i < connectionMonitors.size(); i++) {
-                DMPMonitor m = (DMPMonitor) connectionMonitors.elementAt(i);
-                if (m.conn == connection) {
-                    m.shutdown();
-                    connectionMonitors.removeElement(m);
-                    break;
+        if (connection instanceof FramedBusConnection) {
+            if (removed) {
+                ((FramedBusConnection) connection).stopDispatch();
+            }
+        } else {
+            synchronized (connectionMonitors) {
+                for (int i = 0; i < connectionMonitors.size(); i++) {
+                    DMPMonitor m = (DMPMonitor) connectionMonitors.elementAt(i);
+                    if (m.conn == connection) {
+                        m.shutdown();
+                        connectionMonitors.removeElement(m);
+                        break;
+                    }
                 }
             }
+            ConnectionWriter w = (ConnectionWriter) writers.remove(connection);
+            if (w != null) w.close();
         }
 
         connectionChangeDispatch(connection,
@@ -317,12 +817,20 @@ public class SystemBus implements DMPMessageListener {
         BusConnection conn;
         private boolean enabled;
         private Object lock;
-
-        DMPMonitor(BusConnection connection) {
+        /** If true, yield after each message so that other
+         * connections' dedicated threads get a chance to run. */
+        private boolean yield;
+        /** Pool for received payloads, or null. */
+        private DMPBufferPool pool;
+
+        DMPMonitor(BusConnection connection, boolean yield,
+                   DMPBufferPool pool) {
             super();
             conn = connection;
             lock = new Object();
             enabled = true;
+            this.yield = yield;
+            this.pool = pool;
         }
 
         public void run() {
@@ -331,8 +839,12 @@ public class SystemBus implements DMPMessageListener {
                 DataInputStream din = new DataInputStream(in);
                 while (true) {
                     synchronized (in) {
-                        DMPMessage msg = DMPMessage.recv(din);
-                        SystemBus.this.recvDMPMessage(conn, msg);
+                        DMPMessage msg = DMPMessage.recv(din, pool);
+                        try {
+                            SystemBus.this.recvDMPMessage(conn, msg);
+                        } finally {
+                            msg.release();
+                        }
                     }
                     synchronized (lock) {
                         /* Note that shutdown() is only called from
@@ -340,7 +852,7 @@ public class SystemBus implements DMPMessageListener {
                          * again. */
                         if (!enabled) return;
                     }
-                    Thread.yield();
+                    if (yield) Thread.yield();
                 }
             } catch (IOException e) {
                 try {
@@ -397,16 +909,33 @@ public class SystemBus implements DMPMessageListener {
 
     /* ************************************************** */
 
-    /** Create a new system bus. Do not call this directly: use
-     * getSystemBus().
+    /** <p>Create a new, independent system bus.</p>
+     *
+     * <p>Most applications should use the global bus returned by
+     * <code>getSystemBus()</code>. Separate buses are useful for
+     * running several nodes in one process, for example to simulate a
+     * mesh network. Services and connections must then be attached to
+     * the right bus explicitly.</p>
      *
      * @see #getSystemBus()
      */
-    protected SystemBus() {
+    public SystemBus() {
         connections = new Vector();
         connectionMonitors = new Vector();
         connectionListeners = new Vector();
-        portBindings = new Vector();
+        connectionEvents = new ChangeEventQueue(EVENT_QUEUE_SIZE) {
+                protected void dispatch(Object object, int status) {
+                    deliverConnectionChange((BusConnection) object, status);
+                }
+            };
+        writers = new Hashtable();
+        checksumMode = CHECKSUM_OFF;
+        checksumLock = new Object();
+        corruptFrames = 0;
+        uncheckedFrames = 0;
+        defaultWritePolicy = null;
+        portTable = new DMPMessageListener[0x10000 >>> PORT_PAGE_BITS][];
+        portTableLock = new Object();
         mainAddress = null;
     }
 
@@ -0,0 +1,170 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs;
+
+/** <p>Controls how a <code>ConnectionWriter</code> coalesces
+ * outgoing DMP frames.</p>
+ *
+ * <p>Frames queued for a connection are copied into a buffer of
+ * <code>getFlushThreshold()</code> octets, and the buffer is written
+ * to the connection in a single call when:</p>
+ *
+ * <ul>
+ * <li>it is full, or the next frame would not fit;</li>
+ * <li>the send queue drains and <code>getFlushDelay()</code> is
+ * zero; or</li>
+ * <li><code>getFlushDelay()</code> milliseconds have passed since the
+ * first frame in the buffer was queued.</li>
+ * </ul>
+ *
+ * <p>A message sent with <code>SystemBus.sendDMPMessage()</code> is
+ * flushed without waiting for the delay, since the sender waits until
+ * it has been written.</p>
+ *
+ * <p>A zero flush delay never holds frames back: frames are only
+ * coalesced if they are queued while a previous write is still in
+ * progress. A non-zero delay trades latency for fewer, larger
+ * writes.</p>
+ *
+ * <p>The policy also bounds the connection's send queue. When the
+ * queue is full, <code>SystemBus.sendDMPMessage()</code> always waits
+ * for space, and its message is never discarded, but an asynchronous
+ * send is handled according to the
+ * overflow policy: it can wait (<code>OVERFLOW_BLOCK</code>), discard
+ * the oldest queued message (<code>OVERFLOW_DROP_OLDEST</code>), or
+ * discard the new message (<code>OVERFLOW_DROP_NEWEST</code>).</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ *
+ * @see SystemBus#setWritePolicy(BusConnection, WritePolicy)
+ * @see ConnectionWriter
+ */
+public class WritePolicy {
+
+    /** Default flush threshold, in octets. */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 1024;
+    /** Default maximum number of queued messages. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /** Wait for space in the send queue. */
+    public static final int OVERFLOW_BLOCK = 0;
+    /** Discard the oldest queued message to make space. */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /** Discard the message being sent. */
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+
+    private int flushThreshold;
+    private int flushDelay;
+    private int queueCapacity;
+    private int overflowPolicy;
+
+    /** Create a new <code>WritePolicy</code> with the default flush
+     * threshold, which flushes whenever the send queue drains. */
+    public WritePolicy() {
+        this(DEFAULT_FLUSH_THRESHOLD, 0);
+    }
+
+    /** Create a new <code>WritePolicy</code>.
+     *
+     * @param flushThreshold Size of the coalescing buffer, in
+     *                       octets. Frames larger than this are
+     *                       written on their own.
+     * @param flushDelay     Maximum time to hold a frame in the
+     *                       buffer, in milliseconds, or 0 to flush
+     *                       whenever the send queue drains.
+     */
+    public WritePolicy(int flushThreshold, int flushDelay) {
+        this(flushThreshold, flushDelay, DEFAULT_QUEUE_CAPACITY,
+             OVERFLOW_BLOCK);
+    }
+
+    /** Create a new <code>WritePolicy</code>.
+     *
+     * @param flushThreshold Size of the coalescing buffer, in
+     *                       octets. Frames larger than this are
+     *                       written on their own.
+     * @param flushDelay     Maximum time to hold a frame in the
+     *                       buffer, in milliseconds, or 0 to flush
+     *                       whenever the send queue drains.
+     * @param queueCapacity  Maximum number of messages in the send
+     *                       queue.
+     * @param overflowPolicy Action to take when an asynchronous send
+     *                       finds the queue full.
+     */
+    public WritePolicy(int flushThreshold, int flushDelay,
+                       int queueCapacity, int overflowPolicy) {
+        if ((flushThreshold < DMPMessage.HEADER_LENGTH) || (flushDelay < 0)
+            || (queueCapacity < 1)) {
+            throw new IllegalArgumentException("Invalid write policy.");
+        }
+        checkOverflowPolicy(overflowPolicy);
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /** Get the size of the coalescing buffer.
+     *
+     * @return the flush threshold, in octets.
+     */
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /** Get the longest time a frame may be held in the coalescing
+     * buffer.
+     *
+     * @return the flush delay in milliseconds, or 0 if the buffer is
+     *         flushed whenever the send queue drains.
+     */
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /** Get the maximum number of messages in the send queue.
+     *
+     * @return the queue capacity.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** Get the action taken when an asynchronous send finds the
+     * queue full.
+     *
+     * @return one of <code>OVERFLOW_BLOCK</code>,
+     *         <code>OVERFLOW_DROP_OLDEST</code> or
+     *         <code>OVERFLOW_DROP_NEWEST</code>.
+     */
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /** Check that a value is one of the overflow policies. */
+    static void checkOverflowPolicy(int overflowPolicy) {
+        if ((overflowPolicy != OVERFLOW_BLOCK)
+            && (overflowPolicy != OVERFLOW_DROP_OLDEST)
+            && (overflowPolicy != OVERFLOW_DROP_NEWEST)) {
+            throw new IllegalArgumentException("Invalid overflow policy.");
+        }
+    }
+}
@@ -22,46 +22,110 @@
 
 package uk.ac.cam.dbs.bundle;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import static uk.ac.cam.dbs.util.SdnvByteBufferHelper.*;
 import static uk.ac.cam.dbs.util.ByteBufferHelper.*;
 
-/** <p>A bundling protocol data bundle.</p> */
+/** <p>A bundling protocol data bundle.</p>
+ *
+ * <p>The payload of a bundle is a <code>BundlePayload</code>, which
+ * need not be held in memory. A bundle parsed from a buffer refers to
+ * its payload and endpoints in that buffer rather than copying them,
+ * so the buffer must not be changed afterwards. Endpoints are only
+ * decoded into strings when they are asked for.</p>
+ *
+ * <p>Each endpoint is also kept in its encoded form, so that encoding
+ * a bundle only has to copy it into the dictionary. Strings which
+ * occur more than once among the endpoints, such as the
+ * <code>dtn</code> scheme, are only put in the dictionary once.
+ * Endpoints are shared with other bundles through an
+ * <code>EndpointCache</code>.</p>
+ */
 public class Bundle {
 
     /** Supported bundling protocol version. */
     public static final byte VERSION = 0x06;
 
+    public static final int FLAG_FRAGMENT = 1<<0;
     public static final int FLAG_ADMIN = 1<<1;
     public static final int FLAG_CUSTODY = 1<<3;
 
+    /** Class of service for bundles which can wait. */
+    public static final int PRIORITY_BULK = 0;
+    /** Class of service for ordinary bundles. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Class of service for urgent bundles. */
+    public static final int PRIORITY_EXPEDITED = 2;
+
+    /* The class of service is held in bits 7 and 8 of the flags. */
+    private static final int PRIORITY_SHIFT = 7;
+    private static final int PRIORITY_MASK = 3 << PRIORITY_SHIFT;
+
     private static final int EP_SOURCE = 0;
     private static final int EP_DEST = 1;
     private static final int EP_REPORT = 2;
     private static final int EP_CUSTODIAN = 3;
 
+    private static final String NULL_ENDPOINT = "dtn:none";
+    private static final byte[] NULL_ENDPOINT_BYTES =
+        BundleStringCodec.toBytes(NULL_ENDPOINT);
+
     /* We only allow one non-primary block type, the payload
      * block. It's always the last block, so we set that flag. */
     private static final int PAYLOAD_BLOCK_FLAGS = 1 << 3;
     private static final int PAYLOAD_BLOCK_TYPE = 1;
 
+    /** Endpoints, or <code>null</code> where an endpoint hasn't been
+     * decoded yet. */
     private String[] endpoints;
+    /** Encoded endpoints. The scheme of endpoint <code>i</code> is
+     * held in <code>epBytes[i]</code> at <code>epOffsets[2*i]</code>,
+     * and its scheme-specific part at <code>epOffsets[2*i+1]</code>,
+     * which is the same layout as the dictionary. */
+    private byte[][] epBytes;
+    private int[] epOffsets;
+    private int[] epLengths;
+    /** Offset of each endpoint string in the dictionary, with
+     * duplicates sharing one entry, and the length of the
+     * dictionary. These are worked out when they are needed, and the
+     * length is -1 until then. */
+    private int[] dictOffsets;
+    private int dictLength;
     private int flags;
     private long timestamp;
     private long seq;
     private long lifetime;
+    /** Offset of a fragment's payload within the original payload,
+     * and the length of the original payload. */
+    private long fragmentOffset;
+    private long totalLength;
 
-    private byte[] payload;
+    private BundlePayload payload;
 
     /** Create a new, empty bundle. */
     public Bundle() {
-        String nullEndpoint = "dtn:none";
-        endpoints = new String[] {nullEndpoint, nullEndpoint,
-                                  nullEndpoint, nullEndpoint};
+        endpoints = new String[4];
+        epBytes = new byte[4][];
+        epOffsets = new int[8];
+        epLengths = new int[8];
+        dictOffsets = new int[8];
+        dictLength = -1;
+        for (int i = 0; i < 4; i++) {
+            endpoints[i] = NULL_ENDPOINT;
+            epBytes[i] = NULL_ENDPOINT_BYTES;
+            epOffsets[2*i+1] = 4;
+            epLengths[2*i] = 3;
+            epLengths[2*i+1] = 4;
+        }
         flags = 0;
 
         timestamp = 0;
         seq = 0;
         lifetime = 0;
+        fragmentOffset = 0;
+        totalLength = 0;
         payload = null;
     }
 
@@ -69,20 +133,26 @@ public class Bundle {
      *
      * <p>Equivalent to:</p>
      *
-     * <pre>Bundle(buf, 0, buf.length</pre>
+     * <pre>Bundle(buf, 0, buf.length)</pre>
      *
-     * @param buf Buffer to parse bundle data from.
+     * @param buf Buffer to parse bundle data from, which must not
+     *            change afterwards.
      */
     public Bundle(byte[] buf) {
         this(buf, 0, buf.length);
     }
 
     /** <p>Create a new <code>Bundle</code> by parsing a byte buffer.</p>
+     *
+     * <p>The buffer is not copied: the payload and endpoints of the
+     * new bundle refer to it in place, so it must not be modified
+     * while the bundle is in use.</p>
      *
      * <p><strong>Warning:</strong> The <code>length</code> parameter
      * is currently ignored.</p>
      *
-     * @param buf    Buffer to parse bundle data from.
+     * @param buf    Buffer to parse bundle data from, which must not
+     *               change afterwards.
      * @param offset Offset within buffer to start parsing.
      * @param length Maximum length of data to use.
      */
@@ -101,6 +171,48 @@ public class Bundle {
         this.flags = flags;
     }
 
+    /** <p>Get the bundle's class of service.</p>
+     *
+     * <p>This is one of <code>PRIORITY_BULK</code>,
+     * <code>PRIORITY_NORMAL</code> or
+     * <code>PRIORITY_EXPEDITED</code>. Bundles are bulk unless their
+     * priority is set. The reserved value is treated as bulk.</p>
+     *
+     * @return the bundle's priority.
+     */
+    public int getPriority() {
+        int p = (flags & PRIORITY_MASK) >> PRIORITY_SHIFT;
+        return (p > PRIORITY_EXPEDITED) ? PRIORITY_BULK : p;
+    }
+
+    /** Get the class of service of an encoded bundle, without
+     * decoding the rest of it.
+     *
+     * @param buf Encoded bundle.
+     *
+     * @return the bundle's priority.
+     */
+    static int getPriority(byte[] buf) {
+        if (buf[0] != VERSION)
+            throw new IllegalArgumentException("Unrecognized bundle version");
+        int p = ((int) sdnvFromBytes(buf, 1) & PRIORITY_MASK) >> PRIORITY_SHIFT;
+        return (p > PRIORITY_EXPEDITED) ? PRIORITY_BULK : p;
+    }
+
+    /** Set the bundle's class of service. This is held in the bundle
+     * processing control flags.
+     *
+     * @param priority One of <code>PRIORITY_BULK</code>,
+     *                 <code>PRIORITY_NORMAL</code> or
+     *                 <code>PRIORITY_EXPEDITED</code>.
+     */
+    public void setPriority(int priority) {
+        if ((priority < PRIORITY_BULK) || (priority > PRIORITY_EXPEDITED)) {
+            throw new IllegalArgumentException("Bad bundle priority: " + priority);
+        }
+        flags = (flags & ~PRIORITY_MASK) | (priority << PRIORITY_SHIFT);
+    }
+
     /** Get the bundle creation timestamp. This is in seconds after
      * 2000-01-01 00:00 UTC. */
     public long getTimestamp() {
@@ -133,144 +245,411 @@ public class Bundle {
         this.lifetime = lifetime;
     }
 
+    /** Test whether the bundle is a fragment of a larger bundle. */
+    public boolean isFragment() {
+        return (flags & FLAG_FRAGMENT) != 0;
+    }
+
+    /** Get the offset of a fragment's payload within the payload of
+     * the original bundle. */
+    public long getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /** Get the length of the original bundle's payload, if the bundle
+     * is a fragment. */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /** <p>Create a fragment of the bundle.</p>
+     *
+     * <p>The fragment has the same endpoints, flags, timestamp,
+     * sequence number and lifetime as the bundle, and part of its
+     * payload, which is not copied. If the bundle is itself a fragment, the new
+     * fragment is a fragment of the same original bundle.</p>
+     *
+     * @param offset Offset of the fragment within this bundle's
+     *               payload.
+     * @param length Length of the fragment's payload.
+     *
+     * @return the fragment.
+     */
+    Bundle fragment(int offset, int length) {
+        Bundle f = new Bundle();
+        copyEndpoints(f);
+        f.flags = flags | FLAG_FRAGMENT;
+        f.timestamp = timestamp;
+        f.seq = seq;
+        f.lifetime = lifetime;
+        if (isFragment()) {
+            f.fragmentOffset = fragmentOffset + offset;
+            f.totalLength = totalLength;
+        } else {
+            f.fragmentOffset = offset;
+            f.totalLength = payload.getLength();
+        }
+        f.payload = payload.slice(offset, length);
+        return f;
+    }
+
+    /** Create the original bundle from a fragment and the whole of
+     * the original payload.
+     *
+     * @param payload Reassembled payload, which is not copied.
+     *
+     * @return a bundle like this one, but which isn't a fragment.
+     */
+    Bundle reassemble(byte[] payload) {
+        Bundle b = new Bundle();
+        copyEndpoints(b);
+        b.flags = flags & ~FLAG_FRAGMENT;
+        b.timestamp = timestamp;
+        b.seq = seq;
+        b.lifetime = lifetime;
+        b.payload = BundlePayload.wrap(payload);
+        return b;
+    }
+
     /** Get the source endpoint. */
     public String getSourceEndpoint() {
-        return endpoints[EP_SOURCE];
+        return getEndpoint(EP_SOURCE);
     }
 
     /** Set the source endpoint. */
     public void setSourceEndpoint(String endpoint) {
-        endpoints[EP_SOURCE] = endpoint;
+        setEndpoint(EP_SOURCE, endpoint);
     }
 
     /** Get the destination endpoint. */
     public String getDestEndpoint() {
-        return endpoints[EP_DEST];
+        return getEndpoint(EP_DEST);
     }
 
     /** Set the destination endpoint. */
     public void setDestEndpoint(String endpoint) {
-        endpoints[EP_DEST] = endpoint;
+        setEndpoint(EP_DEST, endpoint);
     }
 
     /** Get the report-to endpoint. */
     public String getReportToEndpoint() {
-        return endpoints[EP_REPORT];
+        return getEndpoint(EP_REPORT);
     }
 
     /** Set the report-to endpoint. */
     public void setReportToEndpoint(String endpoint) {
-        endpoints[EP_REPORT] = endpoint;
+        setEndpoint(EP_REPORT, endpoint);
     }
 
     /** Get the current custodian endpoint. */
     public String getCustodianEndpoint() {
-        return endpoints[EP_CUSTODIAN];
+        return getEndpoint(EP_CUSTODIAN);
     }
 
     /** Set the current custodian endpoint. */
     public void setCustodianEndpoint(String endpoint) {
-        endpoints[EP_CUSTODIAN] = endpoint;
+        setEndpoint(EP_CUSTODIAN, endpoint);
+    }
+
+    /* Gets an endpoint, decoding it if it hasn't been already. Two
+     * threads may both decode it, which does no harm. */
+    private String getEndpoint(int i) {
+        String ep = endpoints[i];
+        if (ep != null) return ep;
+
+        /* An endpoint which occurs twice in the bundle usually shares
+         * its dictionary entries. */
+        for (int j = 0; j < 4; j++) {
+            if ((j != i) && (endpoints[j] != null) && sameEndpoint(i, j)) {
+                ep = endpoints[j];
+                break;
+            }
+        }
+        if (ep == null) {
+            ep = EndpointCache.decode(epBytes[i],
+                                      epOffsets[2*i], epLengths[2*i],
+                                      epOffsets[2*i+1], epLengths[2*i+1]);
+        }
+        endpoints[i] = ep;
+        return ep;
+    }
+
+    /* Tests whether two endpoints are held in the same place. */
+    private boolean sameEndpoint(int i, int j) {
+        return (epBytes[i] == epBytes[j])
+            && (epOffsets[2*i] == epOffsets[2*j])
+            && (epLengths[2*i] == epLengths[2*j])
+            && (epOffsets[2*i+1] == epOffsets[2*j+1])
+            && (epLengths[2*i+1] == epLengths[2*j+1]);
+    }
+
+    /** Sets an endpoint, and encodes it ready for the dictionary. */
+    private void setEndpoint(int i, String endpoint) {
+        byte[] ascii;
+        int splitAt;
+        EndpointCache.Entry e = EndpointCache.get(endpoint);
+        if (e != null) {
+            ascii = e.ascii;
+            splitAt = e.splitAt;
+        } else {
+            ascii = BundleStringCodec.toBytes(endpoint);
+            for (splitAt = 0; splitAt < ascii.length; splitAt++) {
+                if (ascii[splitAt] == ':') break;
+            }
+            if (splitAt == ascii.length) {
+                throw new IllegalArgumentException("Malformed endpoint: "
+                                                   + endpoint);
+            }
+            EndpointCache.put(endpoint, ascii, splitAt);
+        }
+        endpoints[i] = endpoint;
+        epBytes[i] = ascii;
+        dictLength = -1;
+        epOffsets[2*i] = 0;
+        epLengths[2*i] = splitAt;
+        epOffsets[2*i+1] = splitAt + 1;
+        epLengths[2*i+1] = ascii.length - splitAt - 1;
     }
 
-    /** Get the bundle payload. */
+    /* Copies the endpoints, encoded or not, to another bundle. */
+    private void copyEndpoints(Bundle b) {
+        for (int i = 0; i < 4; i++) {
+            b.endpoints[i] = endpoints[i];
+            b.epBytes[i] = epBytes[i];
+        }
+        for (int i = 0; i < 8; i++) {
+            b.epOffsets[i] = epOffsets[i];
+            b.epLengths[i] = epLengths[i];
+        }
+    }
+
+    /** <p>Get the bundle payload as an array.</p>
+     *
+     * <p>If the payload isn't held in an array of its own, it is
+     * copied into one, which is kept and returned by later calls. Use
+     * <code>getBundlePayload()</code> to read a large payload without
+     * copying all of it.</p>
+     *
+     * @return the payload, or <code>null</code> if it hasn't been
+     *         set.
+     *
+     * @throws IllegalStateException if the payload could not be
+     *                               read.
+     */
     public byte[] getPayload() {
-        return payload;
+        if (payload == null) return null;
+        byte[] data = payload.getArray();
+        if (data == null) {
+            data = new byte[payload.getLength()];
+            readPayload(data, 0);
+            payload = BundlePayload.wrap(data);
+        }
+        return data;
     }
 
-    /** Set the bundle payload. */
+    /** Set the bundle payload. The array is not copied. */
     public void setPayload(byte[] payload) {
+        this.payload = (payload != null) ? BundlePayload.wrap(payload) : null;
+    }
+
+    /** Get the bundle payload, without copying it.
+     *
+     * @return the payload, or <code>null</code> if it hasn't been
+     *         set.
+     */
+    public BundlePayload getBundlePayload() {
+        return payload;
+    }
+
+    /** Set the bundle payload.
+     *
+     * @param payload Payload, which must not change afterwards.
+     */
+    public void setPayload(BundlePayload payload) {
         this.payload = payload;
     }
 
-    /** Format the bundle as a byte buffer for transmission. */
-    public byte[] toBytes() {
-        /* 1. Calculate dictionary length & offsets. */
-        /* FIXME this does not detect duplicate strings in the
-         * dictionary. */
-        String[] dictStrings = new String[8];
-        int[] dictOffsets = new int[8];
-        int dictSize = 0; /* Including null bytes */
-        for (byte i = 0; i < 4; i++) {
-            String[] parts = splitEndpoint(endpoints[i]);
-            dictOffsets[2*i] = dictSize;
-            dictSize += parts[0].length() + 1;
-            dictStrings[2*i] = parts[0];
-            dictOffsets[2*i+1] = dictSize;
-            dictSize += parts[1].length() + 1;
-            dictStrings[2*i+1] = parts[1];
-        }
+    /** Get the length of the bundle payload. */
+    public int getPayloadLength() {
+        return payload.getLength();
+    }
 
-        /* 2. Calculate SDNV lengths. There are 14 SDNVs in the
-         * primary block, including the block length (which can only
-         * be calculated after all the other SDNV lengths have been
-         * calculated) and the flags SDNV. There are 2 SDNVs in the payload block. */
-        byte[] sdnvSizes = new byte[16];
-        sdnvSizes[0] = (byte) getSdnvLength(flags); /* Flags */
-        for (byte i = 0; i < 8; i++) { /* Dictionary offsets, x8 */
-            sdnvSizes[i+2] = (byte) getSdnvLength(dictOffsets[i]);
+    /* Copies the whole payload into a buffer. */
+    private void readPayload(byte[] buf, int off) {
+        try {
+            payload.read(0, buf, off, payload.getLength());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read bundle payload: "
+                                            + e.getMessage());
         }
-        sdnvSizes[10] = (byte) getSdnvLength(timestamp);
-        sdnvSizes[11] = (byte) getSdnvLength(seq);
-        sdnvSizes[12] = (byte) getSdnvLength(lifetime);
-        sdnvSizes[13] = (byte) getSdnvLength(dictSize);
-
-        sdnvSizes[14] = (byte) getSdnvLength(PAYLOAD_BLOCK_FLAGS);
-        sdnvSizes[15] = (byte) getSdnvLength(payload.length);
-        /* Calculate the total size of all of the primary block
-         * SDNVs. We need this to calculate the primary block length
-         * field. */
-        int primaryBlockLength = 0;
-        for (byte i = 2; i < 14; i++) {
-            primaryBlockLength += sdnvSizes[i];
+    }
+
+    /** <p>Write the bundle to a stream for transmission.</p>
+     *
+     * <p>The headers are written first, followed by the payload,
+     * which is written directly from where it is held rather than
+     * being copied into a buffer with the headers.</p>
+     *
+     * @param out Stream to write to.
+     *
+     * @throws IOException if the payload could not be read, or the
+     *                     stream could not be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int payloadLength = payload.getLength();
+        byte[] headers = new byte[getHeaderLength(payloadLength)];
+        writeHeaders(headers, 0, payloadLength);
+        out.write(headers);
+        payload.writeTo(out);
+    }
+
+    /** Format the bundle as a byte buffer for transmission.
+     *
+     * @throws IllegalStateException if the payload could not be
+     *                               read.
+     */
+    public byte[] toBytes() {
+        int payloadLength = payload.getLength();
+        byte[] result = new byte[getHeaderLength(payloadLength)
+                                 + payloadLength];
+        readPayload(result, writeHeaders(result, 0, payloadLength));
+        return result;
+    }
+
+    /** <p>Format the bundle for transmission into a buffer supplied
+     * by the caller.</p>
+     *
+     * <p>Each octet is written once, straight into
+     * <code>buf</code>, so a buffer can be reused to encode many
+     * bundles. Use <code>getEncodedLength()</code> to find out how
+     * much room is needed.</p>
+     *
+     * @param buf Buffer to write the bundle into.
+     * @param off Offset within <code>buf</code> to start writing.
+     *
+     * @return the number of octets written.
+     *
+     * @throws IndexOutOfBoundsException if the bundle doesn't fit.
+     * @throws IllegalStateException     if the payload could not be
+     *                                   read.
+     */
+    public int toBytes(byte[] buf, int off) {
+        int payloadLength = payload.getLength();
+        int length = getHeaderLength(payloadLength) + payloadLength;
+        BundlePayload.checkRange(off, length, buf.length);
+        readPayload(buf, writeHeaders(buf, off, payloadLength));
+        return length;
+    }
+
+    /** Get the length of the bundle once formatted for
+     * transmission, in octets. */
+    public int getEncodedLength() {
+        int payloadLength = payload.getLength();
+        return getHeaderLength(payloadLength) + payloadLength;
+    }
+
+    /* Gets the length of the dictionary, laying it out if
+     * necessary. */
+    private int getDictionaryLength() {
+        if (dictLength < 0) layOutDictionary();
+        return dictLength;
+    }
+
+    /** Works out where each endpoint string goes in the dictionary,
+     * giving strings which occur more than once a single nul
+     * terminated entry. */
+    private void layOutDictionary() {
+        int length = 0;
+        for (int i = 0; i < 8; i++) {
+            int j;
+            for (j = 0; j < i; j++) {
+                if (sameString(i, j)) break;
+            }
+            if (j < i) {
+                dictOffsets[i] = dictOffsets[j];
+            } else {
+                dictOffsets[i] = length;
+                length += epLengths[i] + 1;
+            }
         }
-        primaryBlockLength += dictSize;
+        dictLength = length;
+    }
 
-        /* We can now calculate the size of the SDNV used to hold block length */
-        sdnvSizes[1] = (byte) getSdnvLength(primaryBlockLength);
+    /* Tests whether two endpoint strings have the same contents. */
+    private boolean sameString(int i, int j) {
+        int len = epLengths[i];
+        if (len != epLengths[j]) return false;
+        byte[] a = epBytes[i >> 1];
+        byte[] b = epBytes[j >> 1];
+        int ai = epOffsets[i];
+        int bj = epOffsets[j];
+        if ((a == b) && (ai == bj)) return true;
+        for (int k = 0; k < len; k++) {
+            if (a[ai + k] != b[bj + k]) return false;
+        }
+        return true;
+    }
 
-        /* 3. Calculate length of & allocate result buffer */
-        int bundleSize = 1; /* Length of version octet */
-        for (byte i = 0; i < 16; i++) { /* SDNVs */
-            bundleSize += sdnvSizes[i];
+    /* Gets the length of the primary block after the block length
+     * field. */
+    private int getPrimaryBlockLength(int dictLength) {
+        int length = getSdnvLength(timestamp) + getSdnvLength(seq)
+            + getSdnvLength(lifetime) + getSdnvLength(dictLength) + dictLength;
+        for (int i = 0; i < 8; i++) {
+            length += getSdnvLength(dictOffsets[i]);
         }
-        bundleSize += dictSize + payload.length + 1; /* Dictionary & payload & payload block type */
-        byte[] result = new byte[bundleSize];
+        if (isFragment()) {
+            length += getSdnvLength(fragmentOffset) + getSdnvLength(totalLength);
+        }
+        return length;
+    }
+
+    /* Gets the length of everything up to the payload itself. */
+    private int getHeaderLength(int payloadLength) {
+        int blockLength = getPrimaryBlockLength(getDictionaryLength());
+        return 1 + getSdnvLength(flags) + getSdnvLength(blockLength)
+            + blockLength + 1 + getSdnvLength(PAYLOAD_BLOCK_FLAGS)
+            + getSdnvLength(payloadLength);
+    }
 
-        /* 4. Copy strings & SDNVs into buffer */
-        int resultOfs = 0;
+    /** Writes everything up to the payload itself, returning the
+     * offset at which the payload should be written. */
+    private int writeHeaders(byte[] buf, int off, int payloadLength) {
+        int ofs = off;
+        int dictLength = getDictionaryLength();
 
         /* Primary block */
-        result[resultOfs++] = VERSION; /* Bundle protocol version */
-        resultOfs += sdnvToBytes(flags, result, resultOfs);
-        resultOfs += sdnvToBytes(primaryBlockLength, result, resultOfs);
-        for (byte i = 0; i < 8; i++) {
-            resultOfs += sdnvToBytes(dictOffsets[i], result, resultOfs);
+        buf[ofs++] = VERSION; /* Bundle protocol version */
+        ofs += sdnvToBytes(flags, buf, ofs);
+        ofs += sdnvToBytes(getPrimaryBlockLength(dictLength), buf, ofs);
+        for (int i = 0; i < 8; i++) {
+            ofs += sdnvToBytes(dictOffsets[i], buf, ofs);
         }
-        resultOfs += sdnvToBytes(timestamp, result, resultOfs);
-        resultOfs += sdnvToBytes(seq, result, resultOfs);
-        resultOfs += sdnvToBytes(lifetime, result, resultOfs);
-        resultOfs += sdnvToBytes(dictSize, result, resultOfs);
-
-        /* Copy endpoint dictionary into buffer */
-        for (byte i = 0; i < dictStrings.length; i++) {
-            byte[] ascii = BundleStringCodec.toBytes(dictStrings[i]);
-            for (int j = 0; j < ascii.length; j++) {
-                result[resultOfs++] = ascii[j];
-            }
-            result[resultOfs++] = 0; /* Null terminate each string */
+        ofs += sdnvToBytes(timestamp, buf, ofs);
+        ofs += sdnvToBytes(seq, buf, ofs);
+        ofs += sdnvToBytes(lifetime, buf, ofs);
+        ofs += sdnvToBytes(dictLength, buf, ofs);
+
+        /* Copy endpoint dictionary into buffer. Duplicates refer back
+         * to a string which has already been written. */
+        int dictStart = ofs;
+        for (int i = 0; i < 8; i++) {
+            if (dictOffsets[i] < ofs - dictStart) continue;
+            System.arraycopy(epBytes[i >> 1], epOffsets[i],
+                             buf, ofs, epLengths[i]);
+            ofs += epLengths[i];
+            buf[ofs++] = 0; /* Null terminate each string */
         }
-
-        /* Payload block */
-        result[resultOfs++] = PAYLOAD_BLOCK_TYPE;
-        resultOfs += sdnvToBytes(PAYLOAD_BLOCK_FLAGS, result, resultOfs);
-        resultOfs += sdnvToBytes(payload.length, result, resultOfs);
-        /* Copy payload into buffer */
-        for (int i = 0; i < payload.length; i++) {
-            result[resultOfs++] = payload[i];
+        if (isFragment()) {
+            ofs += sdnvToBytes(fragmentOffset, buf, ofs);
+            ofs += sdnvToBytes(totalLength, buf, ofs);
         }
 
-        return result;
+        /* Payload block */
+        buf[ofs++] = PAYLOAD_BLOCK_TYPE;
+        ofs += sdnvToBytes(PAYLOAD_BLOCK_FLAGS, buf, ofs);
+        ofs += sdnvToBytes(payloadLength, buf, ofs);
+        return ofs;
     }
 
     /** Used by the Bundle(byte[], int, int) constructor. */
@@ -288,7 +667,8 @@ public class Bundle {
         int primaryBlockLength = (int) sdnvFromBytes(buf, offset);
         offset += getSdnvLength(buf, offset);
 
-        int[] dictOffsets = new int[8];
+        /* The dictionary offsets are laid out again when encoding, so
+         * their array can be used to hold them meanwhile */
         for (byte i = 0; i < 8; i++) {
             dictOffsets[i] = (int) sdnvFromBytes(buf, offset);
             offset += getSdnvLength(buf, offset);
@@ -306,6 +686,30 @@ public class Bundle {
         int dictOffset = offset;
         offset += dictLength;
 
+        /* Find the endpoints in the dictionary, but leave decoding
+         * them until they're needed */
+        for (byte i = 0; i < 8; i++) {
+            if ((dictOffsets[i] < 0) || (dictOffsets[i] >= dictLength))
+                throw new IllegalArgumentException("Bad dictionary offset");
+            int start = dictOffset + dictOffsets[i];
+            int end = start;
+            while ((end < offset) && (buf[end] != 0)) end++;
+            epOffsets[i] = start;
+            epLengths[i] = end - start;
+        }
+        for (byte i = 0; i < 4; i++) {
+            endpoints[i] = null;
+            epBytes[i] = buf;
+        }
+        this.dictLength = -1;
+
+        if ((flags & FLAG_FRAGMENT) != 0) {
+            fragmentOffset = sdnvFromBytes(buf, offset);
+            offset += getSdnvLength(buf, offset);
+            totalLength = sdnvFromBytes(buf, offset);
+            offset += getSdnvLength(buf, offset);
+        }
+
         /* Payload block */
         int blockType = buf[offset++];
         if (blockType != PAYLOAD_BLOCK_TYPE)
@@ -319,34 +723,8 @@ public class Bundle {
         int payloadLength = (int) sdnvFromBytes(buf, offset);
         offset += getSdnvLength(buf, offset);
 
-        payload = new byte[payloadLength];
-        for (int i = 0; i < payloadLength; i++) {
-            payload[i] = buf[offset++];
-        }
-
-        /* Assemble endpoint strings */
-        for (byte i = 0; i < 4; i++) {
-            String scheme = BundleStringCodec.fromTerminatedBytes(buf,
-                                                dictOffset + dictOffsets[2*i],
-                                                dictLength - dictOffsets[2*i]);
-            String ssp = BundleStringCodec.fromTerminatedBytes(buf,
-                                             dictOffset + dictOffsets[2*i+1],
-                                             dictLength - dictOffsets[2*i+1]);
-            endpoints[i] = scheme + ":" + ssp;
-        }
-    }
-
-    /** Split an endpoint into scheme and scheme-specific parts. */
-    private static String[] splitEndpoint(String ep) {
-        int splitAt = ep.indexOf(':');
-        if (splitAt < 0) {
-            throw new IllegalArgumentException("Malformed endpoint: " + ep);
-        }
-        String[] results = new String[2];
-        results[0] = ep.substring(0,splitAt);
-        results[1] = ep.substring(splitAt+1);
-
-        return results;
+        /* Refer to the payload in place */
+        payload = BundlePayload.wrap(buf, offset, payloadLength);
     }
 
     public boolean equals(Object o) {
@@ -357,6 +735,8 @@ public class Bundle {
             || (getTimestamp() != x.getTimestamp())
             || (getSequence() != x.getSequence())
             || (getLifetime() != x.getLifetime())
+            || (getFragmentOffset() != x.getFragmentOffset())
+            || (getTotalLength() != x.getTotalLength())
             || (!getSourceEndpoint().equals(x.getSourceEndpoint()))
             || (!getDestEndpoint().equals(x.getDestEndpoint()))
             || (!getReportToEndpoint().equals(x.getReportToEndpoint()))
@@ -366,6 +746,9 @@ public class Bundle {
 
         byte[] payload = getPayload();
         byte[] payloadx = x.getPayload();
+        if ((payload == null) || (payloadx == null)) {
+            return payload == payloadx;
+        }
         if (payload.length != payloadx.length) return false;
         for (int i = 0; i < payload.length; i++) {
             if (payload[i] != payloadx[i]) return false;
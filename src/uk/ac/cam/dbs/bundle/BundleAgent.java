@@ -20,41 +20,143 @@
 
 package uk.ac.cam.dbs.bundle;
 
+import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 import java.io.IOException;
 
 import uk.ac.cam.dbs.*;
 
-/** Agent for storing, forwarding and delivering bundles. */
+/** <p>Agent for storing, forwarding and delivering bundles.</p>
+ *
+ * <p>The agent supports custody transfer. When it forwards a bundle
+ * which requests custody transfer, it keeps the bundle, and sends it
+ * again periodically until the next node signals that it has taken
+ * custody. When it receives such a bundle, it takes custody and
+ * signals the previous custodian. Signals to the same custodian are
+ * gathered for a short time and sent together as an aggregate
+ * custody signal.</p>
+ *
+ * <p>Bundles with large payloads are split into fragments when they
+ * are sent, each of which is forwarded separately as soon as it has
+ * been made. The fragments are reassembled at the destination
+ * node.</p>
+ */
 public class BundleAgent extends AbstractDMPDaemon {
 
     private static final int BUNDLE_DEFER = 1 << 1;
+    /** Bundle has been forwarded, and is waiting for a custody
+     * signal. */
+    private static final int BUNDLE_CUSTODY = 1 << 2;
 
-    private static final int MAX_BUNDLES = 32;
+    /** Default storage capacity, in bytes. */
+    private static final int DEFAULT_STORAGE_CAPACITY = 16384;
     private static final int DMP_PORT = 4556;
     private static final int DEFER_TIME_MS = 1000;
+    /** Maximum number of next hops to try when forwarding a bundle */
+    private static final int MAX_FORWARD_HOPS = 4;
 
     private static final String NULL_ENDPOINT = "dtn:none";
+    /** Service part of the endpoint for administrative records. */
+    private static final String ADMIN_SERVICE = "/admin";
 
-    private Vector bundleQueue;
-    private Vector endpointRegistrations;
+    /** Default time to wait for a custody signal before sending a
+     * bundle again, in milliseconds. */
+    private static final int DEFAULT_CUSTODY_TIMEOUT = 5000;
+    /** Time to gather custody signals for, in milliseconds. */
+    private static final int SIGNAL_DELAY_MS = 100;
+    /** Number of bundles after which a custody signal is sent
+     * without waiting. */
+    private static final int MAX_SIGNAL_BUNDLES = 64;
+    /** Lifetime of custody signal bundles, in seconds. */
+    private static final int SIGNAL_LIFETIME = 60;
+    /** Number of released custody bundles to remember, so that
+     * retransmissions of them can be recognised. */
+    private static final int RECENT_CUSTODY = 64;
 
-    private Object queueMonitorNotifier;
+    /* Ways of waiting for room to store a bundle */
+    private static final int WAIT_NONE = 0;
+    /** Wait for room, for up to <code>SEND_WAIT_MS</code>. */
+    private static final int WAIT_ROOM = 1;
+
+    /** Largest payload which leaves room for the rest of the bundle
+     * in a DMP message. */
+    private static final int MAX_FRAGMENT_SIZE = 61440;
+    /** Default largest payload to send in one bundle, in bytes. Only
+     * bundles which won't fit in a DMP message are fragmented, so
+     * that nodes which can't reassemble fragments still receive
+     * everything they could before. */
+    private static final int DEFAULT_FRAGMENT_SIZE = MAX_FRAGMENT_SIZE;
+    /** Time to wait for room to store a bundle being sent, or each
+     * of its fragments, in milliseconds. */
+    private static final int SEND_WAIT_MS = 10000;
+    /** Default space for reassembling bundles, in bytes. */
+    private static final int DEFAULT_REASSEMBLY_CAPACITY = 16384;
+    /** Default time to wait for the next fragment of a bundle, in
+     * milliseconds. */
+    private static final int DEFAULT_REASSEMBLY_TIMEOUT = 30000;
+
+    private BundleStore store;
+    private volatile BundleLog log;
+    private Vector endpointRegistrations;
+    private Reassembler reassembler;
+    private volatile int fragmentSize;
+    /** Thread which processes bundles, which must never wait for
+     * room in the store. */
+    private volatile Thread processingThread;
 
     private TimeProvider localTime;
     private TimeProvider networkTime;
     private RoutingProvider routing;
     private Object routingLock;
+    /** Next hops for the bundle being forwarded. Only used by the
+     * processing thread. */
+    private BusConnection[] forwardHops;
 
     private long lastTimestamp;
     private int lastSeq;
     private Object timestampLock;
 
+    /* Custody transfer state, guarded by custodyLock */
+    private Object custodyLock;
+    /** Bundles this agent is custodian of, by identity. */
+    private Hashtable custody;
+    /** Recently released custody bundles, oldest first, in a
+     * ring. */
+    private BundleId[] recentCustody;
+    private int recentNext;
+    private Hashtable recentCustodySet;
+    /** Custody signals waiting to be sent, by destination and
+     * status. */
+    private Hashtable pendingSignals;
+    /** Local time at which to send the pending signals. */
+    private long signalDue;
+    private long retransmitCount;
+    private long signalCount;
+    private volatile int custodyTimeout;
+
+    /** Create a new <code>BundleAgent</code>. */
     public BundleAgent() {
-        super(DMP_PORT);
-        bundleQueue = new Vector(MAX_BUNDLES);
+        this(SystemBus.getSystemBus());
+    }
+
+    /** Create a new <code>BundleAgent</code> attached to a particular
+     * bus.
+     *
+     * @param bus Bus to send and receive bundles over.
+     */
+    public BundleAgent(SystemBus bus) {
+        super(bus, DMP_PORT);
+        store = new BundleStore(DEFAULT_STORAGE_CAPACITY) {
+                void dropped(BundleRecord rec) {
+                    /* Bundles in custody are never dropped */
+                    forget(rec);
+                }
+            };
         endpointRegistrations = new Vector();
-        queueMonitorNotifier = new Object();
+        reassembler = new Reassembler(DEFAULT_REASSEMBLY_CAPACITY,
+                                      DEFAULT_REASSEMBLY_TIMEOUT);
+        fragmentSize = DEFAULT_FRAGMENT_SIZE;
 
         localTime = TimeProvider.systemTimeProvider();
         /* Use the system clock by default. */
@@ -67,13 +169,31 @@ public class BundleAgent extends AbstractDMPDaemon {
                 }
             };
         routingLock = new Object();
+        forwardHops = new BusConnection[MAX_FORWARD_HOPS];
 
         timestampLock = new Object();
+
+        custodyLock = new Object();
+        custody = new Hashtable();
+        recentCustody = new BundleId[RECENT_CUSTODY];
+        recentNext = 0;
+        recentCustodySet = new Hashtable();
+        pendingSignals = new Hashtable();
+        signalDue = (1L << 63) ^ -1; /* Max long */
+        retransmitCount = 0;
+        signalCount = 0;
+        custodyTimeout = DEFAULT_CUSTODY_TIMEOUT;
     }
 
     /** <p>Set the routing provider to be used when forwarding
      * bundles.</p>
      *
+     * <p>If <code>routing</code> is a
+     * <code>MultipathRoutingProvider</code>, bundles are spread over
+     * equal-cost routes according to their source and destination
+     * endpoints, and if sending to the chosen next hop fails the
+     * other next hops are tried before the bundle is deferred.</p>
+     *
      * <p>The default routing provider fails to generate a route to
      * any address.</p>
      *
@@ -93,6 +213,247 @@ public class BundleAgent extends AbstractDMPDaemon {
         return routing;
     }
 
+    /** <p>Set the amount of storage available for bundles.</p>
+     *
+     * <p>Storage is measured in bytes of encoded bundle. When it is
+     * full, a new bundle is only accepted if there are enough bundles
+     * of lower priority to drop to make room for it. Bundles this
+     * agent is custodian of are never dropped, and may only use
+     * seven eighths of the capacity, leaving room for custody
+     * signals. When they have used it, bundles arriving with custody
+     * transfer are refused with a "depleted storage" custody signal.
+     * If the capacity
+     * is reduced below the amount already in use, bundles are not
+     * dropped, but no more are accepted until there is room.</p>
+     *
+     * <p>The default capacity is 16 KiB, which suits a device with
+     * little memory. Storage is only allocated for the bundles
+     * actually held, so a device with more memory can raise it, for
+     * example to hold the fragments of large bundles.</p>
+     *
+     * @param bytes Storage capacity, in bytes.
+     */
+    public void setStorageCapacity(int bytes) {
+        if (bytes < 0) throw new IllegalArgumentException();
+        store.setCapacity(bytes);
+    }
+
+    /** <p>Get the amount of storage available for bundles.</p>
+     *
+     * @return Storage capacity, in bytes.
+     */
+    public int getStorageCapacity() {
+        return store.getCapacity();
+    }
+
+    /** <p>Get the amount of storage in use.</p>
+     *
+     * @return Bytes of bundles currently held.
+     */
+    public int getStorageUsed() {
+        return store.getUsed();
+    }
+
+    /** <p>Get the number of bundles held.</p>
+     *
+     * @return Number of bundles waiting to be delivered or
+     *         forwarded.
+     */
+    public int getBundleCount() {
+        return store.size();
+    }
+
+    /** <p>Get the number of bundles which have been dropped to make
+     * room for bundles of higher priority.</p>
+     *
+     * @return Number of bundles dropped.
+     */
+    public long getDroppedBundleCount() {
+        return store.getDroppedCount();
+    }
+
+    /** <p>Set the largest payload to send in one bundle.</p>
+     *
+     * <p>A bundle with a larger payload is split into fragments, each
+     * with a payload no larger than this, when it is sent. The size
+     * can't be more than 60 KiB, so that each fragment fits in a DMP
+     * message. The fragments use space in the store, so the size
+     * should be well below the storage capacity.</p>
+     *
+     * <p>The default is 60 KiB, so that only bundles too large for
+     * one DMP message are fragmented. Older nodes can't parse
+     * fragments, so a smaller size should only be used when every
+     * node on the route understands them.</p>
+     *
+     * @param bytes Largest payload size, in bytes.
+     */
+    public void setFragmentSize(int bytes) {
+        if ((bytes <= 0) || (bytes > MAX_FRAGMENT_SIZE)) {
+            throw new IllegalArgumentException();
+        }
+        fragmentSize = bytes;
+    }
+
+    /** <p>Get the largest payload to send in one bundle.</p>
+     *
+     * @return Largest payload size, in bytes.
+     */
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /** <p>Set the amount of memory available for reassembling bundles
+     * from fragments.</p>
+     *
+     * <p>Memory is needed for the whole payload of each bundle being
+     * reassembled, from when its first fragment arrives. A bundle
+     * with a larger payload than this can't be reassembled. Its
+     * fragments are discarded, and if they request custody transfer,
+     * custody of them is refused, so that the sender knows it has not
+     * been delivered. If there isn't room for a new bundle, the
+     * bundles which have gone longest without a fragment arriving are
+     * abandoned.</p>
+     *
+     * <p>The default is 16 KiB, which suits a device with little
+     * memory. The whole payload of a bundle is allocated when its
+     * first fragment arrives, so this should only be raised on a
+     * device which can spare that much memory at once.</p>
+     *
+     * @param bytes Reassembly capacity, in bytes.
+     */
+    public void setReassemblyCapacity(int bytes) {
+        if (bytes < 0) throw new IllegalArgumentException();
+        reassembler.setCapacity(bytes);
+    }
+
+    /** <p>Get the amount of memory available for reassembling
+     * bundles.</p>
+     *
+     * @return Reassembly capacity, in bytes.
+     */
+    public int getReassemblyCapacity() {
+        return reassembler.getCapacity();
+    }
+
+    /** <p>Set how long to wait for the next fragment of a bundle
+     * before abandoning its reassembly.</p>
+     *
+     * <p>The default is 30 seconds.</p>
+     *
+     * @param ms Timeout, in milliseconds.
+     */
+    public void setReassemblyTimeout(int ms) {
+        if (ms <= 0) throw new IllegalArgumentException();
+        reassembler.setTimeout(ms);
+    }
+
+    /** <p>Get how long to wait for the next fragment of a bundle.</p>
+     *
+     * @return Timeout, in milliseconds.
+     */
+    public int getReassemblyTimeout() {
+        return reassembler.getTimeout();
+    }
+
+    /** <p>Get the number of bundles which could not be reassembled,
+     * because they were too big, not all of their fragments arrived
+     * in time, or they were abandoned to make room for others.</p>
+     *
+     * @return Number of abandoned bundles.
+     */
+    public long getAbandonedReassemblyCount() {
+        return reassembler.getAbandonedCount();
+    }
+
+    /** <p>Set how long to wait for a custody signal after
+     * forwarding a bundle which requests custody transfer, before
+     * sending it again.</p>
+     *
+     * <p>The default is 5 seconds.</p>
+     *
+     * @param ms Timeout, in milliseconds.
+     */
+    public void setCustodyTimeout(int ms) {
+        if (ms <= 0) throw new IllegalArgumentException();
+        custodyTimeout = ms;
+    }
+
+    /** <p>Get how long to wait for a custody signal before sending a
+     * bundle again.</p>
+     *
+     * @return Timeout, in milliseconds.
+     */
+    public int getCustodyTimeout() {
+        return custodyTimeout;
+    }
+
+    /** <p>Get the number of times bundles have been sent again
+     * because no custody signal arrived in time.</p>
+     *
+     * @return Number of retransmissions.
+     */
+    public long getCustodyRetransmissionCount() {
+        synchronized (custodyLock) {
+            return retransmitCount;
+        }
+    }
+
+    /** <p>Get the number of aggregate custody signals sent.</p>
+     *
+     * @return Number of custody signals.
+     */
+    public long getCustodySignalCount() {
+        synchronized (custodyLock) {
+            return signalCount;
+        }
+    }
+
+    /** <p>Set a log in which to keep bundles, so that they survive a
+     * restart.</p>
+     *
+     * <p>Any bundles already in the log are recovered and queued for
+     * processing. They are not decoded until they are processed. If
+     * there isn't room to store them all, the rest are removed from
+     * the log. From then on, each bundle the agent stores is added
+     * to the log, and removed from it when it has been delivered,
+     * forwarded or dropped. Bundles already held by the agent are not
+     * added.</p>
+     *
+     * <p>By default no log is used, and bundles are only held in
+     * memory.</p>
+     *
+     * @param log Bundle log, or <code>null</code> to stop logging.
+     *
+     * @throws IOException if the logged bundles could not be read.
+     */
+    public void setBundleLog(BundleLog log) throws IOException {
+        this.log = log;
+        if (log == null) return;
+
+        long[] ids = log.getIds();
+        for (int i = 0; i < ids.length; i++) {
+            byte[] bytes = log.read(ids[i]);
+            if (bytes == null) continue;
+            BundleRecord rec;
+            try {
+                rec = new BundleRecord(bytes, ids[i]);
+            } catch (RuntimeException e) {
+                System.err.println("Discarding bad logged bundle: " + e);
+                log.remove(ids[i]);
+                continue;
+            }
+            if (!store.add(rec)) log.remove(ids[i]);
+        }
+    }
+
+    /** <p>Get the log in which bundles are kept.</p>
+     *
+     * @return Bundle log, or <code>null</code> if there is none.
+     */
+    public BundleLog getBundleLog() {
+        return log;
+    }
+
     /** <p>Set the network time provider. This is used when generating
      * bundle timestamps, and when determining whether bundles have
      * expired.</p>
@@ -171,7 +532,22 @@ public class BundleAgent extends AbstractDMPDaemon {
     }
 
     /** Transmit a bundle. Sets the bundle timestamp and sequence
-     * number, and queues the bundle for processing and transmission.
+     * number, and queues the bundle for processing and
+     * transmission. If there is no room to store it, this waits for
+     * bundles already held to be forwarded, and if there is still no
+     * room after ten seconds, the bundle is dropped silently. If the
+     * bundle has the
+     * <code>FLAG_CUSTODY</code> flag set, the agent becomes its
+     * custodian.
+     *
+     * <p>If the payload is larger than the fragment size, the bundle
+     * is sent as fragments, each of which is queued as soon as it is
+     * made. If the store is full, this waits for the earlier
+     * fragments to be forwarded to make room for the later ones.</p>
+     *
+     * <p>The payload is read in order, once, so it may be read from a
+     * stream. If it can't be read, the bundle, or the rest of its
+     * fragments, are not sent.</p>
      *
      * @param b Bundle to transmit.
      */
@@ -189,102 +565,411 @@ public class BundleAgent extends AbstractDMPDaemon {
                 lastTimestamp = netTime;
             }
         }
-        queueBundle(b);
+
+        BundleId custodyId = null;
+        if (((b.getFlags() & Bundle.FLAG_CUSTODY) != 0)
+            && ((b.getFlags() & Bundle.FLAG_ADMIN) == 0)) {
+            String admin = getAdminEndpoint();
+            if (admin != null) {
+                b.setCustodianEndpoint(admin);
+                custodyId = new BundleId(b);
+            }
+        }
+
+        int size = fragmentSize;
+        int length = b.getPayloadLength();
+        try {
+            if ((length <= size) || ((b.getFlags() & Bundle.FLAG_ADMIN) != 0)) {
+                byte[] bytes = b.toBytes();
+                /* If the payload isn't in memory, it may not be
+                 * possible to read it again, so keep the encoded
+                 * copy. */
+                if (b.getBundlePayload().getArray() == null) {
+                    b = new Bundle(bytes);
+                }
+                queueBundle(b, bytes, custodyId, WAIT_ROOM);
+                return;
+            }
+
+            /* Send the bundle in fragments, waiting for the first
+             * ones to be forwarded if there isn't room for the
+             * rest. Each fragment's payload is read straight into
+             * its encoded form, so the whole payload is never held
+             * in memory. */
+            for (int ofs = 0; ofs < length; ofs += size) {
+                int n = (length - ofs < size) ? length - ofs : size;
+                byte[] bytes = b.fragment(ofs, n).toBytes();
+                Bundle f = new Bundle(bytes);
+                BundleId id = (custodyId != null) ? new BundleId(f) : null;
+                /* The rest of the fragments are no use without this
+                 * one. */
+                if (!queueBundle(f, bytes, id, WAIT_ROOM)) break;
+            }
+        } catch (IllegalStateException e) {
+            System.err.println("Could not send bundle: " + e.getMessage());
+        }
+    }
+
+    /** Takes custody of a bundle which has arrived from another node,
+     * if it requests custody transfer, and queues it. This is called
+     * on the bus's dispatch thread, which may be shared with other
+     * connections, so it never waits for room in the store.
+     *
+     * @param b     Bundle received.
+     * @param bytes Encoded bundle.
+     */
+    private void bundleReceived(Bundle b, byte[] bytes) {
+        String admin;
+        if (((b.getFlags() & Bundle.FLAG_CUSTODY) == 0)
+            || ((b.getFlags() & Bundle.FLAG_ADMIN) != 0)
+            || ((admin = getAdminEndpoint()) == null)) {
+            queueBundle(b, bytes, null, WAIT_NONE);
+            return;
+        }
+
+        BundleId id = new BundleId(b);
+        String previous = b.getCustodianEndpoint();
+
+        /* If we already hold the bundle, or have just finished with
+         * it, the previous custodian must have missed our signal. */
+        boolean held;
+        synchronized (custodyLock) {
+            held = custody.containsKey(id) || recentCustodySet.containsKey(id);
+        }
+        if (held) {
+            signal(previous, id, CustodySignal.STATUS_SUCCEEDED
+                   | CustodySignal.REASON_REDUNDANT);
+            return;
+        }
+
+        /* Don't take custody of a fragment which will only be
+         * discarded when it is delivered. */
+        if (b.isFragment() && (b.getTotalLength() > getReassemblyCapacity())
+            && isRegistered(b.getDestEndpoint())) {
+            if (b.getFragmentOffset() == 0) {
+                System.err.println("Refusing custody of bundle too big to reassemble: "
+                                   + id);
+            }
+            signal(previous, id, CustodySignal.REASON_DEPLETED_STORAGE);
+            return;
+        }
+
+        b.setCustodianEndpoint(admin);
+        if (queueBundle(b, b.toBytes(), id, WAIT_NONE)) {
+            signal(previous, id, CustodySignal.STATUS_SUCCEEDED
+                   | CustodySignal.REASON_NONE);
+        } else {
+            signal(previous, id, CustodySignal.REASON_DEPLETED_STORAGE);
+        }
+    }
+
+    /** Tests whether an endpoint is registered with this agent. */
+    private boolean isRegistered(String endpoint) {
+        synchronized (endpointRegistrations) {
+            for (int i = 0; i < endpointRegistrations.size(); i++) {
+                EndpointRegistration r =
+                    (EndpointRegistration) endpointRegistrations.elementAt(i);
+                if (r.endpoint.equals(endpoint)) return true;
+            }
+        }
+        return false;
     }
 
     /** Carries out necessary actions on a newly-arrived bundle, and
-     * adds it to the queue. */
-    private void queueBundle(Bundle b) {
-        /* If queue 80% full:
-         * - If custody transfer requested, generate and add to queue
-         *   a custody signal indicating depleted storage. Note that
-         *   this may make the queue too long!
-         * - Otherwise drop bundle silently.
-         */
-        if (bundleQueue.size() >= MAX_BUNDLES*0.8) return;
+     * adds it to the store.
+     *
+     * @param b         Bundle to queue.
+     * @param bytes     Encoded bundle.
+     * @param custodyId Identity of the bundle if this agent is its
+     *                  custodian, or <code>null</code>.
+     * @param wait      How to wait if there is no room to store the
+     *                  bundle.
+     *
+     * @return <code>true</code> if the bundle was stored.
+     */
+    private boolean queueBundle(Bundle b, byte[] bytes, BundleId custodyId,
+                                int wait) {
+        BundleRecord rec = new BundleRecord(b, bytes);
+        BundleLog l = log;
+        if (l != null) {
+            /* Drop bundles which are already held. */
+            if (l.contains(b)) {
+                return false;
+            }
+            try {
+                rec.logId = l.append(b, bytes);
+            } catch (IOException e) {
+                /* Keep the bundle in memory anyway */
+                System.err.println("Could not log bundle: " + e.getMessage());
+            }
+        }
 
         /* If reporting of bundle reception and/or custody change
          * is requested, generate and add to queue an appropriate
          * status report. */
 
-        /* If custody transfer is requested, generate and add to queue
-         * an appropriate custody signal, iff we can actually
-         * understand where the bundle needs to be delivered to. */
+        /* Record custody before storing the bundle, since it may be
+         * processed straight away. */
+        if (custodyId != null) {
+            rec.custodyId = custodyId;
+            synchronized (custodyLock) {
+                custody.put(custodyId, rec);
+            }
+        }
+
+        /* Add bundle to store, dropping lower priority bundles if it
+         * is full, or drop the new bundle silently if there still
+         * isn't room. FIXME check if bundle is already in store when
+         * there is no log. */
+        boolean stored;
+        try {
+            /* The processing thread frees space in the store, so it
+             * mustn't wait for it. */
+            if (Thread.currentThread() == processingThread) {
+                wait = WAIT_NONE;
+            }
+            long now = localTime.currentTimeMillis();
+            switch (wait) {
+            case WAIT_ROOM:
+                stored = store.add(rec, localTime, now + SEND_WAIT_MS);
+                break;
+            default:
+                stored = store.add(rec);
+            }
+        } catch (InterruptedException e) {
+            stored = false;
+        }
+        if (!stored) {
+            forget(rec);
+            if (custodyId != null) {
+                synchronized (custodyLock) {
+                    custody.remove(custodyId);
+                }
+                rec.custodyId = null;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Removes a bundle which is no longer held from the bundle
+     * log. */
+    private void forget(BundleRecord rec) {
+        BundleLog l = log;
+        if ((l == null) || (rec.logId < 0)) return;
+        try {
+            l.remove(rec.logId);
+        } catch (IOException e) {
+            System.err.println("Could not remove logged bundle: " + e.getMessage());
+        }
+        rec.logId = -1;
+    }
+
+    /** Gives up custody of a bundle which is no longer held, and
+     * remembers it in case it is sent to us again. */
+    private void releaseCustody(BundleRecord rec) {
+        BundleId id = rec.custodyId;
+        if (id == null) return;
+        rec.custodyId = null;
+        synchronized (custodyLock) {
+            if (custody.get(id) == rec) custody.remove(id);
+            BundleId oldest = recentCustody[recentNext];
+            if (oldest != null) recentCustodySet.remove(oldest);
+            recentCustody[recentNext] = id;
+            recentCustodySet.put(id, id);
+            recentNext = (recentNext + 1) % recentCustody.length;
+        }
+    }
+
+    /** Get the endpoint to which custody signals for this node are
+     * sent, or <code>null</code> if the node has no address yet. */
+    private String getAdminEndpoint() {
+        InterfaceAddress addr = getBus().getMainAddress();
+        if (addr == null) return null;
+        return "dtn://[" + addr.toString() + "]" + ADMIN_SERVICE;
+    }
+
+    /** Adds a bundle to the custody signal waiting to be sent to a
+     * custodian. */
+    private void signal(String custodian, BundleId id, int status) {
+        if ((custodian == null) || custodian.equals(NULL_ENDPOINT)) return;
+
+        String key = custodian + " " + status;
+        synchronized (custodyLock) {
+            CustodySignal signal = (CustodySignal) pendingSignals.get(key);
+            if (signal == null) {
+                signal = new CustodySignal(status);
+                pendingSignals.put(key, signal);
+                long due = localTime.currentTimeMillis() + SIGNAL_DELAY_MS;
+                if (due < signalDue) signalDue = due;
+            }
+            signal.add(id);
+            if (signal.size() >= MAX_SIGNAL_BUNDLES) signalDue = 0;
+        }
+        /* Make sure the processing thread sees the new due time */
+        store.wakeUp();
+    }
+
+    /** Sends the pending custody signals, if they are due.
+     *
+     * @return the local time at which signals are next due.
+     */
+    private long sendSignals(long now) {
+        String[] keys;
+        CustodySignal[] signals;
+        synchronized (custodyLock) {
+            if (now < signalDue) return signalDue;
+            keys = new String[pendingSignals.size()];
+            signals = new CustodySignal[keys.length];
+            Enumeration e = pendingSignals.keys();
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (String) e.nextElement();
+                signals[i] = (CustodySignal) pendingSignals.get(keys[i]);
+            }
+            pendingSignals.clear();
+            signalDue = (1L << 63) ^ -1; /* Max long */
+            signalCount += keys.length;
+        }
+
+        String admin = getAdminEndpoint();
+        for (int i = 0; i < keys.length; i++) {
+            Bundle b = new Bundle();
+            b.setFlags(Bundle.FLAG_ADMIN);
+            b.setPriority(Bundle.PRIORITY_EXPEDITED);
+            b.setSourceEndpoint(admin);
+            b.setDestEndpoint(keys[i].substring(0, keys[i].lastIndexOf(' ')));
+            b.setLifetime(SIGNAL_LIFETIME);
+            b.setPayload(signals[i].toBytes());
+            sendBundle(b);
+        }
+        return (1L << 63) ^ -1;
+    }
 
-        /* Add bundle to queue. FIXME check if bundle is already in queue. */
-        BundleRecord rec = this.new BundleRecord(b);
-        bundleQueue.addElement(rec);
+    /** Handles an administrative record addressed to this node. */
+    private void adminRecordReceived(Bundle b) {
+        CustodySignal signal;
+        try {
+            signal = CustodySignal.fromBytes(b.getPayload());
+        } catch (RuntimeException e) {
+            /* Whatever is wrong with the record, it mustn't stop the
+             * processing thread. */
+            System.err.println("Bad custody signal: " + e);
+            return;
+        }
+        /* If the next node refused custody, keep the bundles, and
+         * send them again when their timers expire. */
+        if ((signal == null) || !signal.isSucceeded()) return;
 
-        /* Wake up processing thread. */
-        synchronized (queueMonitorNotifier) {
-            queueMonitorNotifier.notifyAll();
+        for (int i = 0; i < signal.size(); i++) {
+            BundleRecord rec;
+            synchronized (custodyLock) {
+                rec = (BundleRecord) custody.get(signal.get(i));
+            }
+            /* Only bundles which have been forwarded are released; a
+             * bundle still waiting to be sent can't have been
+             * accepted yet. */
+            if ((rec == null) || ((rec.status & BUNDLE_CUSTODY) == 0)) {
+                continue;
+            }
+            if (store.remove(rec)) {
+                forget(rec);
+                releaseCustody(rec);
+            }
         }
     }
 
     protected void run() {
+        processingThread = Thread.currentThread();
 
         while (isEnabled()) {
-            /* Process bundles */
-            long timer = (1L << 63) ^ -1; /* Max long */
-            for (int i = 0; i < bundleQueue.size(); i++) {
-                BundleRecord rec = (BundleRecord) bundleQueue.elementAt(i);
+            /* Process the bundles which are due, highest priority
+             * first. */
+            long now = localTime.currentTimeMillis();
+            BundleRecord rec;
+            while ((rec = store.pollDue(now)) != null) {
                 processBundle(rec);
                 if (rec.status == 0) {
                     /* Finished with bundle, so delete record. */
-                    bundleQueue.removeElementAt(i--);
-                    continue;
+                    store.release(rec);
+                    forget(rec);
+                    releaseCustody(rec);
+                } else {
+                    store.reschedule(rec);
                 }
-                timer = (timer > rec.timer) ? rec.timer : timer;
             }
+            long wake = sendSignals(now);
+            long reassemblyTime = reassembler.expire(now);
+            if (reassemblyTime < wake) wake = reassemblyTime;
 
-            /* Go to sleep for a while */
-            long sleepTime = timer - localTime.currentTimeMillis();
+            /* Sleep until the earliest timer expires, custody signals
+             * are due, a reassembly times out, or a new bundle
+             * arrives. */
             try {
-                synchronized (queueMonitorNotifier) {
-                    /* If there are bundles in the queue, sleep until the
-                     * earliest timer expires. If there are no bundles in
-                     * the queue, sleep until woken up. */
-                    if (bundleQueue.size() > 0) {
-                        if (sleepTime > 0) {
-                            queueMonitorNotifier.wait(sleepTime);
-                        }
-                    } else {
-                        queueMonitorNotifier.wait(0);
-                    }
-                }
+                store.awaitWork(localTime, wake);
             } catch (InterruptedException e) {
-                /* Just continue; we get interrupted if e.g. a new bundle
-                 * arrives to be processed. */
+                /* Just continue; we get interrupted if the daemon is
+                 * stopped. */
             }
         }
     }
 
-    /** Process a bundle from the queue. If a bundle is completed, and
-     * need no longer be retained, return true; otherwise return
-     * false. */
+    /** Process a bundle from the store. If a bundle is completed, and
+     * need no longer be retained, its status is cleared; otherwise
+     * it is deferred. */
     private void processBundle(BundleRecord rec) {
         long nowLocal = localTime.currentTimeMillis();
         long nowNetwork = networkTime.currentTimeMillis();
 
-        /* If bundle was deferred and has active timer, don't do
-         * anything with it. If timer has expired, clear defer
-         * flag. */
-        if ((rec.status & BUNDLE_DEFER) != 0) {
-            if (rec.timer > nowLocal) {
-                return;
-            } else {
-                rec.status &= (~BUNDLE_DEFER);
-            }
+        /* The store only returns bundles whose timer has expired,
+         * so clear the defer flag. If the bundle was waiting for a
+         * custody signal, none came, so send it again. */
+        boolean resend = (rec.status & BUNDLE_CUSTODY) != 0;
+        rec.status &= ~(BUNDLE_DEFER | BUNDLE_CUSTODY);
+
+        /* Decode the bundle, if it was recovered from the log. If it
+         * can't be decoded, delete it. */
+        Bundle bundle;
+        try {
+            bundle = rec.getBundle();
+        } catch (RuntimeException e) {
+            System.err.println("Discarding bad bundle: " + e);
+            rec.status = 0;
+            return;
         }
 
         /* If the bundle expired, delete it. */
-        if ((rec.bundle.getTimestamp() + rec.bundle.getLifetime() < nowNetwork/1000)) {
+        if ((bundle.getTimestamp() + bundle.getLifetime() < nowNetwork/1000)) {
             /* FIXME generate any necessary reports for deletion. */
             rec.status = 0;
             return;
         }
 
-        String dest = rec.bundle.getDestEndpoint();
+        if (resend) {
+            synchronized (custodyLock) {
+                retransmitCount++;
+            }
+        }
+
+        /* A bundle recovered from the log which we were custodian
+         * of. */
+        if ((rec.custodyId == null)
+            && ((bundle.getFlags() & Bundle.FLAG_CUSTODY) != 0)
+            && bundle.getCustodianEndpoint().equals(getAdminEndpoint())) {
+            rec.custodyId = new BundleId(bundle);
+            synchronized (custodyLock) {
+                custody.put(rec.custodyId, rec);
+            }
+        }
+
+        String dest = bundle.getDestEndpoint();
+
+        /* Handle custody signals addressed to this node */
+        if (((bundle.getFlags() & Bundle.FLAG_ADMIN) != 0)
+            && dest.equals(getAdminEndpoint())) {
+            adminRecordReceived(bundle);
+            rec.status = 0;
+            return;
+        }
 
         /* Check if we can deliver the bundle to a local endpoint
          * registration. */
@@ -293,8 +978,16 @@ public class BundleAgent extends AbstractDMPDaemon {
                 EndpointRegistration r =
                     (EndpointRegistration) endpointRegistrations.elementAt(i);
                 if (r.endpoint.equals(dest)) {
-                    /* Deliver bundle */
-                    r.listener.deliverBundle(rec.bundle);
+                    /* Deliver bundle, once all its fragments have
+                     * arrived */
+                    if (bundle.isFragment()) {
+                        bundle = reassembler.add(bundle, nowLocal);
+                        if (bundle == null) {
+                            rec.status = 0;
+                            return;
+                        }
+                    }
+                    r.listener.deliverBundle(bundle);
                     /* FIXME generate any necessary reports for delivery */
                     /* Clear status */
                     rec.status = 0;
@@ -313,19 +1006,32 @@ public class BundleAgent extends AbstractDMPDaemon {
             rec.status = 0;
             return;
         }
-        /* If we can get a route, forward the bundle. */
-        BusConnection forwardConnection = routing.nextHop(forwardTo);
-        if (forwardConnection != null) {
-            DMPMessage msg = new DMPMessage(DMP_PORT, rec.bundle.toBytes());
+        /* If we can get a route, forward the bundle. If sending
+         * fails, try any alternative next hops. */
+        int nHops = findForwardHops(forwardTo, bundle);
+        DMPMessage msg = null;
+        for (int i = 0; i < nHops; i++) {
+            BusConnection forwardConnection = forwardHops[i];
+            forwardHops[i] = null;
+            if (msg == null) {
+                msg = new DMPMessage(DMP_PORT, rec.bytes);
+            }
             try {
-                SystemBus.getSystemBus().sendDMPMessage(forwardConnection, msg);
+                getBus().sendDMPMessage(forwardConnection, msg);
                 /* FIXME generate any necessary reports for forwarding. */
-                /* FIXME custody transfer. */
-                /* Clear status */
-                rec.status = 0;
+                for (i++; i < nHops; i++) forwardHops[i] = null;
+                if (rec.custodyId != null) {
+                    /* Keep the bundle until the next node takes
+                     * custody of it. */
+                    rec.status |= BUNDLE_CUSTODY;
+                    rec.timer = nowLocal + custodyTimeout;
+                } else {
+                    /* Clear status */
+                    rec.status = 0;
+                }
                 return;
             } catch (IOException e) {
-                /* Fall through to defer. */
+                /* Try next hop, or fall through to defer. */
             }
         }
 
@@ -334,14 +1040,43 @@ public class BundleAgent extends AbstractDMPDaemon {
         rec.timer = nowLocal + DEFER_TIME_MS;
     }
 
-    private class BundleRecord {
-        Bundle bundle;
-        int status;
-        long timer;
-        BundleRecord(Bundle b) {
-            this.bundle = b;
-            long timer = 0;
+    /** Find next hops for a bundle, and store them in
+     * <code>forwardHops</code>. The hop for the bundle's flow is
+     * first.
+     *
+     * @return the number of next hops found.
+     */
+    private int findForwardHops(InterfaceAddress dest, Bundle b) {
+        RoutingProvider r = routing;
+        if (!(r instanceof MultipathRoutingProvider)) {
+            forwardHops[0] = r.nextHop(dest);
+            return (forwardHops[0] != null) ? 1 : 0;
+        }
+
+        MultipathRoutingProvider mp = (MultipathRoutingProvider) r;
+        BusConnection first = mp.nextHop(dest, flowHash(b));
+        if (first == null) return 0;
+        int n = mp.nextHops(dest, forwardHops);
+
+        /* Move the flow's hop to the front, keeping the others in
+         * order. */
+        int i = 0;
+        while ((i < n) && (forwardHops[i] != first)) i++;
+        if (i == n) {
+            if (n < forwardHops.length) n++;
+            i = n - 1;
         }
+        for (; i > 0; i--) forwardHops[i] = forwardHops[i - 1];
+        forwardHops[0] = first;
+        return n;
+    }
+
+    /** Hash identifying the flow that a bundle belongs to. */
+    private static int flowHash(Bundle b) {
+        String src = b.getSourceEndpoint();
+        String dest = b.getDestEndpoint();
+        int h = (src != null) ? src.hashCode() : 0;
+        return 31 * h + ((dest != null) ? dest.hashCode() : 0);
     }
 
     private class EndpointRegistration {
@@ -355,16 +1090,15 @@ public class BundleAgent extends AbstractDMPDaemon {
 
     /** Handles a bundle arriving over DMP */
     protected void messageReceived(BusConnection connection, DMPMessage msg) {
-        /* Assume one DMP message per bundle */
-
-        /* If queue 100% full: drop bundle silently */
-        if (bundleQueue.size() >= MAX_BUNDLES) return;
+        /* Each DMP message holds one bundle, which may be a fragment */
 
-        /* Parse bundle. */
-        Bundle b = new Bundle(msg.getPayload());
+        /* Parse bundle. The payload may be pooled, so keep a copy. */
+        byte[] bytes = new byte[msg.getPayloadLength()];
+        msg.getPayload(bytes, 0);
+        Bundle b = new Bundle(bytes);
 
-        /* Queue bundle */
-        queueBundle(b);
+        /* Queue bundle, keeping its encoded form for forwarding */
+        bundleReceived(b, bytes);
     }
 
     /* ***************************************** */
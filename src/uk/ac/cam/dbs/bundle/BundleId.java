@@ -0,0 +1,102 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+/** <p>The fields which together identify a bundle: its source
+ * endpoint, creation timestamp and creation sequence number, and for
+ * a fragment, its offset and length.</p>
+ *
+ * <p>Copies of a bundle, and retransmissions of it, have equal
+ * <code>BundleId</code>s.</p>
+ */
+class BundleId {
+    final String source;
+    final long timestamp;
+    final long seq;
+    /** Fragment offset, or -1 if the bundle isn't a fragment. */
+    final long fragmentOffset;
+    /** Fragment payload length, or -1 if the bundle isn't a
+     * fragment. */
+    final long fragmentLength;
+
+    BundleId(String source, long timestamp, long seq) {
+        this(source, timestamp, seq, -1, -1);
+    }
+
+    BundleId(String source, long timestamp, long seq,
+             long fragmentOffset, long fragmentLength) {
+        if (source == null) throw new NullPointerException();
+        this.source = source;
+        this.timestamp = timestamp;
+        this.seq = seq;
+        this.fragmentOffset = fragmentOffset;
+        this.fragmentLength = fragmentLength;
+    }
+
+    BundleId(Bundle b) {
+        this(b.getSourceEndpoint(), b.getTimestamp(), b.getSequence(),
+             b.isFragment() ? b.getFragmentOffset() : -1,
+             b.isFragment() ? b.getPayloadLength() : -1);
+    }
+
+    /** Test whether this identifies a fragment. */
+    boolean isFragment() {
+        return fragmentOffset >= 0;
+    }
+
+    /** Test whether this identifies a bundle created before another.
+     * Bundles from different sources are ordered by source
+     * endpoint. */
+    boolean before(BundleId id) {
+        int c = source.compareTo(id.source);
+        if (c != 0) return c < 0;
+        if (timestamp != id.timestamp) return timestamp < id.timestamp;
+        if (seq != id.seq) return seq < id.seq;
+        if (fragmentOffset != id.fragmentOffset) {
+            return fragmentOffset < id.fragmentOffset;
+        }
+        return fragmentLength < id.fragmentLength;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof BundleId)) return false;
+        BundleId id = (BundleId) o;
+        return (timestamp == id.timestamp) && (seq == id.seq)
+            && (fragmentOffset == id.fragmentOffset)
+            && (fragmentLength == id.fragmentLength)
+            && source.equals(id.source);
+    }
+
+    public int hashCode() {
+        int h = source.hashCode();
+        h = 31 * h + (int) (timestamp ^ (timestamp >>> 32));
+        h = 31 * h + (int) (seq ^ (seq >>> 32));
+        return 31 * h + (int) fragmentOffset;
+    }
+
+    public String toString() {
+        String s = source + " " + timestamp + "." + seq;
+        if (isFragment()) {
+            s = s + " [" + fragmentOffset + "+" + fragmentLength + "]";
+        }
+        return s;
+    }
+}
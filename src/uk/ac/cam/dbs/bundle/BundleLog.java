@@ -0,0 +1,94 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.IOException;
+
+/** <p>Persistent storage for the bundles held by a
+ * <code>BundleAgent</code>, so that they survive a restart.</p>
+ *
+ * <p>The log holds encoded bundles, as produced by
+ * <code>Bundle.toBytes()</code>. Each is given an identifier when it
+ * is appended, which stays the same until it is removed. The log also
+ * indexes bundles by their source endpoint, creation timestamp and
+ * sequence number, which together identify a bundle, and for a
+ * fragment by its offset and length as well.</p>
+ *
+ * <p>Implementations must be safe to call from several threads.</p>
+ *
+ * @see BundleAgent#setBundleLog(BundleLog)
+ */
+public interface BundleLog {
+
+    /** Add a bundle to the log.
+     *
+     * @param b     Bundle to add.
+     * @param bytes Encoded form of <code>b</code>.
+     *
+     * @return an identifier for the logged bundle, which is never
+     *         negative.
+     *
+     * @throws IOException if the bundle could not be stored.
+     */
+    long append(Bundle b, byte[] bytes) throws IOException;
+
+    /** Remove a bundle from the log. Does nothing if there is no
+     * bundle with the identifier.
+     *
+     * @param id Identifier returned by <code>append()</code>.
+     *
+     * @throws IOException if the log could not be updated.
+     */
+    void remove(long id) throws IOException;
+
+    /** Read the encoded form of a logged bundle.
+     *
+     * @param id Identifier returned by <code>append()</code>.
+     *
+     * @return the encoded bundle, or <code>null</code> if there is no
+     *         bundle with the identifier.
+     *
+     * @throws IOException if the bundle could not be read.
+     */
+    byte[] read(long id) throws IOException;
+
+    /** Get the identifiers of all of the bundles in the log, in the
+     * order they were appended.
+     *
+     * @return an array of bundle identifiers.
+     */
+    long[] getIds();
+
+    /** Test whether the log holds a copy of a particular bundle.
+     *
+     * @param b Bundle to look for.
+     *
+     * @return <code>true</code> if a bundle with the same
+     *         identifying fields as <code>b</code> is in the log.
+     */
+    boolean contains(Bundle b);
+
+    /** Close the log. It must not be used afterwards.
+     *
+     * @throws IOException if the log could not be closed cleanly.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,304 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** <p>The payload of a bundle.</p>
+ *
+ * <p>A payload need not be held in a single array. It may be part of
+ * a larger array, such as the buffer a bundle was received in, or be
+ * read from somewhere else as it is needed, such as a file or a
+ * stream. This means that a large payload can be sent, and delivered,
+ * without ever being copied into memory in one piece.</p>
+ *
+ * <p>A payload must not change once it has been given to a bundle.
+ * Unless stated otherwise, payloads may be read any number of times,
+ * in any order.</p>
+ *
+ * @see Bundle#setPayload(BundlePayload)
+ * @see Bundle#getBundlePayload()
+ */
+public abstract class BundlePayload {
+
+    /** Size of the buffer used to copy payloads which aren't held in
+     * an array. */
+    private static final int COPY_BUFFER_SIZE = 4096;
+
+    /** Get the length of the payload.
+     *
+     * @return the length, in octets.
+     */
+    public abstract int getLength();
+
+    /** Copy part of the payload into an array.
+     *
+     * @param offset Offset within the payload to start at.
+     * @param buf    Array to copy into.
+     * @param off    Offset within <code>buf</code> to copy to.
+     * @param length Number of octets to copy.
+     *
+     * @throws IOException if the payload could not be read.
+     */
+    public abstract void read(int offset, byte[] buf, int off, int length)
+        throws IOException;
+
+    /** <p>Get part of the payload as a payload in its own right. The
+     * data is not copied.</p>
+     *
+     * @param offset Offset within this payload.
+     * @param length Length of the new payload.
+     *
+     * @return a payload which reads from this one.
+     */
+    public BundlePayload slice(int offset, int length) {
+        checkRange(offset, length, getLength());
+        return new SlicePayload(this, offset, length);
+    }
+
+    /** <p>Write the payload to a stream.</p>
+     *
+     * <p>The default implementation copies it through a small
+     * buffer.</p>
+     *
+     * @param out Stream to write to.
+     *
+     * @throws IOException if the payload could not be read or
+     *                     written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int length = getLength();
+        byte[] buf = new byte[(length < COPY_BUFFER_SIZE) ? length : COPY_BUFFER_SIZE];
+        for (int ofs = 0; ofs < length; ofs += buf.length) {
+            int n = (length - ofs < buf.length) ? length - ofs : buf.length;
+            read(ofs, buf, 0, n);
+            out.write(buf, 0, n);
+        }
+    }
+
+    /** Open a stream which reads the payload from the start.
+     *
+     * @return a new input stream.
+     */
+    public InputStream openStream() {
+        return new PayloadInputStream(this);
+    }
+
+    /** Get the array holding the payload, if it is all of an array.
+     * Used by <code>Bundle</code> to avoid copying. */
+    byte[] getArray() {
+        return null;
+    }
+
+    /** <p>Create a payload held in an array. The array is not
+     * copied.</p>
+     *
+     * @param data Payload data.
+     *
+     * @return a payload which reads from <code>data</code>.
+     */
+    public static BundlePayload wrap(byte[] data) {
+        return new ArrayPayload(data, 0, data.length);
+    }
+
+    /** <p>Create a payload held in part of an array. The array is not
+     * copied.</p>
+     *
+     * @param data   Array holding the payload data.
+     * @param offset Offset of the payload within <code>data</code>.
+     * @param length Length of the payload.
+     *
+     * @return a payload which reads from <code>data</code>.
+     */
+    public static BundlePayload wrap(byte[] data, int offset, int length) {
+        checkRange(offset, length, data.length);
+        return new ArrayPayload(data, offset, length);
+    }
+
+    /** <p>Create a payload which is read from a stream as it is
+     * needed.</p>
+     *
+     * <p>The payload can only be read once, from start to end: it
+     * may be read in several parts, but each must start at or after
+     * the end of the last. The stream is closed once the end of the
+     * payload has been read. A bundle with such a payload can be
+     * sent with <code>BundleAgent.sendBundle()</code>, which reads
+     * the payload in order, a fragment at a time if it is large.</p>
+     *
+     * @param in     Stream to read the payload from.
+     * @param length Length of the payload.
+     *
+     * @return a payload which reads from <code>in</code>.
+     */
+    public static BundlePayload fromStream(InputStream in, int length) {
+        if (length < 0) throw new IllegalArgumentException();
+        return new StreamPayload(in, length);
+    }
+
+    static void checkRange(int offset, int length, int size) {
+        if ((offset < 0) || (length < 0) || (offset > size - length)) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private static class ArrayPayload extends BundlePayload {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        ArrayPayload(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public void read(int ofs, byte[] buf, int off, int len) {
+            checkRange(ofs, len, length);
+            System.arraycopy(data, offset + ofs, buf, off, len);
+        }
+
+        public BundlePayload slice(int ofs, int len) {
+            checkRange(ofs, len, length);
+            return new ArrayPayload(data, offset + ofs, len);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data, offset, length);
+        }
+
+        byte[] getArray() {
+            return ((offset == 0) && (length == data.length)) ? data : null;
+        }
+    }
+
+    private static class SlicePayload extends BundlePayload {
+        private final BundlePayload base;
+        private final int offset;
+        private final int length;
+
+        SlicePayload(BundlePayload base, int offset, int length) {
+            this.base = base;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public void read(int ofs, byte[] buf, int off, int len)
+            throws IOException {
+            checkRange(ofs, len, length);
+            base.read(offset + ofs, buf, off, len);
+        }
+
+        public BundlePayload slice(int ofs, int len) {
+            checkRange(ofs, len, length);
+            return new SlicePayload(base, offset + ofs, len);
+        }
+    }
+
+    private static class StreamPayload extends BundlePayload {
+        private final InputStream in;
+        private final int length;
+        /** Offset within the payload of the next octet in the
+         * stream. */
+        private int position;
+
+        StreamPayload(InputStream in, int length) {
+            this.in = in;
+            this.length = length;
+            position = 0;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public synchronized void read(int ofs, byte[] buf, int off, int len)
+            throws IOException {
+            checkRange(ofs, len, length);
+            if (ofs < position) {
+                throw new IOException("Stream payload has already been read");
+            }
+            /* Skip any gap since the last read */
+            while (position < ofs) {
+                long n = in.skip(ofs - position);
+                if (n <= 0) {
+                    if (in.read() < 0) throw new IOException("Payload stream too short");
+                    n = 1;
+                }
+                position += (int) n;
+            }
+            while (len > 0) {
+                int n = in.read(buf, off, len);
+                if (n < 0) throw new IOException("Payload stream too short");
+                off += n;
+                len -= n;
+                position += n;
+            }
+            if (position == length) in.close();
+        }
+    }
+
+    private static class PayloadInputStream extends InputStream {
+        private final BundlePayload payload;
+        private int position;
+
+        PayloadInputStream(BundlePayload payload) {
+            this.payload = payload;
+            position = 0;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int left = payload.getLength() - position;
+            if (len == 0) return 0;
+            if (left <= 0) return -1;
+            if (len > left) len = left;
+            payload.read(position, buf, off, len);
+            position += len;
+            return len;
+        }
+
+        public long skip(long n) {
+            int left = payload.getLength() - position;
+            if (n > left) n = left;
+            if (n < 0) n = 0;
+            position += (int) n;
+            return n;
+        }
+
+        public int available() {
+            return payload.getLength() - position;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+/** <p>A bundle held by a <code>BundleAgent</code>, with its
+ * processing state.</p>
+ *
+ * <p>The encoded form of the bundle is kept, both so that the space
+ * it takes up can be accounted for and so that it doesn't need to be
+ * encoded again each time forwarding is attempted. A bundle recovered
+ * from a <code>BundleLog</code> is only decoded when it is first
+ * processed.</p>
+ */
+class BundleRecord {
+    /** Encoded bundle. */
+    final byte[] bytes;
+    /** Class of service, fixed when the bundle is stored. */
+    final int priority;
+    /** Identifier in the agent's bundle log, or -1 if the bundle
+     * isn't logged. */
+    long logId;
+    int status;
+    /** Local time at which the bundle next needs processing. */
+    long timer;
+    /** Order in which the bundle was stored, and position in the
+     * store's heap. Used by <code>BundleStore</code>. */
+    long order;
+    int heapIndex = -1;
+    /** Identity of the bundle, if this agent is its custodian. */
+    BundleId custodyId;
+
+    private Bundle bundle;
+
+    BundleRecord(Bundle bundle, byte[] bytes) {
+        this.bundle = bundle;
+        this.bytes = bytes;
+        priority = bundle.getPriority();
+        logId = -1;
+        status = 0;
+        timer = 0;
+    }
+
+    /** Create a record for an encoded bundle, which is decoded when
+     * it is first needed.
+     *
+     * @param bytes Encoded bundle.
+     * @param logId Identifier of the bundle in the bundle log.
+     */
+    BundleRecord(byte[] bytes, long logId) {
+        this.bytes = bytes;
+        this.logId = logId;
+        priority = Bundle.getPriority(bytes);
+        status = 0;
+        timer = 0;
+    }
+
+    /** Get the bundle, decoding it if necessary. Only the agent's
+     * processing thread may call this.
+     *
+     * @throws IllegalArgumentException if the bundle can't be
+     *                                  decoded.
+     */
+    Bundle getBundle() {
+        if (bundle == null) bundle = new Bundle(bytes);
+        return bundle;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import uk.ac.cam.dbs.TimeProvider;
+
+/** <p>Storage for the bundles held by a <code>BundleAgent</code>.</p>
+ *
+ * <p>The store's capacity is measured in bytes of encoded bundle. If
+ * a new bundle doesn't fit, bundles of lower priority are dropped to
+ * make room for it; if it still doesn't fit, it is refused. Bundles
+ * the agent has taken custody of are never dropped, since the
+ * previous custodian no longer holds them. They may only fill part of
+ * the store, so that there is always room for the custody signals
+ * which let them be released.</p>
+ *
+ * <p>Bundles are indexed by the time at which they next need
+ * processing, using one binary min-heap for each class of service, so
+ * the agent only looks at bundles which are due. When several are
+ * due, higher priority bundles are taken first, and bundles of the
+ * same priority are taken in time order and then in the order they
+ * were stored.</p>
+ *
+ * <p>A bundle taken from the store by <code>pollDue()</code> still
+ * counts towards its capacity, and can't be dropped, until it is
+ * either rescheduled or released.</p>
+ *
+ * <p>All methods synchronize on the store.</p>
+ */
+class BundleStore {
+
+    private static final int N_PRIORITIES = Bundle.PRIORITY_EXPEDITED + 1;
+    /** Fraction of the capacity which bundles in custody can't use,
+     * as a divisor. */
+    private static final int CUSTODY_RESERVE = 8;
+
+    private BundleRecord[][] heaps;
+    private int[] sizes;
+    private int capacity;
+    private int used;
+    private int count;
+    private long nextOrder;
+    private long droppedCount;
+    /** Whether a bundle has been stored since the processing thread
+     * last waited. */
+    private boolean added;
+
+    /** Create a new, empty store.
+     *
+     * @param capacity Capacity, in bytes.
+     */
+    BundleStore(int capacity) {
+        heaps = new BundleRecord[N_PRIORITIES][];
+        sizes = new int[N_PRIORITIES];
+        for (int p = 0; p < N_PRIORITIES; p++) {
+            heaps[p] = new BundleRecord[8];
+        }
+        this.capacity = capacity;
+        used = 0;
+        count = 0;
+        nextOrder = 0;
+        droppedCount = 0;
+        added = false;
+    }
+
+    /** Set the capacity of the store. If the store already holds
+     * more than this, no bundles are dropped, but no more are
+     * accepted until enough have been released.
+     *
+     * @param capacity Capacity, in bytes.
+     */
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Get the number of bytes of bundles held. */
+    synchronized int getUsed() {
+        return used;
+    }
+
+    /** Get the number of bundles held. */
+    synchronized int size() {
+        return count;
+    }
+
+    /** Get the number of bundles dropped to make room for bundles of
+     * higher priority. */
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Store a bundle, to be processed when its timer is due.
+     *
+     * @param rec Bundle to store.
+     *
+     * @return <code>true</code> if the bundle was stored, or
+     *         <code>false</code> if there was no room for it.
+     */
+    synchronized boolean add(BundleRecord rec) {
+        int need = rec.bytes.length;
+
+        if (!droppable(rec)) {
+            int held = 0;
+            for (int p = 0; p < N_PRIORITIES; p++) {
+                for (int i = 0; i < sizes[p]; i++) {
+                    if (!droppable(heaps[p][i])) {
+                        held += heaps[p][i].bytes.length;
+                    }
+                }
+            }
+            if (held + need > custodyCapacity()) return false;
+        }
+
+        /* Check that dropping lower priority bundles would make
+         * enough room before dropping any. Bundles being processed
+         * can't be dropped. */
+        int available = capacity - used;
+        for (int p = 0; p < rec.priority; p++) {
+            for (int i = 0; i < sizes[p]; i++) {
+                if (droppable(heaps[p][i])) {
+                    available += heaps[p][i].bytes.length;
+                }
+            }
+        }
+        if (need > available) return false;
+
+        /* Drop the lowest priority bundles first, starting from the
+         * end of each heap, where removing an entry is cheap. Removal
+         * only moves entries already passed over into later slots,
+         * so the slot just emptied is looked at again. */
+        for (int p = 0; (p < rec.priority) && (used + need > capacity); p++) {
+            int i = sizes[p] - 1;
+            while ((i >= 0) && (used + need > capacity)) {
+                if (i >= sizes[p]) i = sizes[p] - 1;
+                if ((i < 0) || !droppable(heaps[p][i])) {
+                    i--;
+                    continue;
+                }
+                BundleRecord victim = removeAt(p, i);
+                release(victim);
+                droppedCount++;
+                dropped(victim);
+            }
+        }
+
+        used += need;
+        count++;
+        rec.order = nextOrder++;
+        insert(rec);
+
+        added = true;
+        notifyAll();
+        return true;
+    }
+
+    /** Store a bundle, waiting for room if there isn't enough.
+     *
+     * @param rec   Bundle to store.
+     * @param clock Local time provider.
+     * @param until Local time to stop waiting, in milliseconds.
+     *
+     * @return <code>true</code> if the bundle was stored, or
+     *         <code>false</code> if there was still no room for it.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     *                              while waiting.
+     */
+    synchronized boolean add(BundleRecord rec, TimeProvider clock, long until)
+        throws InterruptedException {
+
+        while (!add(rec)) {
+            long delay = until - clock.currentTimeMillis();
+            int limit = droppable(rec) ? capacity : custodyCapacity();
+            if ((delay <= 0) || (rec.bytes.length > limit)) return false;
+            wait(delay);
+        }
+        return true;
+    }
+
+    /* Space which bundles in custody may use */
+    private int custodyCapacity() {
+        return capacity - capacity / CUSTODY_RESERVE;
+    }
+
+    /* Tests whether a bundle may be dropped to make room for
+     * another. */
+    private static boolean droppable(BundleRecord rec) {
+        return rec.custodyId == null;
+    }
+
+    /** Called with the store's lock held when a bundle is dropped to
+     * make room for another. Does nothing by default.
+     *
+     * @param rec Bundle which was dropped.
+     */
+    void dropped(BundleRecord rec) {
+    }
+
+    /** Remove and return the highest priority bundle which is due
+     * for processing. It still counts towards the store's capacity,
+     * and must be passed to <code>reschedule()</code> or
+     * <code>release()</code> when processing is finished.
+     *
+     * @param now Current local time, in milliseconds.
+     *
+     * @return a bundle whose timer is no later than
+     *         <code>now</code>, or <code>null</code> if there is
+     *         none.
+     */
+    synchronized BundleRecord pollDue(long now) {
+        for (int p = N_PRIORITIES - 1; p >= 0; p--) {
+            if ((sizes[p] == 0) || (heaps[p][0].timer > now)) continue;
+            return removeAt(p, 0);
+        }
+        return null;
+    }
+
+    /** Remove a bundle which is waiting for its timer, and stop
+     * holding it.
+     *
+     * @param rec Bundle to remove.
+     *
+     * @return <code>true</code> if the bundle was removed, or
+     *         <code>false</code> if it wasn't waiting.
+     */
+    synchronized boolean remove(BundleRecord rec) {
+        int i = rec.heapIndex;
+        int p = rec.priority;
+        if ((i < 0) || (i >= sizes[p]) || (heaps[p][i] != rec)) return false;
+        removeAt(p, i);
+        release(rec);
+        return true;
+    }
+
+    /** Return a bundle taken by <code>pollDue()</code> to the store,
+     * to be processed again when its timer is due.
+     *
+     * @param rec Bundle to return.
+     */
+    synchronized void reschedule(BundleRecord rec) {
+        insert(rec);
+    }
+
+    /** Stop holding a bundle taken by <code>pollDue()</code>, freeing
+     * the space it used.
+     *
+     * @param rec Bundle to release.
+     */
+    synchronized void release(BundleRecord rec) {
+        used -= rec.bytes.length;
+        count--;
+        /* Wake up anything waiting for room */
+        notifyAll();
+    }
+
+    /** <p>Wait until a bundle may be due for processing.</p>
+     *
+     * <p>Returns immediately if a bundle has been stored since the
+     * last call. Otherwise, waits until the earliest timer is due,
+     * until <code>until</code>, or until a bundle is stored.</p>
+     *
+     * @param clock Local time provider.
+     * @param until Latest local time to wake up, in milliseconds, or
+     *              the largest <code>long</code> to wait for work.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     *                              while waiting.
+     */
+    synchronized void awaitWork(TimeProvider clock, long until)
+        throws InterruptedException {
+
+        if (!added) {
+            long wake = until;
+            for (int p = 0; p < N_PRIORITIES; p++) {
+                if ((sizes[p] > 0) && (heaps[p][0].timer < wake)) {
+                    wake = heaps[p][0].timer;
+                }
+            }
+            if (wake == ((1L << 63) ^ -1)) {
+                wait();
+            } else {
+                long delay = wake - clock.currentTimeMillis();
+                if (delay > 0) wait(delay);
+            }
+        }
+        added = false;
+    }
+
+    /** Make the thread waiting in <code>awaitWork()</code> return,
+     * as though a bundle had been stored. */
+    synchronized void wakeUp() {
+        added = true;
+        notifyAll();
+    }
+
+    private BundleRecord removeAt(int p, int i) {
+        BundleRecord[] heap = heaps[p];
+        BundleRecord rec = heap[i];
+        int size = --sizes[p];
+        if (i < size) {
+            BundleRecord last = heap[size];
+            heap[i] = last;
+            last.heapIndex = i;
+            if ((i > 0) && before(last, heap[(i - 1) >>> 1])) {
+                siftUp(heap, i);
+            } else {
+                siftDown(heap, size, i);
+            }
+        }
+        heap[size] = null;
+        rec.heapIndex = -1;
+        return rec;
+    }
+
+    private void insert(BundleRecord rec) {
+        int p = rec.priority;
+        BundleRecord[] heap = heaps[p];
+        if (sizes[p] == heap.length) {
+            BundleRecord[] grown = new BundleRecord[heap.length * 2];
+            System.arraycopy(heap, 0, grown, 0, heap.length);
+            heap = grown;
+            heaps[p] = heap;
+        }
+        int i = sizes[p]++;
+        heap[i] = rec;
+        siftUp(heap, i);
+    }
+
+    /* Tests whether a should be processed before b */
+    private static boolean before(BundleRecord a, BundleRecord b) {
+        if (a.timer != b.timer) return a.timer < b.timer;
+        return a.order < b.order;
+    }
+
+    private static void siftUp(BundleRecord[] heap, int i) {
+        BundleRecord rec = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            BundleRecord p = heap[parent];
+            if (!before(rec, p)) break;
+            heap[i] = p;
+            p.heapIndex = i;
+            i = parent;
+        }
+        heap[i] = rec;
+        rec.heapIndex = i;
+    }
+
+    private static void siftDown(BundleRecord[] heap, int size, int i) {
+        BundleRecord rec = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            BundleRecord c = heap[child];
+            int right = child + 1;
+            if ((right < size) && before(heap[right], c)) {
+                child = right;
+                c = heap[child];
+            }
+            if (!before(c, rec)) break;
+            heap[i] = c;
+            c.heapIndex = i;
+            i = child;
+        }
+        heap[i] = rec;
+        rec.heapIndex = i;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import static uk.ac.cam.dbs.util.SdnvByteBufferHelper.*;
+
+/** <p>An aggregate custody signal, which reports the outcome of
+ * custody transfer for any number of bundles at once.</p>
+ *
+ * <p>The signal is carried as the payload of an administrative
+ * bundle sent to the previous custodian. Bundles are identified by
+ * source endpoint, creation timestamp and sequence number, since this
+ * implementation doesn't support the extension blocks which would
+ * carry custody identifiers. A source's bundles created in the same
+ * second usually have consecutive sequence numbers, so they are sent
+ * as runs. A fragment is sent as a run of no bundles, followed by
+ * its offset and length:</p>
+ *
+ * <pre>
+ *   8 bits: administrative record type (0x40)
+ *   8 bits: status: 0x80 if custody was accepted, plus reason code
+ *   SDNV:   number of sources
+ *   for each source:
+ *     SDNV:   length of source endpoint
+ *     source endpoint, ASCII
+ *     SDNV:   number of runs
+ *     for each run:
+ *       SDNV: creation timestamp
+ *       SDNV: first sequence number
+ *       SDNV: number of bundles, or 0 for a fragment
+ *       for a fragment:
+ *         SDNV: fragment offset
+ *         SDNV: fragment length
+ * </pre>
+ */
+class CustodySignal {
+
+    /** Administrative record type, in the upper four bits. */
+    static final int RECORD_TYPE = 0x40;
+
+    static final int STATUS_SUCCEEDED = 0x80;
+
+    static final int REASON_NONE = 0x00;
+    static final int REASON_REDUNDANT = 0x03;
+    static final int REASON_DEPLETED_STORAGE = 0x04;
+
+    /** Largest number of bundles accepted in a received signal. */
+    private static final int MAX_DECODED = 4096;
+
+    /** Custody accepted, plus reason code. */
+    final int status;
+
+    private BundleId[] ids;
+    private int count;
+
+    /** Create an empty signal.
+     *
+     * @param status Status byte.
+     */
+    CustodySignal(int status) {
+        this.status = status;
+        ids = new BundleId[8];
+        count = 0;
+    }
+
+    /** Test whether the signal reports that custody was accepted. */
+    boolean isSucceeded() {
+        return (status & STATUS_SUCCEEDED) != 0;
+    }
+
+    /** Add a bundle to the signal. */
+    void add(BundleId id) {
+        if (count == ids.length) {
+            BundleId[] grown = new BundleId[count * 2];
+            System.arraycopy(ids, 0, grown, 0, count);
+            ids = grown;
+        }
+        ids[count++] = id;
+    }
+
+    /** Get the number of bundles in the signal. */
+    int size() {
+        return count;
+    }
+
+    /** Get one of the bundles in the signal. */
+    BundleId get(int i) {
+        return ids[i];
+    }
+
+    /** Encode the signal as an administrative record. */
+    byte[] toBytes() {
+        /* Sort so that each source's bundles are together, in order.
+         * Signals are small, so an insertion sort will do. */
+        BundleId[] sorted = new BundleId[count];
+        for (int i = 0; i < count; i++) {
+            BundleId id = ids[i];
+            int j = i;
+            while ((j > 0) && id.before(sorted[j - 1])) {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = id;
+        }
+
+        /* Work out the runs. runStart[r] is the index of the first
+         * bundle in run r, and sourceRuns[s] the number of runs for
+         * source s. */
+        int[] runStart = new int[count + 1];
+        int[] sourceRuns = new int[count];
+        int nRuns = 0;
+        int nSources = 0;
+        for (int i = 0; i < count; i++) {
+            BundleId id = sorted[i];
+            BundleId prev = (i > 0) ? sorted[i - 1] : null;
+            boolean newSource = (prev == null) || !prev.source.equals(id.source);
+            if (newSource) nSources++;
+            if ((prev != null) && prev.equals(id)) continue;
+            if (newSource || prev.isFragment() || id.isFragment()
+                || (prev.timestamp != id.timestamp)
+                || (prev.seq + 1 != id.seq)) {
+                runStart[nRuns++] = i;
+                sourceRuns[nSources - 1]++;
+            }
+        }
+        runStart[nRuns] = count;
+
+        /* Calculate the length */
+        byte[][] sources = new byte[nSources][];
+        int length = 2 + getSdnvLength(nSources);
+        for (int r = 0, s = -1; r < nRuns; r++) {
+            BundleId first = sorted[runStart[r]];
+            if ((r == 0) || !sorted[runStart[r - 1]].source.equals(first.source)) {
+                s++;
+                sources[s] = BundleStringCodec.toBytes(first.source);
+                length += getSdnvLength(sources[s].length) + sources[s].length
+                    + getSdnvLength(sourceRuns[s]);
+            }
+            length += getSdnvLength(first.timestamp) + getSdnvLength(first.seq)
+                + getSdnvLength(runLength(sorted, runStart, r));
+            if (first.isFragment()) {
+                length += getSdnvLength(first.fragmentOffset)
+                    + getSdnvLength(first.fragmentLength);
+            }
+        }
+
+        /* Encode */
+        byte[] buf = new byte[length];
+        int ofs = 0;
+        buf[ofs++] = (byte) RECORD_TYPE;
+        buf[ofs++] = (byte) status;
+        ofs += sdnvToBytes(nSources, buf, ofs);
+        for (int r = 0, s = -1; r < nRuns; r++) {
+            BundleId first = sorted[runStart[r]];
+            if ((r == 0) || !sorted[runStart[r - 1]].source.equals(first.source)) {
+                s++;
+                ofs += sdnvToBytes(sources[s].length, buf, ofs);
+                System.arraycopy(sources[s], 0, buf, ofs, sources[s].length);
+                ofs += sources[s].length;
+                ofs += sdnvToBytes(sourceRuns[s], buf, ofs);
+            }
+            ofs += sdnvToBytes(first.timestamp, buf, ofs);
+            ofs += sdnvToBytes(first.seq, buf, ofs);
+            ofs += sdnvToBytes(runLength(sorted, runStart, r), buf, ofs);
+            if (first.isFragment()) {
+                ofs += sdnvToBytes(first.fragmentOffset, buf, ofs);
+                ofs += sdnvToBytes(first.fragmentLength, buf, ofs);
+            }
+        }
+        return buf;
+    }
+
+    /* Counts the distinct bundles in a run, which may include
+     * duplicates, or returns 0 for a fragment. */
+    private static int runLength(BundleId[] sorted, int[] runStart, int r) {
+        BundleId first = sorted[runStart[r]];
+        if (first.isFragment()) return 0;
+        BundleId last = sorted[runStart[r + 1] - 1];
+        return (int) (last.seq - first.seq) + 1;
+    }
+
+    /** Decode a signal from an administrative record.
+     *
+     * @param buf Record to decode.
+     *
+     * @return the signal, or <code>null</code> if the record isn't
+     *         an aggregate custody signal.
+     *
+     * @throws IllegalArgumentException if the record is malformed.
+     */
+    static CustodySignal fromBytes(byte[] buf) {
+        try {
+            if ((buf.length < 2) || ((buf[0] & 0xf0) != RECORD_TYPE)) {
+                return null;
+            }
+            CustodySignal signal = new CustodySignal(buf[1] & 0xff);
+            int ofs = 2;
+            long nSources = sdnvFromBytes(buf, ofs);
+            ofs += getSdnvLength(buf, ofs);
+            for (long s = 0; s < nSources; s++) {
+                long len = sdnvFromBytes(buf, ofs);
+                ofs += getSdnvLength(buf, ofs);
+                if (len > buf.length - ofs) {
+                    throw new IllegalArgumentException("Truncated custody signal");
+                }
+                String source = BundleStringCodec.fromBytes(buf, ofs,
+                                                            (int) len);
+                ofs += (int) len;
+                long nRuns = sdnvFromBytes(buf, ofs);
+                ofs += getSdnvLength(buf, ofs);
+                for (long r = 0; r < nRuns; r++) {
+                    long timestamp = sdnvFromBytes(buf, ofs);
+                    ofs += getSdnvLength(buf, ofs);
+                    long seq = sdnvFromBytes(buf, ofs);
+                    ofs += getSdnvLength(buf, ofs);
+                    long n = sdnvFromBytes(buf, ofs);
+                    ofs += getSdnvLength(buf, ofs);
+                    if (n == 0) {
+                        if (signal.size() >= MAX_DECODED) {
+                            throw new IllegalArgumentException("Bad custody signal run");
+                        }
+                        long fragmentOffset = sdnvFromBytes(buf, ofs);
+                        ofs += getSdnvLength(buf, ofs);
+                        long fragmentLength = sdnvFromBytes(buf, ofs);
+                        ofs += getSdnvLength(buf, ofs);
+                        signal.add(new BundleId(source, timestamp, seq,
+                                                fragmentOffset, fragmentLength));
+                        continue;
+                    }
+                    if ((n < 0) || (signal.size() + n > MAX_DECODED)) {
+                        throw new IllegalArgumentException("Bad custody signal run");
+                    }
+                    for (long i = 0; i < n; i++) {
+                        signal.add(new BundleId(source, timestamp, seq + i));
+                    }
+                }
+            }
+            return signal;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated custody signal");
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+/** <p>A small cache of endpoints, shared by all bundles.</p>
+ *
+ * <p>An endpoint which is seen repeatedly is only encoded or decoded
+ * once, and bundles decoded from the network share one
+ * <code>String</code> for it rather than each having its own
+ * copy.</p>
+ *
+ * <p>The cache is direct-mapped: each endpoint can only be held in
+ * the slot chosen by its hash code, and replaces whatever was
+ * there. Only endpoints which are entirely ASCII are cached, since
+ * others would not decode to the same string as they were encoded
+ * from.</p>
+ *
+ * <p>Entries are never changed once created, so the cache needs no
+ * locking. If two threads race to fill a slot, one of them just
+ * wastes its work.</p>
+ */
+class EndpointCache {
+
+    /** Number of slots. Must be a power of two. */
+    private static final int SIZE = 64;
+
+    private static final Entry[] entries = new Entry[SIZE];
+
+    /** A cached endpoint. */
+    static final class Entry {
+        /** The endpoint. */
+        final String endpoint;
+        /** The encoded endpoint, with a ':' between the scheme and
+         * the scheme-specific part. Must not be changed. */
+        final byte[] ascii;
+        /** Offset of the ':' in <code>ascii</code>. */
+        final int splitAt;
+        final int hash;
+
+        Entry(String endpoint, byte[] ascii, int splitAt) {
+            this.endpoint = endpoint;
+            this.ascii = ascii;
+            this.splitAt = splitAt;
+            this.hash = endpoint.hashCode();
+        }
+    }
+
+    private EndpointCache() {
+    }
+
+    /** Look up an endpoint which is about to be encoded.
+     *
+     * @param endpoint Endpoint to look for.
+     *
+     * @return the cached endpoint, or <code>null</code> if it isn't
+     *         in the cache.
+     */
+    static Entry get(String endpoint) {
+        int hash = endpoint.hashCode();
+        Entry e = entries[slot(hash)];
+        if ((e != null) && (e.hash == hash) && e.endpoint.equals(endpoint)) {
+            return e;
+        }
+        return null;
+    }
+
+    /** Add an endpoint which has just been encoded. Does nothing if
+     * the endpoint isn't entirely ASCII.
+     *
+     * @param endpoint Endpoint.
+     * @param ascii    Encoded endpoint, which must not be changed
+     *                 afterwards.
+     * @param splitAt  Offset of the ':' in <code>ascii</code>.
+     */
+    static void put(String endpoint, byte[] ascii, int splitAt) {
+        for (int i = 0; i < endpoint.length(); i++) {
+            if (endpoint.charAt(i) > 127) return;
+        }
+        Entry e = new Entry(endpoint, ascii, splitAt);
+        entries[slot(e.hash)] = e;
+    }
+
+    /** <p>Decode an endpoint from its scheme and scheme-specific
+     * part, returning the cached string if there is one.</p>
+     *
+     * @param buf          Buffer from which to decode endpoint.
+     * @param schemeOffset Offset of scheme within <code>buf</code>.
+     * @param schemeLength Length of scheme.
+     * @param sspOffset    Offset of scheme-specific part within
+     *                     <code>buf</code>.
+     * @param sspLength    Length of scheme-specific part.
+     *
+     * @return the endpoint.
+     */
+    static String decode(byte[] buf, int schemeOffset, int schemeLength,
+                         int sspOffset, int sspLength) {
+        /* Work out the hash code the decoded string will have, which
+         * is easy for ASCII. */
+        int hash = 0;
+        int bits = 0;
+        for (int i = 0; i < schemeLength; i++) {
+            byte b = buf[schemeOffset + i];
+            hash = 31 * hash + b;
+            bits |= b;
+        }
+        hash = 31 * hash + ':';
+        for (int i = 0; i < sspLength; i++) {
+            byte b = buf[sspOffset + i];
+            hash = 31 * hash + b;
+            bits |= b;
+        }
+
+        Entry e = entries[slot(hash)];
+        if ((e != null) && (e.hash == hash)
+            && matches(e, buf, schemeOffset, schemeLength,
+                       sspOffset, sspLength)) {
+            return e.endpoint;
+        }
+
+        String endpoint = BundleStringCodec.fromEndpointBytes(buf,
+                                                              schemeOffset,
+                                                              schemeLength,
+                                                              sspOffset,
+                                                              sspLength);
+        if ((bits & 128) == 0) {
+            byte[] ascii = new byte[schemeLength + 1 + sspLength];
+            System.arraycopy(buf, schemeOffset, ascii, 0, schemeLength);
+            ascii[schemeLength] = ':';
+            System.arraycopy(buf, sspOffset, ascii, schemeLength + 1,
+                             sspLength);
+            e = new Entry(endpoint, ascii, schemeLength);
+            entries[slot(hash)] = e;
+        }
+        return endpoint;
+    }
+
+    private static boolean matches(Entry e, byte[] buf,
+                                   int schemeOffset, int schemeLength,
+                                   int sspOffset, int sspLength) {
+        if ((e.splitAt != schemeLength)
+            || (e.ascii.length != schemeLength + 1 + sspLength)) {
+            return false;
+        }
+        for (int i = 0; i < schemeLength; i++) {
+            if (e.ascii[i] != buf[schemeOffset + i]) return false;
+        }
+        for (int i = 0; i < sspLength; i++) {
+            if (e.ascii[schemeLength + 1 + i] != buf[sspOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (SIZE - 1);
+    }
+}
@@ -4,6 +4,13 @@ import java.util.EventListener;
 
 public interface EndpointEventListener extends EventListener {
 
+    /** Called when a bundle arrives for the endpoint. The payload
+     * can be read with <code>b.getBundlePayload()</code>, for
+     * example through its <code>openStream()</code> method, without
+     * copying it.
+     *
+     * @param b Bundle delivered.
+     */
     void deliverBundle(Bundle b);
 
 }
@@ -0,0 +1,257 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.bundle;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/** <p>Reassembles bundles from their fragments.</p>
+ *
+ * <p>Each fragment's payload is copied into place as soon as it
+ * arrives, so only one buffer the size of the original payload is
+ * needed for each bundle being reassembled, however it was
+ * fragmented. Fragments may arrive in any order, more than once, and
+ * overlapping.</p>
+ *
+ * <p>The total size of the buffers is limited. If a new bundle won't
+ * fit, the reassemblies which have gone longest without a fragment
+ * arriving are abandoned to make room. A reassembly is also abandoned
+ * if no fragment of it arrives for a while.</p>
+ *
+ * <p>All methods synchronize on the reassembler.</p>
+ */
+class Reassembler {
+
+    /** Bundles being reassembled, by identity. */
+    private Hashtable pending;
+    private int capacity;
+    private int timeout;
+    private int used;
+    private long abandonedCount;
+
+    /** Create a new <code>Reassembler</code>.
+     *
+     * @param capacity Total size of reassembly buffers, in bytes.
+     * @param timeout  Time to wait for the next fragment of a bundle,
+     *                 in milliseconds.
+     */
+    Reassembler(int capacity, int timeout) {
+        pending = new Hashtable();
+        this.capacity = capacity;
+        this.timeout = timeout;
+        used = 0;
+        abandonedCount = 0;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    synchronized int getTimeout() {
+        return timeout;
+    }
+
+    /** Get the number of bundles whose reassembly was abandoned, or
+     * which were too big to reassemble. */
+    synchronized long getAbandonedCount() {
+        return abandonedCount;
+    }
+
+    /** Add a fragment. The fragment is discarded if its bundle is
+     * too big to reassemble.
+     *
+     * @param f   Fragment which has arrived.
+     * @param now Current local time, in milliseconds.
+     *
+     * @return the original bundle, if this fragment completed it, or
+     *         <code>null</code> otherwise.
+     */
+    synchronized Bundle add(Bundle f, long now) {
+        long total = f.getTotalLength();
+        long offset = f.getFragmentOffset();
+        BundlePayload data = f.getBundlePayload();
+        int length = data.getLength();
+        if ((offset < 0) || (offset + length > total)) {
+            System.err.println("Discarding bad fragment: " + new BundleId(f));
+            return null;
+        }
+        if (total > capacity) {
+            /* Only count and report the bundle once */
+            if (offset == 0) {
+                abandonedCount++;
+                System.err.println("Discarding bundle too big to reassemble: "
+                                   + new BundleId(f.getSourceEndpoint(),
+                                                  f.getTimestamp(),
+                                                  f.getSequence())
+                                   + " (" + total + " bytes)");
+            }
+            return null;
+        }
+
+        BundleId key = new BundleId(f.getSourceEndpoint(),
+                                    f.getTimestamp(), f.getSequence());
+        Reassembly r = (Reassembly) pending.get(key);
+        if ((r != null) && (r.payload.length != total)) {
+            System.err.println("Discarding inconsistent fragment: " + new BundleId(f));
+            return null;
+        }
+        if (r == null) {
+            while (used + total > capacity) abandonOldest();
+            r = new Reassembly((int) total);
+            pending.put(key, r);
+            used += r.payload.length;
+        }
+        r.lastActive = now;
+
+        try {
+            data.read(0, r.payload, (int) offset, length);
+        } catch (IOException e) {
+            System.err.println("Discarding unreadable fragment: " + e.getMessage());
+            return null;
+        }
+        if (!r.received((int) offset, (int) offset + length)) {
+            return null;
+        }
+        pending.remove(key);
+        used -= r.payload.length;
+        return f.reassemble(r.payload);
+    }
+
+    /** Abandon the reassemblies which have timed out.
+     *
+     * @param now Current local time, in milliseconds.
+     *
+     * @return the local time at which the next reassembly will time
+     *         out, or the largest <code>long</code> if there are
+     *         none.
+     */
+    synchronized long expire(long now) {
+        long next = (1L << 63) ^ -1; /* Max long */
+        if (pending.isEmpty()) return next;
+        Enumeration e = pending.keys();
+        while (e.hasMoreElements()) {
+            Object key = e.nextElement();
+            Reassembly r = (Reassembly) pending.get(key);
+            long due = r.lastActive + timeout;
+            if (due <= now) {
+                abandon(key, r);
+            } else if (due < next) {
+                next = due;
+            }
+        }
+        return next;
+    }
+
+    private void abandonOldest() {
+        Object oldestKey = null;
+        Reassembly oldest = null;
+        Enumeration e = pending.keys();
+        while (e.hasMoreElements()) {
+            Object key = e.nextElement();
+            Reassembly r = (Reassembly) pending.get(key);
+            if ((oldest == null) || (r.lastActive < oldest.lastActive)) {
+                oldestKey = key;
+                oldest = r;
+            }
+        }
+        abandon(oldestKey, oldest);
+    }
+
+    private void abandon(Object key, Reassembly r) {
+        pending.remove(key);
+        used -= r.payload.length;
+        abandonedCount++;
+    }
+
+    /** A bundle being reassembled. */
+    private static class Reassembly {
+        final byte[] payload;
+        /** Local time at which the last fragment arrived. */
+        long lastActive;
+        /** Ranges of the payload received so far, in order and not
+         * touching, as [starts[i], ends[i]). */
+        int[] starts;
+        int[] ends;
+        int nRanges;
+        /** Number of bytes of the payload received so far. */
+        int covered;
+
+        Reassembly(int length) {
+            payload = new byte[length];
+            starts = new int[4];
+            ends = new int[4];
+            nRanges = 0;
+            covered = 0;
+        }
+
+        /** Record that a range of the payload has been received.
+         *
+         * @return <code>true</code> if the whole payload has now been
+         *         received.
+         */
+        boolean received(int start, int end) {
+            if (start < end) {
+                /* Merge with any ranges which overlap or touch */
+                int i = 0;
+                while ((i < nRanges) && (ends[i] < start)) i++;
+                int j = i;
+                while ((j < nRanges) && (starts[j] <= end)) {
+                    if (starts[j] < start) start = starts[j];
+                    if (ends[j] > end) end = ends[j];
+                    covered -= ends[j] - starts[j];
+                    j++;
+                }
+                if (j == i) {
+                    if (nRanges == starts.length) grow();
+                    System.arraycopy(starts, i, starts, i + 1, nRanges - i);
+                    System.arraycopy(ends, i, ends, i + 1, nRanges - i);
+                    nRanges++;
+                } else if (j > i + 1) {
+                    System.arraycopy(starts, j, starts, i + 1, nRanges - j);
+                    System.arraycopy(ends, j, ends, i + 1, nRanges - j);
+                    nRanges -= j - i - 1;
+                }
+                starts[i] = start;
+                ends[i] = end;
+                covered += end - start;
+            }
+            return covered == payload.length;
+        }
+
+        private void grow() {
+            int[] s = new int[starts.length * 2];
+            int[] e = new int[ends.length * 2];
+            System.arraycopy(starts, 0, s, 0, nRanges);
+            System.arraycopy(ends, 0, e, 0, nRanges);
+            starts = s;
+            ends = e;
+        }
+    }
+}
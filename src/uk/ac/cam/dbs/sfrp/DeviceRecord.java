@@ -0,0 +1,335 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.sfrp;
+
+import uk.ac.cam.dbs.BusConnection;
+import uk.ac.cam.dbs.InterfaceAddress;
+
+import static uk.ac.cam.dbs.util.ByteBufferHelper.numToBytes;
+
+/** <p>Routing state for a single remote device.</p>
+ *
+ * <p>Records are keyed on the device's 128-bit main address, held as
+ * two <code>long</code>s. The route fields are only modified while
+ * holding the record's lock, but <code>hop</code> and
+ * <code>routeValid</code> may be read without it.</p>
+ *
+ * <p>The record is scheduled on the SFRP daemon's
+ * <code>TimerQueue</code> to expire the route. It also tracks which
+ * neighbours have already sent copies of the device's latest HELLO,
+ * so that relays to them can be suppressed, and owns a second timer
+ * entry for a pending relay. Those neighbours are also the candidate
+ * next hops.</p>
+ *
+ * <p>Routes are compared by cost, which is the sum of the link costs
+ * along the route. A neighbour's <em>advertised</em> cost is its own
+ * cost to the device; the cost of the route via that neighbour adds
+ * the cost of the link to it.</p>
+ */
+class DeviceRecord extends TimerQueue.Entry {
+    /** Upper 64 bits of the device's main address. */
+    final long addrHigh;
+    /** Lower 64 bits of the device's main address. */
+    final long addrLow;
+
+    int seq;
+    /** Cost of the current route. */
+    int dist;
+    /** Hop count of the current route. */
+    int hops;
+    /** Lowest cost of any route to the device advertised since the
+     * latest HELLO arrived. */
+    int feasibleDist;
+    int validTime;
+    long lastUpdate;
+    /** Time at which the route was added, or its hop or cost last
+     * changed. */
+    long changedAt;
+    /** Time at which the route expires, unless refreshed. */
+    long expiresAt;
+    volatile BusConnection hop;
+    /** Whether the route is usable. Only set it through
+     * <code>setRouteValid()</code>. */
+    volatile boolean routeValid;
+
+    /** Whether a relay of the latest HELLO is waiting to be sent. */
+    boolean relayPending;
+    /** Number of copies of the latest HELLO received. */
+    int copies;
+    /** Neighbours which sent copies of the latest HELLO, with the
+     * cost of the route via each neighbour, the cost the neighbour
+     * advertised, and the hop count each copy carried. */
+    BusConnection[] heardFrom;
+    int[] heardCost;
+    int[] heardAdvert;
+    int[] heardHops;
+    int heardCount;
+    /** Timer for the pending relay. */
+    final RelayTimer relayTimer;
+    /** Whether the record has been removed from the table. Only set
+     * with the record's lock held. */
+    boolean removed;
+
+    /** Timer entry which fires a delayed relay. */
+    static class RelayTimer extends TimerQueue.Entry {
+        final DeviceRecord record;
+        RelayTimer(DeviceRecord record) {
+            this.record = record;
+        }
+    }
+
+    private InterfaceAddress mainAddress;
+    private final DeviceTable table;
+
+    DeviceRecord(DeviceTable table, long addrHigh, long addrLow) {
+        this.table = table;
+        this.addrHigh = addrHigh;
+        this.addrLow = addrLow;
+        seq = -1;
+        dist = (1 << 31) ^ -1; /* Max int */
+        hops = 0;
+        feasibleDist = dist;
+        validTime = 0;
+        hop = null;
+        lastUpdate = 0;
+        changedAt = 0;
+        expiresAt = 0;
+        routeValid = false;
+        relayPending = false;
+        copies = 0;
+        heardFrom = new BusConnection[4];
+        heardCost = new int[4];
+        heardAdvert = new int[4];
+        heardHops = new int[4];
+        heardCount = 0;
+        relayTimer = new RelayTimer(this);
+        removed = false;
+    }
+
+    /** Record that a neighbour sent a copy of the latest HELLO. Must
+     * be called with the record's lock held.
+     *
+     * @param conn   Connection the copy arrived on.
+     * @param cost   Cost of the route via the neighbour.
+     * @param advert Cost advertised by the neighbour.
+     * @param nHops  Hop count carried by the copy.
+     */
+    void heard(BusConnection conn, int cost, int advert, int nHops) {
+        copies++;
+        for (int i = 0; i < heardCount; i++) {
+            if (heardFrom[i] == conn) {
+                if (cost < heardCost[i]) {
+                    heardCost[i] = cost;
+                    heardAdvert[i] = advert;
+                    heardHops[i] = nHops;
+                }
+                return;
+            }
+        }
+        if (heardCount == heardFrom.length) {
+            int n = heardCount * 2;
+            BusConnection[] f = new BusConnection[n];
+            int[] c = new int[n];
+            int[] a = new int[n];
+            int[] h = new int[n];
+            System.arraycopy(heardFrom, 0, f, 0, heardCount);
+            System.arraycopy(heardCost, 0, c, 0, heardCount);
+            System.arraycopy(heardAdvert, 0, a, 0, heardCount);
+            System.arraycopy(heardHops, 0, h, 0, heardCount);
+            heardFrom = f;
+            heardCost = c;
+            heardAdvert = a;
+            heardHops = h;
+        }
+        heardFrom[heardCount] = conn;
+        heardCost[heardCount] = cost;
+        heardAdvert[heardCount] = advert;
+        heardHops[heardCount] = nHops;
+        heardCount++;
+    }
+
+    /** Test whether a neighbour has sent a copy of the latest HELLO.
+     * Must be called with the record's lock held. */
+    boolean isHeard(BusConnection conn) {
+        return indexOf(conn) >= 0;
+    }
+
+    /** Forget a neighbour's copy of the latest HELLO, because it
+     * has gone away or withdrawn its route. Must be called with the
+     * record's lock held. */
+    void forget(BusConnection conn) {
+        int i = indexOf(conn);
+        if (i < 0) return;
+        heardCount--;
+        heardFrom[i] = heardFrom[heardCount];
+        heardCost[i] = heardCost[heardCount];
+        heardAdvert[i] = heardAdvert[heardCount];
+        heardHops[i] = heardHops[heardCount];
+        heardFrom[heardCount] = null;
+    }
+
+    /** <p>Test whether a neighbour can be used as a next hop without
+     * risking a loop. Only neighbours which advertised a lower cost
+     * than this node has for the device's latest HELLO are used.</p>
+     *
+     * <p>If every node does this, costs strictly decrease along a
+     * route, even when some of the costs heard are out of date, so
+     * the route can't loop. Must be called with the record's lock
+     * held.</p> */
+    boolean isLoopFree(int i) {
+        return heardAdvert[i] < feasibleDist;
+    }
+
+    /** <p>Find the best loop-free next hops, in order of increasing
+     * cost.</p>
+     *
+     * <p>Must be called with the record's lock held.</p>
+     *
+     * @param out Array to store the hops in.
+     * @param max Maximum number of hops to store.
+     *
+     * @return the number of hops stored.
+     */
+    int selectHops(BusConnection[] out, int max) {
+        if (max > out.length) max = out.length;
+        int n = 0;
+        /* Insertion sort into out by cost */
+        for (int i = 0; i < heardCount; i++) {
+            if (!isLoopFree(i)) continue;
+            int c = heardCost[i];
+            int j = n;
+            while ((j > 0) && (c < heardCost[indexOf(out[j - 1])])) j--;
+            if (j >= max) continue;
+            int end = (n < max) ? n : max - 1;
+            for (int k = end; k > j; k--) out[k] = out[k - 1];
+            out[j] = heardFrom[i];
+            if (n < max) n++;
+        }
+        return n;
+    }
+
+    /** Find the cheapest loop-free neighbour. Must be called with the
+     * record's lock held.
+     *
+     * @return index of the neighbour in the heard arrays, or -1 if
+     *         there is none.
+     */
+    int best() {
+        int best = -1;
+        for (int i = 0; i < heardCount; i++) {
+            if (isLoopFree(i)
+                && ((best < 0) || (heardCost[i] < heardCost[best]))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /** Route via a particular neighbour. Must be called with the
+     * record's lock held.
+     *
+     * @param i Index of the neighbour in the heard arrays.
+     */
+    void useHop(int i) {
+        if ((hop != heardFrom[i]) || (dist != heardCost[i])
+            || (hops != heardHops[i])) {
+            dist = heardCost[i];
+            hops = heardHops[i];
+            hop = heardFrom[i];
+            if (routeValid) changed();
+        }
+        if (dist < feasibleDist) feasibleDist = dist;
+    }
+
+    /** Mark the route as usable or not. Must be called with the
+     * record's lock held.
+     *
+     * @param valid Whether the route is usable.
+     */
+    void setRouteValid(boolean valid) {
+        if (valid == routeValid) return;
+        routeValid = valid;
+        changed();
+    }
+
+    /* Records a change to the route in the table's generation
+     * number. */
+    private void changed() {
+        changedAt = System.currentTimeMillis();
+        table.routeChanged();
+    }
+
+    /** Make sure the current hop has sent a copy of the latest
+     * HELLO, switching to the best neighbour which has if not, before
+     * the route is advertised. A route kept over from an earlier
+     * HELLO may no longer exist. Must be called with the record's
+     * lock held.
+     *
+     * @return <code>false</code> if there is no suitable
+     *         neighbour.
+     */
+    boolean confirmHop() {
+        if (isHeard(hop)) return true;
+        return failover() != null;
+    }
+
+    /** Switch the route to the best remaining neighbour after the
+     * current hop has been forgotten. Must be called with the
+     * record's lock held.
+     *
+     * @return the new hop, or <code>null</code> if there is no
+     *         suitable neighbour.
+     */
+    BusConnection failover() {
+        int i = best();
+        if (i < 0) return null;
+        useHop(i);
+        return hop;
+    }
+
+    /** Get the index of a neighbour in the heard arrays, or -1. */
+    int indexOf(BusConnection conn) {
+        for (int i = 0; i < heardCount; i++) {
+            if (heardFrom[i] == conn) return i;
+        }
+        return -1;
+    }
+
+    /** Forget which neighbours have sent copies, when a new HELLO
+     * arrives. Must be called with the record's lock held. */
+    void resetHeard() {
+        for (int i = 0; i < heardCount; i++) heardFrom[i] = null;
+        heardCount = 0;
+        copies = 0;
+    }
+
+    /** Get the device's main address. The address object is only
+     * created the first time it is needed. */
+    synchronized InterfaceAddress getMainAddress() {
+        if (mainAddress == null) {
+            byte[] addr = new byte[16];
+            numToBytes(addrHigh, addr, 0, 8);
+            numToBytes(addrLow, addr, 8, 8);
+            mainAddress = new InterfaceAddress(addr);
+        }
+        return mainAddress;
+    }
+}
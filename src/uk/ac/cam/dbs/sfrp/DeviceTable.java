@@ -0,0 +1,186 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.sfrp;
+
+import uk.ac.cam.dbs.InterfaceAddress;
+
+import static uk.ac.cam.dbs.util.ByteBufferHelper.numFromBytes;
+
+/** <p>Table of <code>DeviceRecord</code>s, indexed by 128-bit main
+ * address.</p>
+ *
+ * <p>The table is an open-addressed hash table with linear probing.
+ * A slot array is never changed once it has been published, so
+ * lookups need no lock: they read the current slot array and probe
+ * it. Insertions and removals hold the table lock, build a new copy
+ * of the array, larger if the table has become too full, and then
+ * publish it, in the same way as the <code>SystemBus</code> port
+ * table.</p>
+ *
+ * <p>A record is only removed once its route has been invalid for a
+ * while, and is marked as removed, so that a thread which looked it
+ * up just before can tell that it is no longer in the table.</p>
+ *
+ * <p>The table also keeps a generation number, which its records
+ * increment whenever a route is added, removed or changed, so that
+ * readers can tell whether anything has changed without looking at
+ * every record.</p>
+ */
+class DeviceTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Slot array. Its length is always a power of two. */
+    private volatile DeviceRecord[] slots;
+    /** Number of records in the table. */
+    private int count;
+    /** Route generation number. */
+    private volatile int generation;
+    private final Object generationLock = new Object();
+
+    DeviceTable() {
+        slots = new DeviceRecord[INITIAL_CAPACITY];
+        count = 0;
+    }
+
+    /** Find the record for an address.
+     *
+     * @param high Upper 64 bits of the address.
+     * @param low  Lower 64 bits of the address.
+     *
+     * @return the record, or <code>null</code> if there is none.
+     */
+    DeviceRecord get(long high, long low) {
+        DeviceRecord[] s = slots;
+        int mask = s.length - 1;
+        for (int i = hash(high, low) & mask; ; i = (i + 1) & mask) {
+            DeviceRecord rec = s[i];
+            if (rec == null) return null;
+            if ((rec.addrLow == low) && (rec.addrHigh == high)) return rec;
+        }
+    }
+
+    /** Find the record for an address.
+     *
+     * @param addr Address to look up.
+     *
+     * @return the record, or <code>null</code> if there is none.
+     */
+    DeviceRecord get(InterfaceAddress addr) {
+        byte[] b = addr.getBytes();
+        return get(numFromBytes(b, 0, 8), numFromBytes(b, 8, 8));
+    }
+
+    /** Find the record for an address, creating a new one if there
+     * is none.
+     *
+     * @param high Upper 64 bits of the address.
+     * @param low  Lower 64 bits of the address.
+     *
+     * @return the record.
+     */
+    DeviceRecord getOrCreate(long high, long low) {
+        DeviceRecord rec = get(high, low);
+        if (rec != null) return rec;
+
+        synchronized (this) {
+            /* Check again, in case another thread added it */
+            rec = get(high, low);
+            if (rec != null) return rec;
+
+            DeviceRecord[] s = slots;
+            int length = s.length;
+            /* Keep the load factor below 0.75 */
+            if ((count + 1) * 4 > length * 3) length *= 2;
+            s = copy(s, length, null);
+            rec = new DeviceRecord(this, high, low);
+            insert(s, rec);
+            count++;
+            /* Publish the record in the new array. Storing it in the
+             * current array would let lookups see it before it was
+             * fully constructed. */
+            slots = s;
+            return rec;
+        }
+    }
+
+    /** Remove a record from the table, and mark it as removed. Must
+     * be called with the record's lock held.
+     *
+     * @param rec Record to remove.
+     */
+    synchronized void remove(DeviceRecord rec) {
+        if (rec.removed) return;
+        rec.removed = true;
+        slots = copy(slots, slots.length, rec);
+        count--;
+    }
+
+    /** Get a snapshot of the slot array, for iterating over all
+     * records. Empty slots are <code>null</code>.
+     *
+     * @return the current slot array, which must not be modified.
+     */
+    DeviceRecord[] getSlots() {
+        return slots;
+    }
+
+    /** Get the route generation number.
+     *
+     * @return a number which changes whenever any route changes.
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /** Record that a route has changed. */
+    void routeChanged() {
+        synchronized (generationLock) {
+            generation++;
+        }
+    }
+
+    /* Copies the records in a slot array, except one, into a new
+     * array. */
+    private static DeviceRecord[] copy(DeviceRecord[] s, int length,
+                                       DeviceRecord except) {
+        DeviceRecord[] c = new DeviceRecord[length];
+        for (int i = 0; i < s.length; i++) {
+            if ((s[i] != null) && (s[i] != except)) insert(c, s[i]);
+        }
+        return c;
+    }
+
+    private static void insert(DeviceRecord[] s, DeviceRecord rec) {
+        int mask = s.length - 1;
+        int i = hash(rec.addrHigh, rec.addrLow) & mask;
+        while (s[i] != null) i = (i + 1) & mask;
+        s[i] = rec;
+    }
+
+    private static int hash(long high, long low) {
+        /* Addresses often differ only in their last few octets, so
+         * mix all the bits into the low end. */
+        long h = (high * 0x9e3779b97f4a7c15L) ^ low;
+        h *= 0xc2b2ae3d27d4eb4fL;
+        return (int) (h ^ (h >>> 32));
+    }
+}
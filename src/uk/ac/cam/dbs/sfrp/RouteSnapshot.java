@@ -0,0 +1,179 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.sfrp;
+
+import uk.ac.cam.dbs.BusConnection;
+import uk.ac.cam.dbs.InterfaceAddress;
+
+/** <p>Snapshot of the SFRP routing table.</p>
+ *
+ * <p>A snapshot lists every route which was usable when it was taken,
+ * with the route's next hop, cost and hop count. It never changes, so
+ * it can be held and read without locking. Routes are numbered from
+ * zero to <code>size() - 1</code>, and are read by index rather than
+ * copied out.</p>
+ *
+ * <p>Each snapshot carries the routing table's generation number. If
+ * {@link SimplifiedFloodRouting#getRouteGeneration()} still returns
+ * the same number, no route has been added, removed or changed since
+ * the snapshot was taken.</p>
+ *
+ * @see SimplifiedFloodRouting#getRouteSnapshot()
+ */
+public final class RouteSnapshot {
+
+    private final int generation;
+    private final int count;
+    private final InterfaceAddress[] addresses;
+    private final BusConnection[] nextHops;
+    private final int[] costs;
+    private final int[] hopCounts;
+    private final long[] changeTimes;
+
+    /* Takes a snapshot of the valid routes in a table. The generation
+     * number must be read before the records are, so that a change
+     * made while the snapshot is being taken isn't missed. */
+    RouteSnapshot(DeviceTable table) {
+        generation = table.getGeneration();
+        DeviceRecord[] slots = table.getSlots();
+
+        int n = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if ((slots[i] != null) && slots[i].routeValid) n++;
+        }
+        addresses = new InterfaceAddress[n];
+        nextHops = new BusConnection[n];
+        costs = new int[n];
+        hopCounts = new int[n];
+        changeTimes = new long[n];
+
+        /* Routes may have come or gone since they were counted */
+        int j = 0;
+        for (int i = 0; (i < slots.length) && (j < n); i++) {
+            DeviceRecord rec = slots[i];
+            if (rec == null) continue;
+            synchronized (rec) {
+                if (!rec.routeValid) continue;
+                nextHops[j] = rec.hop;
+                costs[j] = rec.dist;
+                hopCounts[j] = rec.hops;
+                changeTimes[j] = rec.changedAt;
+            }
+            addresses[j] = rec.getMainAddress();
+            j++;
+        }
+        count = j;
+    }
+
+    /** Get the routing table generation number at the time the
+     * snapshot was taken.
+     *
+     * @return the generation number.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /** Get the number of routes in the snapshot.
+     *
+     * @return the number of routes.
+     */
+    public int size() {
+        return count;
+    }
+
+    /** Get the destination of a route.
+     *
+     * @param i Index of the route.
+     *
+     * @return the main address of the destination device.
+     */
+    public InterfaceAddress getAddress(int i) {
+        checkIndex(i);
+        return addresses[i];
+    }
+
+    /** Get the next hop of a route.
+     *
+     * @param i Index of the route.
+     *
+     * @return the connection over which traffic to the destination
+     *         is sent.
+     */
+    public BusConnection getNextHop(int i) {
+        checkIndex(i);
+        return nextHops[i];
+    }
+
+    /** Get the cost of a route, which is the sum of the costs of the
+     * links along it.
+     *
+     * @param i Index of the route.
+     *
+     * @return the cost of the route.
+     */
+    public int getCost(int i) {
+        checkIndex(i);
+        return costs[i];
+    }
+
+    /** Get the number of hops along a route.
+     *
+     * @param i Index of the route.
+     *
+     * @return the hop count.
+     */
+    public int getHopCount(int i) {
+        checkIndex(i);
+        return hopCounts[i];
+    }
+
+    /** Get the age of a route, which is the time since it was added,
+     * or its next hop or cost last changed.
+     *
+     * @param i Index of the route.
+     *
+     * @return the age in milliseconds.
+     */
+    public long getAge(int i) {
+        checkIndex(i);
+        return System.currentTimeMillis() - changeTimes[i];
+    }
+
+    /** Find the route to a device.
+     *
+     * @param addr Main address of the device.
+     *
+     * @return the index of the route, or -1 if there is none.
+     */
+    public int indexOf(InterfaceAddress addr) {
+        for (int i = 0; i < count; i++) {
+            if (addresses[i].equals(addr)) return i;
+        }
+        return -1;
+    }
+
+    private void checkIndex(int i) {
+        if ((i < 0) || (i >= count)) {
+            throw new IndexOutOfBoundsException("No route " + i);
+        }
+    }
+}
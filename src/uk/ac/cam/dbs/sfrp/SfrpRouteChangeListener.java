@@ -46,6 +46,11 @@ public interface SfrpRouteChangeListener extends EventListener {
      * <p>All other possible values for <code>status</code> are
      * reserved.</p>
      *
+     * <p>Events are delivered asynchronously, and only the latest
+     * status of a route which changes more than once before it can be
+     * delivered is passed on. A listener may therefore be told that a
+     * route was added when it already knew about it.</p>
+     *
      * @param node   Main address of the network node for which
      *               routing changed.
      * @param status How the route changed.
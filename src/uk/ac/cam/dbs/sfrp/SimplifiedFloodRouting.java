@@ -21,11 +21,10 @@
 package uk.ac.cam.dbs.sfrp;
 
 import uk.ac.cam.dbs.*;
-import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Random;
 import java.util.Vector;
 
+import static uk.ac.cam.dbs.util.ByteBufferHelper.numFromBytes;
 import static uk.ac.cam.dbs.util.ByteBufferHelper.numFromBytesUnsigned;
 import static uk.ac.cam.dbs.util.ByteBufferHelper.numToBytes;
 
@@ -37,25 +36,319 @@ import static uk.ac.cam.dbs.util.ByteBufferHelper.numToBytes;
  */
 public class SimplifiedFloodRouting
     extends AbstractDMPDaemon
-    implements RoutingProvider {
+    implements MultipathRoutingProvider {
 
     int lastSeq;
     Object seqLock;
 
-    /* K = InterfaceAddress, V = DeviceRecord */
-    Hashtable devices;
+    DeviceTable devices;
+    TimerQueue timers;
     Vector routeListeners;
+    ChangeEventQueue routeEvents;
+    /** Latest routing table snapshot, reused until a route changes. */
+    private volatile RouteSnapshot routeSnapshot;
+
+    private Random random;
+    private volatile int relayJitter;
+    private volatile int suppressionThreshold;
+    private volatile int maxPaths;
+    private volatile LinkQualityProvider linkQuality;
+
+    /* Adaptive HELLO state */
+    private volatile boolean adaptiveHello;
+    private volatile int maxHelloTime;
+    private volatile boolean helloReset;
+    private int helloInterval;
+    private BusConnectionChangeListener connectionListener;
+
+    /* Relay statistics */
+    private Object statsLock;
+    private long relayCount;
+    private long floodRelayCount;
+    private long duplicateCount;
+
+    /* This node's main address as two longs, and the address object
+     * they were taken from. ownAddr is always written first. */
+    private volatile long[] ownAddr;
+    private volatile InterfaceAddress ownAddrSource;
 
     static final int DMP_PORT = 50054;
     static final int HELLO_TIME = 1000;
+    static final int DEFAULT_RELAY_JITTER = 20;
+    static final int DEFAULT_MAX_HELLO_TIME = 16000;
+    static final int DEFAULT_MAX_PATHS = 3;
+    /** Cost of a link whose quality isn't known. */
+    static final int DEFAULT_LINK_COST = 10;
+    /** Largest route cost that fits in a HELLO message. */
+    static final int MAX_COST = 0x3fff;
+    /** <p>Position of the hop tag in the cost field of a HELLO
+     * message.</p>
+     *
+     * <p>Older nodes copy the cost field unchanged when they relay a
+     * HELLO, adding nothing for their own link. So that this can be
+     * detected, the top two bits of the field hold the low two bits
+     * of the hop count the message had when the cost was
+     * written. Relaying increments the hop count, so if an older node
+     * relayed the message, the tag no longer matches.</p> */
+    static final int COST_TAG_SHIFT = 14;
+    /** Largest validity period that fits in a HELLO message. */
+    static final int MAX_VALID_TIME = 0xffff;
+    /** Time for which a device is remembered after its route has
+     * expired, in milliseconds. */
+    static final int PURGE_TIME = 60000;
+    /** Number of devices which may have route change events waiting
+     * to be delivered. */
+    static final int EVENT_QUEUE_SIZE = 256;
 
     /** Initialise a new SFRP daemon. */
     public SimplifiedFloodRouting() {
-        super(DMP_PORT);
+        this(SystemBus.getSystemBus());
+    }
+
+    /** Initialise a new SFRP daemon attached to a particular bus.
+     *
+     * @param bus Bus to route over.
+     */
+    public SimplifiedFloodRouting(SystemBus bus) {
+        super(bus, DMP_PORT);
         lastSeq = 0;
         seqLock = new Object();
-        devices = new Hashtable();
+        devices = new DeviceTable();
+        timers = new TimerQueue();
         routeListeners = new Vector();
+        routeEvents = new ChangeEventQueue(EVENT_QUEUE_SIZE) {
+                protected void dispatch(Object object, int status) {
+                    deliverRouteChange((InterfaceAddress) object, status);
+                }
+            };
+        random = new Random();
+        relayJitter = DEFAULT_RELAY_JITTER;
+        suppressionThreshold = 0;
+        maxPaths = DEFAULT_MAX_PATHS;
+        statsLock = new Object();
+        adaptiveHello = false;
+        maxHelloTime = DEFAULT_MAX_HELLO_TIME;
+        helloReset = false;
+        helloInterval = HELLO_TIME;
+        connectionListener = new BusConnectionChangeListener() {
+                public void connectionChanged(BusConnection c, int status) {
+                    if (status == CONNECTION_ADDED) {
+                        connectionAdded(c);
+                    } else if (status == CONNECTION_REMOVED) {
+                        connectionRemoved(c);
+                    }
+                }
+            };
+    }
+
+    /** {@inheritDoc} */
+    public void start() throws DMPBindException {
+        routeEvents.setExecutor(getBus().getMonitorExecutor());
+        getBus().addConnectionChangeListener(connectionListener);
+        super.start();
+    }
+
+    /** {@inheritDoc} */
+    public void stop() {
+        super.stop();
+        getBus().removeConnectionChangeListener(connectionListener);
+    }
+
+    /** <p>Enable or disable adaptive HELLO intervals.</p>
+     *
+     * <p>In adaptive mode, the interval between HELLO messages starts
+     * at one second, and doubles after each HELLO up to the maximum
+     * set with <code>setMaxHelloTime()</code>. Each HELLO's validity
+     * period is twice the time until the next one. Whenever a
+     * connection is added or removed, the interval is reset and a
+     * HELLO is sent at once. In addition:</p>
+     *
+     * <ul>
+     * <li>When a connection is added, the routes this node knows are
+     * advertised over it, so the new neighbour doesn't have to wait
+     * for every device's next HELLO.</li>
+     * <li>When a connection is removed, a withdrawal is sent for each
+     * route that used it. Neighbours routing through this node drop
+     * the route and pass the withdrawal on, and neighbours with a
+     * shorter route to the device reply with it.</li>
+     * </ul>
+     *
+     * <p>Adaptive mode is disabled by default. Withdrawals are always
+     * acted upon, whether or not adaptive mode is enabled.</p>
+     *
+     * @param enabled <code>true</code> to enable adaptive mode.
+     */
+    public void setAdaptiveHello(boolean enabled) {
+        adaptiveHello = enabled;
+        resetHello();
+    }
+
+    /** Test whether adaptive HELLO intervals are enabled.
+     *
+     * @return <code>true</code> if adaptive mode is enabled.
+     */
+    public boolean isAdaptiveHello() {
+        return adaptiveHello;
+    }
+
+    /** Set the longest interval between HELLO messages in adaptive
+     * mode. The default is 16 seconds.
+     *
+     * @param ms Maximum HELLO interval, in milliseconds, between 1000
+     *           and 32767.
+     */
+    public void setMaxHelloTime(int ms) {
+        if ((ms < HELLO_TIME) || (2 * ms > MAX_VALID_TIME))
+            throw new IllegalArgumentException("HELLO interval out of range");
+        maxHelloTime = ms;
+    }
+
+    /** Get the longest interval between HELLO messages in adaptive
+     * mode.
+     *
+     * @return maximum HELLO interval, in milliseconds.
+     */
+    public int getMaxHelloTime() {
+        return maxHelloTime;
+    }
+
+    /** <p>Set the maximum relay delay. Each relay is delayed by a
+     * random time up to <code>jitter</code> milliseconds, so that
+     * copies of a HELLO from several neighbours have a chance to
+     * arrive first. A relay is never sent to a neighbour which has
+     * already sent a copy at least as good as the relay.</p>
+     *
+     * <p>If <code>jitter</code> is 0, HELLOs are relayed as soon as
+     * they arrive. The default is 20 ms.</p>
+     *
+     * @param jitter Maximum relay delay, in milliseconds.
+     */
+    public void setRelayJitter(int jitter) {
+        if (jitter < 0)
+            throw new IllegalArgumentException("Negative relay jitter");
+        relayJitter = jitter;
+    }
+
+    /** Get the maximum relay delay.
+     *
+     * @return maximum relay delay, in milliseconds.
+     */
+    public int getRelayJitter() {
+        return relayJitter;
+    }
+
+    /** <p>Set the counter-based suppression threshold. If at least
+     * <code>threshold</code> copies of a HELLO have arrived by the
+     * time its relay is due, the relay is not sent at all.</p>
+     *
+     * <p>This greatly reduces the number of relays in dense
+     * topologies, but it can leave nodes without a route if the
+     * topology is sparse, so it is disabled (0) by default. It has
+     * no effect unless there is a relay jitter.</p>
+     *
+     * @param threshold Number of copies above which relays are
+     *                  suppressed, or 0 to disable suppression.
+     */
+    public void setSuppressionThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Negative suppression threshold");
+        suppressionThreshold = threshold;
+    }
+
+    /** Get the counter-based suppression threshold.
+     *
+     * @return the threshold, or 0 if suppression is disabled.
+     */
+    public int getSuppressionThreshold() {
+        return suppressionThreshold;
+    }
+
+    /** <p>Set the maximum number of next hops kept for each
+     * destination. Next hops are the neighbours which relayed the
+     * destination's latest HELLO advertising a lower cost than this
+     * node's, and so can't be routing through it.</p>
+     *
+     * <p>With more than one path, traffic can be spread over
+     * equal-cost routes, and when the best next hop is lost the route
+     * fails over to the next best at once. The price is that HELLOs
+     * are relayed to more neighbours. The default is 3.</p>
+     *
+     * @param paths Maximum number of next hops, at least 1.
+     */
+    public void setMaxPaths(int paths) {
+        if (paths < 1)
+            throw new IllegalArgumentException("At least one path is required");
+        maxPaths = paths;
+    }
+
+    /** Get the maximum number of next hops kept for each
+     * destination.
+     *
+     * @return maximum number of next hops.
+     */
+    public int getMaxPaths() {
+        return maxPaths;
+    }
+
+    /** <p>Set the source of link costs. Routes are chosen by the sum
+     * of the costs of their links, so that, for instance, a route
+     * over two fast links is preferred to one over a single slow,
+     * lossy link. A <code>ClockSync</code> service can be used to
+     * provide costs measured from its round-trip times.</p>
+     *
+     * <p>Links whose cost isn't known, or every link if there is no
+     * provider, are given a fixed cost of 10, so that routes are
+     * chosen by hop count. To avoid flapping, a route is only
+     * replaced by one whose cost is at least one eighth lower.</p>
+     *
+     * @param provider Link cost provider, or <code>null</code> to use
+     *                 hop counts.
+     */
+    public void setLinkQualityProvider(LinkQualityProvider provider) {
+        linkQuality = provider;
+    }
+
+    /** Get the source of link costs.
+     *
+     * @return the link cost provider, or <code>null</code> if there
+     *         is none.
+     */
+    public LinkQualityProvider getLinkQualityProvider() {
+        return linkQuality;
+    }
+
+    /** Get the number of relayed HELLO messages sent.
+     *
+     * @return count of messages sent.
+     */
+    public long getRelayCount() {
+        synchronized (statsLock) {
+            return relayCount;
+        }
+    }
+
+    /** Get the number of relayed HELLO messages saved. This is the
+     * number that would have been sent by relaying every new or
+     * improved HELLO at once to every neighbour except the sender,
+     * minus the number actually sent.
+     *
+     * @return count of messages saved.
+     */
+    public long getSuppressedRelayCount() {
+        synchronized (statsLock) {
+            return (floodRelayCount > relayCount) ? floodRelayCount - relayCount : 0;
+        }
+    }
+
+    /** Get the number of HELLO messages received which were
+     * duplicates of one already seen.
+     *
+     * @return count of duplicate messages.
+     */
+    public long getDuplicateCount() {
+        synchronized (statsLock) {
+            return duplicateCount;
+        }
     }
 
     /** {@inheritDoc}
@@ -63,11 +356,71 @@ public class SimplifiedFloodRouting
      * @return {@inheritDoc}
      */
     public BusConnection nextHop(InterfaceAddress dest) {
-        DeviceRecord rec = getDeviceRecord(dest);
+        DeviceRecord rec = devices.get(dest);
         if ((rec == null) || !rec.routeValid) return null;
         return rec.hop;
     }
 
+    /** {@inheritDoc}
+     * @param dest {@inheritDoc}
+     * @param flowHash {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public BusConnection nextHop(InterfaceAddress dest, int flowHash) {
+        DeviceRecord rec = devices.get(dest);
+        if ((rec == null) || !rec.routeValid) return null;
+        if (maxPaths == 1) return rec.hop;
+
+        synchronized (rec) {
+            /* Choose among the hops within an eighth of the lowest
+             * cost by highest random weight, so that each flow's hop
+             * only changes if that hop goes away. */
+            int b = rec.best();
+            if (b < 0) return rec.hop;
+            int limit = rec.heardCost[b] + (rec.heardCost[b] >> 3);
+            BusConnection best = null;
+            int bestWeight = 0;
+            for (int i = 0; i < rec.heardCount; i++) {
+                if ((rec.heardCost[i] > limit) || !rec.isLoopFree(i)) continue;
+                BusConnection c = rec.heardFrom[i];
+                int w = mix(flowHash ^ System.identityHashCode(c));
+                if ((best == null) || (w > bestWeight)) {
+                    best = c;
+                    bestWeight = w;
+                }
+            }
+            return (best != null) ? best : rec.hop;
+        }
+    }
+
+    /** {@inheritDoc}
+     * @param dest {@inheritDoc}
+     * @param hops {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    public int nextHops(InterfaceAddress dest, BusConnection[] hops) {
+        DeviceRecord rec = devices.get(dest);
+        if ((rec == null) || !rec.routeValid || (hops.length == 0)) return 0;
+
+        synchronized (rec) {
+            if (!rec.routeValid) return 0;
+            int n = rec.selectHops(hops, maxPaths);
+            if (n == 0) {
+                hops[0] = rec.hop;
+                n = 1;
+            }
+            return n;
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
     /** <p>The main loop method for the SFRP daemon. This should
      * normally not be run directly, but rather via the
      * <code>start()</code> method of a new thread.</p>
@@ -76,20 +429,46 @@ public class SimplifiedFloodRouting
      * a SFRP service.</p>
      */
     protected void run() {
+        long nextHello = 0;
         while (isEnabled()) {
-            /* First, transmit messages */
-            sendHelloMessages();
+            long now = System.currentTimeMillis();
 
-            /* Purge probably-disconnected devices */
-            purgeDeviceRecords();
+            /* Restart the HELLO interval after a topology change */
+            if (helloReset) {
+                helloReset = false;
+                helloInterval = HELLO_TIME;
+                nextHello = now;
+            }
 
+            /* First, transmit messages if they are due */
+            if (now >= nextHello) {
+                int interval = adaptiveHello ? helloInterval : HELLO_TIME;
+                sendHelloMessages(2 * interval);
+                nextHello = now + interval;
+                if (adaptiveHello) {
+                    helloInterval = Math.min(2 * helloInterval, maxHelloTime);
+                }
+            }
+
+            /* Send delayed relays and purge probably-disconnected
+             * devices */
+            runTimers(now);
+
+            /* Sleep until the next HELLO is due or the next timer
+             * fires, whichever is sooner. */
             try {
-                Thread.sleep(HELLO_TIME);
+                timers.await(nextHello);
             } catch (InterruptedException e) { }
         }
     }
 
-    /** Add a listener for route change events.
+    /** <p>Add a listener for route change events.</p>
+     *
+     * <p>Events are delivered asynchronously, one at a time, so a
+     * slow listener doesn't hold up routing. If a route changes
+     * several times before the listeners have been told, they are
+     * only told its latest status.</p>
+     *
      * @param l  Listener object to add.
      */
     public void addRouteChangeListener(SfrpRouteChangeListener l) {
@@ -111,42 +490,86 @@ public class SimplifiedFloodRouting
 
     /** <p>Get a list of all reachable device addresses</p>
      *
-     * <p><strong>Warning</strong>: this is expensive, so use it sparingly.</p>
+     * <p>This copies the addresses into a new <code>Vector</code>
+     * each time it is called. Use {@link #getRouteSnapshot()} to read
+     * them without copying.</p>
      *
      * @return an <code>Vector</code> of device addresses for which routes are known.
      */
     public Vector getKnownRoutes() {
-        Vector activeRoutes = new Vector();
-        synchronized (devices) {
-            Enumeration addresses = devices.keys();
-            while (addresses.hasMoreElements()) {
-                Object o = addresses.nextElement();
-                InterfaceAddress addr =
-                    (InterfaceAddress) o;
-                DeviceRecord rec = getDeviceRecord(addr);
-                if (rec.routeValid) {
-                    activeRoutes.addElement(addr);
-                }
-            }
+        RouteSnapshot snapshot = getRouteSnapshot();
+        Vector activeRoutes = new Vector(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            activeRoutes.addElement(snapshot.getAddress(i));
         }
         return activeRoutes;
     }
 
-    /* Notifies all of the listeners that a route has changed */
+    /** <p>Get a snapshot of the routing table.</p>
+     *
+     * <p>The snapshot never changes, and can be read without any
+     * locking. While no route changes, the same snapshot is returned
+     * each time, so polling this is cheap.</p>
+     *
+     * @return a snapshot of all usable routes.
+     */
+    public RouteSnapshot getRouteSnapshot() {
+        RouteSnapshot snapshot = routeSnapshot;
+        if ((snapshot == null)
+            || (snapshot.getGeneration() != devices.getGeneration())) {
+            snapshot = new RouteSnapshot(devices);
+            routeSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /** <p>Get the routing table generation number.</p>
+     *
+     * <p>The number changes whenever a route is added or removed, or
+     * its next hop or cost changes. If it is the same as the
+     * generation of a {@link RouteSnapshot}, the snapshot is still up
+     * to date.</p>
+     *
+     * @return the current generation number.
+     */
+    public int getRouteGeneration() {
+        return devices.getGeneration();
+    }
+
+    /** Wait until all pending route change events have been
+     * delivered to the listeners.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flushRouteChanges() throws InterruptedException {
+        routeEvents.drain();
+    }
+
+    /* Queues a route change event for the listeners */
     private void dispatchRouteChange(InterfaceAddress addr, int status) {
+        routeEvents.post(addr, status);
+    }
+
+    /* Notifies all of the listeners that a route has changed. The
+     * listener list is copied so that listeners can remove
+     * themselves. */
+    private void deliverRouteChange(InterfaceAddress addr, int status) {
+        SfrpRouteChangeListener[] ls;
         synchronized (routeListeners) {
-            for (int i = 0; i < routeListeners.size(); i++) {
-                SfrpRouteChangeListener l =
-                    (SfrpRouteChangeListener) routeListeners.elementAt(i);
-                l.routeChanged(addr, status);
+            ls = new SfrpRouteChangeListener[routeListeners.size()];
+            for (int i = 0; i < ls.length; i++) {
+                ls[i] = (SfrpRouteChangeListener) routeListeners.elementAt(i);
             }
         }
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].routeChanged(addr, status);
+        }
     }
 
     /* Sends HELLO message to all adjacent nodes */
-    private void sendHelloMessages() {
+    private void sendHelloMessages(int validTime) {
         InterfaceAddress mainAddress =
-            SystemBus.getSystemBus().getMainAddress();
+            getBus().getMainAddress();
         if (mainAddress == null) return;
 
         byte[] payload = new byte[24];
@@ -159,8 +582,9 @@ public class SimplifiedFloodRouting
         /* Hops so far = 1*/
         numToBytes(1, payload, 2, 2);
         /* Time for which to treat HELLO as valid */
-        numToBytes(2*HELLO_TIME, payload, 4, 2);
-        /* Skip 2 reserved bytes */
+        numToBytes(validTime, payload, 4, 2);
+        /* Cost so far = 0 */
+        numToBytes(costField(1, 0), payload, 6, 2);
         byte[] addrBytes = mainAddress.getBytes();
         for (int i = 0; i < 16; i++) {
             payload[i+8] = addrBytes[i];
@@ -170,67 +594,77 @@ public class SimplifiedFloodRouting
         DMPMessage msg = new DMPMessage(DMP_PORT, payload);
 
         /* Send over each connection */
-        SystemBus bus = SystemBus.getSystemBus();
+        SystemBus bus = getBus();
         Vector conns = bus.getConnections();
         for (int i = 0; i < conns.size(); i++) {
             BusConnection c = (BusConnection) conns.elementAt(i);
-            try {
-                bus.sendDMPMessage(c, msg);
-            } catch (IOException e) {
-                System.err.println("SFRP flood failed: " + e.getMessage());
-            }
+            send(c, msg);
         }
     }
 
-    /* Checks through device records, flagging those that have timed out */
-    private void purgeDeviceRecords() {
-        long now = System.currentTimeMillis();
-        synchronized (devices) {
-            Enumeration addresses = devices.keys();
-            while (addresses.hasMoreElements()) {
-                InterfaceAddress addr = (InterfaceAddress) addresses.nextElement();
-                DeviceRecord rec = getDeviceRecord(addr);
-                if (!rec.routeValid) continue;
-
-                if (now - rec.lastUpdate > rec.validTime) {
-                    rec.routeValid = false;
-                    /* Notify listeners that the route has gone */
-                    dispatchRouteChange(addr, SfrpRouteChangeListener.ROUTE_REMOVED);
-                }
+    /* Runs timers which are due: sends delayed relays, flags device
+     * records whose routes have timed out, and removes records whose
+     * routes have stayed expired. Only records due to expire are
+     * examined. */
+    private void runTimers(long now) {
+        TimerQueue.Entry e;
+        while ((e = timers.pollExpired(now)) != null) {
+            if (e instanceof DeviceRecord.RelayTimer) {
+                sendRelay(((DeviceRecord.RelayTimer) e).record);
+                continue;
             }
-        }
-    }
-
-    private DeviceRecord getDeviceRecord(InterfaceAddress mainAddress) {
-        synchronized (devices) {
-            return (DeviceRecord) devices.get(mainAddress);
-        }
-    }
 
-    private void addDeviceRecord(DeviceRecord record) {
-        synchronized (devices) {
-            devices.put(record.mainAddress, record);
+            DeviceRecord rec = (DeviceRecord) e;
+            boolean expired = false;
+            long reschedule = -1;
+            synchronized (rec) {
+                /* The purge timer is scheduled with the record locked,
+                 * so that it can't replace the timer for a route
+                 * which has just been refreshed. */
+                if (!rec.routeValid) {
+                    if (rec.relayPending) {
+                        timers.schedule(rec, now + HELLO_TIME);
+                    } else if (now >= rec.expiresAt + PURGE_TIME) {
+                        devices.remove(rec);
+                    } else {
+                        timers.schedule(rec, rec.expiresAt + PURGE_TIME);
+                    }
+                    continue;
+                }
+                if (now >= rec.expiresAt) {
+                    rec.setRouteValid(false);
+                    expired = true;
+                    timers.schedule(rec, rec.expiresAt + PURGE_TIME);
+                } else {
+                    /* Refreshed since it was scheduled. Normally the
+                     * refresh reschedules it, but make sure. */
+                    reschedule = rec.expiresAt;
+                }
+            }
+            if (expired) {
+                /* Notify listeners that the route has gone */
+                dispatchRouteChange(rec.getMainAddress(),
+                                    SfrpRouteChangeListener.ROUTE_REMOVED);
+            } else {
+                timers.schedule(rec, reschedule);
+            }
         }
     }
 
-    private class DeviceRecord {
-        int seq;
-        int dist;
-        int validTime;
-        InterfaceAddress mainAddress;
-        BusConnection hop;
-        long lastUpdate;
-        boolean routeValid;
-
-        DeviceRecord(InterfaceAddress addr) {
-            seq = -1;
-            dist = (1 << 31) ^ -1; /* Max int */
-            validTime = 0;
-            mainAddress = addr;
-            hop = null;
-            lastUpdate = 0;
-            routeValid = false;
+    /* Tests whether an address is this node's main address */
+    private boolean isOwnAddress(long high, long low) {
+        InterfaceAddress mainAddress = getBus().getMainAddress();
+        if (mainAddress == null) return false;
+        long[] own;
+        if (mainAddress == ownAddrSource) {
+            own = ownAddr;
+        } else {
+            byte[] b = mainAddress.getBytes();
+            own = new long[] { numFromBytes(b, 0, 8), numFromBytes(b, 8, 8) };
+            ownAddr = own;
+            ownAddrSource = mainAddress;
         }
+        return (high == own[0]) && (low == own[1]);
     }
 
     /** Handle a received DMP message. Processes the received message,
@@ -248,7 +682,8 @@ public class SimplifiedFloodRouting
          * 16  bits: message sequence number
          * 16  bits: number of hops so far
          * 16  bits: validity time (milliseconds)
-         * 16  bits: reserved
+         * 2   bits: low bits of the hop count when the cost was set
+         * 14  bits: cost so far, excluding the last link
          * 128 bits: main address
          *
          * Total length: 24 bytes.
@@ -265,78 +700,369 @@ public class SimplifiedFloodRouting
         int hops = (int) numFromBytesUnsigned(payload, 2, 2);
         /* Read validity period */
         int validTime = (int) numFromBytesUnsigned(payload, 4, 2);
-        /* Skip 2 reserved bytes */
+        /* Read cost, which is only known if every node which relayed
+         * the message added its link to it. Older nodes leave the
+         * field as it was, so the hop tag no longer matches, and
+         * nodes which don't know about costs at all send zero. */
+        int costField = (int) numFromBytesUnsigned(payload, 6, 2);
+        int advert = costField & MAX_COST;
+        boolean costKnown = (costField != 0)
+            && ((costField >>> COST_TAG_SHIFT) == (hops & 3));
         /* Read main address */
-        byte[] addrBytes = new byte[16];
-        for (int i = 0; i < 16; i++)
-            addrBytes[i] = payload[8+i];
-        InterfaceAddress deviceAddr = new InterfaceAddress(addrBytes);
+        long addrHigh = numFromBytes(payload, 8, 8);
+        long addrLow = numFromBytes(payload, 16, 8);
 
         /* If this is our own message, ignore it completely. */
-        if (deviceAddr.equals(SystemBus.getSystemBus().getMainAddress())) {
+        if (isOwnAddress(addrHigh, addrLow)) {
             return;
         }
 
-        DeviceRecord record = getDeviceRecord(deviceAddr);
-        boolean relay = false;
+        /* A validity period of zero withdraws the route. The cost
+         * is the sender's cost before it lost the route. */
+        if (validTime == 0) {
+            if (!costKnown) {
+                /* Sent or relayed by a node which doesn't know about
+                 * costs */
+                advert = Math.min(hops * DEFAULT_LINK_COST, MAX_COST);
+            }
+            DeviceRecord withdrawn = devices.get(addrHigh, addrLow);
+            if (withdrawn != null) {
+                withdrawalReceived(conn, withdrawn, advert);
+            }
+            return;
+        }
+
+        /* If a node which doesn't know about costs sent or relayed
+         * the message, the cost is missing some links, so estimate it
+         * from the hop count instead. */
+        if (!costKnown && (hops > 1)) {
+            advert = Math.min((hops - 1) * DEFAULT_LINK_COST, MAX_COST);
+        } else if (!costKnown) {
+            advert = 0;
+        }
+        int cost = Math.min(advert + linkCost(conn), MAX_COST);
+
+        DeviceRecord record = devices.getOrCreate(addrHigh, addrLow);
         boolean newRoute = false;
-        boolean changedRoute = false;
-        if (record == null) {
-            record = new DeviceRecord(deviceAddr);
-            addDeviceRecord(record);
-            relay = true;
-            newRoute = true;
+        boolean relayNow = false;
+        long expiresAt;
+        int floodRelays = getBus().getConnections().size() - 1;
+        synchronized (record) {
+            boolean fresh;
+            boolean keepHop = false;
+            /* The device's record was purged after it was looked up.
+             * Its next HELLO will make a new one. */
+            if (record.removed) return;
+            if ((record.seq < 0) || !record.routeValid
+                || seqNewer(seq, record.seq)) {
+                /* A new HELLO from this device. Any sequence number
+                 * is accepted once the route has expired, in case
+                 * the device has restarted. Keep the current hop if
+                 * it relayed the previous HELLO, since its copy of
+                 * this one may be on its way, but don't advertise
+                 * the route until its copy arrives. */
+                fresh = true;
+                keepHop = record.routeValid && record.isHeard(record.hop);
+                record.resetHeard();
+                record.feasibleDist = MAX_COST;
+                record.seq = seq;
+            } else if (seq == record.seq) {
+                fresh = false;
+                synchronized (statsLock) {
+                    duplicateCount++;
+                }
+            } else {
+                /* An old HELLO, so drop it */
+                return;
+            }
+            record.heard(conn, cost, advert, hops);
+
+            /* Choose the route. Only switch from the current hop to a
+             * cheaper one if the saving is worthwhile. */
+            boolean switched = false;
+            if (fresh && !keepHop) {
+                record.useHop(record.indexOf(conn));
+                switched = true;
+            } else {
+                if (conn == record.hop) record.useHop(record.indexOf(conn));
+                int b = record.best();
+                if ((b >= 0) && (record.heardFrom[b] != record.hop)
+                    && (record.heardCost[b] + (record.dist >> 3) + 1
+                        <= record.dist)) {
+                    record.useHop(b);
+                    switched = true;
+                }
+            }
+
+            /* A duplicate only needs relaying if it changed the
+             * route. */
+            if (!fresh && !switched) return;
+
+            synchronized (statsLock) {
+                floodRelayCount += floodRelays;
+            }
+
+            /* If the route had been purged by the invalid timer, or
+             * never existed, mark it as new */
+            if (!record.routeValid) newRoute = true;
+
+            /* Update record. The hop must be set before the route is
+             * marked valid, since nextHop() doesn't lock the
+             * record. */
+            if (fresh) {
+                record.lastUpdate = System.currentTimeMillis();
+                record.expiresAt = record.lastUpdate + validTime;
+                record.validTime = validTime;
+            }
+            record.setRouteValid(true);
+            expiresAt = record.expiresAt;
+
+            /* Schedule a relay, unless one is already pending, in
+             * which case it will pick up the updated route when it
+             * is sent. */
+            if (!record.relayPending) {
+                record.relayPending = true;
+                int jitter = relayJitter;
+                if (jitter > 0) {
+                    synchronized (random) {
+                        jitter = random.nextInt(jitter + 1);
+                    }
+                    timers.schedule(record.relayTimer,
+                                    System.currentTimeMillis() + jitter);
+                } else {
+                    relayNow = true;
+                }
+            }
         }
+        timers.schedule(record, expiresAt);
+        if (relayNow) sendRelay(record);
 
-        if (!relay) {
-            /* If message that arrived has newer sequence number,
-             * update & relay. If seq is a *lot* less than the last
-             * sequence number seen, assume that it has wrapped
-             * around. */
-            if (seq > record.seq) {
-                relay = true;
-            } else if (seq < record.seq - 32768) {
-                relay = true;
+        /* Notify listeners if this is a new route */
+        if (newRoute)
+            dispatchRouteChange(record.getMainAddress(),
+                                SfrpRouteChangeListener.ROUTE_ADDED);
+    }
+
+    /* Relays the latest HELLO from a device to every neighbour which
+     * hasn't already got a copy at least as good. */
+    private void sendRelay(DeviceRecord record) {
+        SystemBus bus = getBus();
+        Vector connections = bus.getConnections();
+        BusConnection[] targets = new BusConnection[connections.size()];
+        int nTargets = 0;
+        DMPMessage relaymsg;
+
+        synchronized (record) {
+            if (!record.relayPending) return;
+            record.relayPending = false;
+            if (!record.confirmHop()) return;
+
+            int threshold = suppressionThreshold;
+            if ((threshold > 0) && (record.copies >= threshold)) return;
+
+            for (int i = 0; i < connections.size(); i++) {
+                BusConnection c;
+                try {
+                    c = (BusConnection) connections.elementAt(i);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    break; /* Connection removed concurrently */
+                }
+                /* A neighbour which advertised a cost no greater
+                 * than our route's cost plus the link between us
+                 * can't improve its route using our relay. This
+                 * always includes the neighbour we got our route
+                 * from. With multipath routing, only skip neighbours
+                 * no more costly than our route, since the others
+                 * might use us as an alternative hop. */
+                boolean skip = false;
+                int j = record.indexOf(c);
+                if (j >= 0) {
+                    int advert = record.heardAdvert[j];
+                    if (maxPaths > 1) {
+                        skip = advert <= record.dist;
+                    } else {
+                        skip = advert <= record.dist
+                            + record.heardCost[j] - advert;
+                    }
+                }
+                if (!skip && (nTargets < targets.length)) {
+                    targets[nTargets++] = c;
+                }
+            }
+            if (nTargets == 0) return;
+
+            /* Increment hop count */
+            relaymsg = makeMessage(record, record.hops + 1, record.validTime,
+                                   record.dist);
+        }
+
+        synchronized (statsLock) {
+            relayCount += nTargets;
+        }
+
+        /* Don't wait for each send, so that one slow link doesn't
+         * hold up the rest, at least where the links have send
+         * queues. */
+        for (int i = 0; i < nTargets; i++) {
+            send(targets[i], relaymsg);
+        }
+    }
+
+    /* Handles a route withdrawal. The cost of a withdrawal is the
+     * lowest the sender advertised for the device's latest HELLO. */
+    private void withdrawalReceived(BusConnection conn, DeviceRecord record,
+                                    int cost) {
+        DMPMessage withdrawal = null;
+        DMPMessage reply = null;
+        synchronized (record) {
+            if (!record.routeValid) return;
+            record.forget(conn);
+            if ((record.hop == conn)
+                && ((maxPaths == 1) || (record.failover() == null))) {
+                /* Our route went through the sender, so it's gone */
+                record.setRouteValid(false);
+                record.relayPending = false;
+                withdrawal = makeWithdrawal(record);
+            } else if ((record.dist <= cost) && record.confirmHop()) {
+                /* Our route, or the alternative we have switched to,
+                 * is no more costly than the sender's was, so it
+                 * can't go through the sender. Offer it. */
+                long remaining = record.expiresAt - System.currentTimeMillis();
+                if (remaining > 0) {
+                    reply = makeMessage(record, record.hops + 1,
+                                        (int) Math.min(remaining, MAX_VALID_TIME),
+                                        record.dist);
+                }
+            }
+        }
+
+        if (withdrawal != null) {
+            dispatchRouteChange(record.getMainAddress(),
+                                SfrpRouteChangeListener.ROUTE_REMOVED);
+            broadcast(withdrawal, conn);
+        }
+        if (reply != null) {
+            send(conn, reply);
+        }
+    }
+
+    /* Switches routes through a connection which has been removed to
+     * an alternative hop, or drops them and in adaptive mode
+     * withdraws them from the neighbours. */
+    private void connectionRemoved(BusConnection conn) {
+        boolean adaptive = adaptiveHello;
+        DeviceRecord[] slots = devices.getSlots();
+        for (int i = 0; i < slots.length; i++) {
+            DeviceRecord rec = slots[i];
+            if (rec == null) continue;
+
+            DMPMessage withdrawal = null;
+            synchronized (rec) {
+                rec.forget(conn);
+                if (!rec.routeValid || (rec.hop != conn)) continue;
+                if ((maxPaths > 1) && (rec.failover() != null)) {
+                    continue;
+                }
+                rec.setRouteValid(false);
+                rec.relayPending = false;
+                withdrawal = makeWithdrawal(rec);
             }
-            /* If message that arrived came by shorter route, update & relay */
-            if ((seq == record.seq) && (hops < record.dist)) {
-                relay = true;
+            dispatchRouteChange(rec.getMainAddress(),
+                                SfrpRouteChangeListener.ROUTE_REMOVED);
+            /* The connection has already been removed from the bus,
+             * so it won't be sent the withdrawal. */
+            if (adaptive) broadcast(withdrawal, null);
+        }
+        if (adaptive) resetHello();
+    }
+
+    /* In adaptive mode, advertises every known route over a new
+     * connection. */
+    private void connectionAdded(BusConnection conn) {
+        if (!adaptiveHello) return;
+
+        long now = System.currentTimeMillis();
+        DeviceRecord[] slots = devices.getSlots();
+        for (int i = 0; i < slots.length; i++) {
+            DeviceRecord rec = slots[i];
+            if ((rec == null) || !rec.routeValid) continue;
+
+            DMPMessage msg = null;
+            synchronized (rec) {
+                long remaining = rec.expiresAt - now;
+                if (rec.routeValid && (remaining > 0) && rec.confirmHop()) {
+                    msg = makeMessage(rec, rec.hops + 1,
+                                      (int) Math.min(remaining, MAX_VALID_TIME),
+                                      rec.dist);
+                }
             }
+            if (msg != null) send(conn, msg);
         }
+        resetHello();
+    }
+
+    /* Gets the cost of the link to a neighbour */
+    private int linkCost(BusConnection conn) {
+        LinkQualityProvider provider = linkQuality;
+        if (provider == null) return DEFAULT_LINK_COST;
+        int cost = provider.getLinkCost(conn);
+        return (cost > 0) ? cost : DEFAULT_LINK_COST;
+    }
+
+    /* Makes the daemon send a HELLO at once and restart the interval */
+    private void resetHello() {
+        helloReset = true;
+        timers.wakeUp();
+    }
 
-        /* If we've decided this isn't worth relaying, bail out now */
-        if (!relay) return;
-        /* If the route had been purged by the invalid timer, mark it
-         * as new */
-        if (!record.routeValid) newRoute = true;
-
-        /* Update record */
-        record.lastUpdate = System.currentTimeMillis();
-        record.seq = seq;
-        record.dist = hops;
-        record.validTime = validTime;
-        record.hop = conn;
-        record.routeValid = true;
-
-        /* Increment hop count */
-        numToBytes(hops + 1, payload, 2, 2);
-        DMPMessage relaymsg = new DMPMessage(DMP_PORT, payload);
-        SystemBus bus = SystemBus.getSystemBus();
-
-        /* Relay message to all neighbours apart from sender */
+    /* Sends a message to every neighbour except one */
+    private void broadcast(DMPMessage msg, BusConnection except) {
+        SystemBus bus = getBus();
         Vector connections = bus.getConnections();
         for (int i = 0; i < connections.size(); i++) {
-            BusConnection relayconn = (BusConnection) connections.elementAt(i);
-            if (relayconn == conn) continue; /* Skip sender */
-            try {
-                bus.sendDMPMessage(relayconn, relaymsg);
-            } catch (IOException e) {
-                System.err.println("SFRP relay failed: " + e.getMessage());
-            }
+            BusConnection c = (BusConnection) connections.elementAt(i);
+            if (c != except) send(c, msg);
         }
+    }
 
-        /* Notify listeners if this is a new route */
-        if (newRoute)
-            dispatchRouteChange(deviceAddr, SfrpRouteChangeListener.ROUTE_ADDED);
+    /* Sends a message to a neighbour without waiting for it to be
+     * written, if the connection has a send queue. SFRP messages are
+     * soon superseded, so if the queue is full the oldest queued
+     * message is dropped rather than waiting. */
+    private void send(BusConnection conn, DMPMessage msg) {
+        getBus().sendDMPMessageAsync(conn, msg, WritePolicy.OVERFLOW_DROP_OLDEST);
+    }
+
+    /* Makes an SFRP message advertising a device's route. Must be
+     * called with the record's lock held. */
+    private static DMPMessage makeMessage(DeviceRecord record, int hops,
+                                          int validTime, int cost) {
+        byte[] payload = new byte[24];
+        numToBytes(record.seq, payload, 0, 2);
+        numToBytes(hops, payload, 2, 2);
+        numToBytes(validTime, payload, 4, 2);
+        numToBytes(costField(hops, cost), payload, 6, 2);
+        numToBytes(record.addrHigh, payload, 8, 8);
+        numToBytes(record.addrLow, payload, 16, 8);
+        return new DMPMessage(DMP_PORT, payload);
+    }
+
+    /* Encodes a route cost, tagged with the hop count of the message
+     * carrying it. */
+    private static int costField(int hops, int cost) {
+        return ((hops & 3) << COST_TAG_SHIFT) | Math.min(cost, MAX_COST);
+    }
+
+    /* Makes an SFRP message withdrawing a device's route. Must be
+     * called with the record's lock held. */
+    private static DMPMessage makeWithdrawal(DeviceRecord record) {
+        return makeMessage(record, record.hops, 0, record.feasibleDist);
+    }
+
+    /* Compares two 16-bit sequence numbers using serial number
+     * arithmetic (RFC 1982). Returns true if a is newer than b. */
+    static boolean seqNewer(int a, int b) {
+        int d = (a - b) & 0xffff;
+        return (d != 0) && (d < 0x8000);
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Distributed bus system for robotic applications
+ * Copyright (C) 2009 University of Cambridge
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ */
+
+package uk.ac.cam.dbs.sfrp;
+
+/** <p>Priority queue of timers, ordered by the time at which they
+ * are due. The SFRP daemon uses it for route expiry and for delayed
+ * relaying.</p>
+ *
+ * <p>The queue is a binary min-heap. Each entry holds its own
+ * position in the heap, so rescheduling an entry which is already
+ * queued moves it in place without allocating. An entry appears in
+ * the queue at most once.</p>
+ *
+ * <p>All methods synchronize on the queue. A thread waiting in
+ * <code>await()</code> is woken if an entry is scheduled to be due
+ * before the time it was going to wake up.</p>
+ */
+class TimerQueue {
+
+    /** An item which can be scheduled on a <code>TimerQueue</code>.
+     * The fields are guarded by the queue's lock. */
+    static class Entry {
+        int heapIndex = -1;
+        long heapKey;
+    }
+
+    private Entry[] heap;
+    private int size;
+
+    TimerQueue() {
+        heap = new Entry[16];
+        size = 0;
+    }
+
+    /** Schedule an entry to be due at a particular time, replacing
+     * any time it was previously scheduled for.
+     *
+     * @param rec  Entry to schedule.
+     * @param when Due time, in milliseconds.
+     */
+    synchronized void schedule(Entry rec, long when) {
+        int i = rec.heapIndex;
+        if (i < 0) {
+            if (size == heap.length) {
+                Entry[] grown = new Entry[size * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            i = size++;
+            heap[i] = rec;
+            rec.heapIndex = i;
+            rec.heapKey = when;
+            siftUp(i);
+        } else {
+            long old = rec.heapKey;
+            rec.heapKey = when;
+            if (when < old) {
+                siftUp(i);
+            } else {
+                siftDown(i);
+            }
+        }
+
+        /* If this is now the earliest entry, wake up the waiter so
+         * that it can recalculate its timeout. */
+        if (heap[0] == rec) notifyAll();
+    }
+
+    /** Remove and return an entry whose due time has passed.
+     *
+     * @param now Current time, in milliseconds.
+     *
+     * @return an entry scheduled no later than <code>now</code>, or
+     *         <code>null</code> if there is none.
+     */
+    synchronized Entry pollExpired(long now) {
+        if ((size == 0) || (heap[0].heapKey > now)) return null;
+
+        Entry rec = heap[0];
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            heap[0].heapIndex = 0;
+            siftDown(0);
+        }
+        heap[size] = null;
+        rec.heapIndex = -1;
+        return rec;
+    }
+
+    /** Wait until <code>until</code>, or until the earliest entry is
+     * due if that is sooner.
+     *
+     * @param until Latest time to wake up, in milliseconds.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     *                              while waiting.
+     */
+    synchronized void await(long until) throws InterruptedException {
+        long wake = until;
+        if ((size > 0) && (heap[0].heapKey < wake)) {
+            wake = heap[0].heapKey;
+        }
+        long delay = wake - System.currentTimeMillis();
+        if (delay > 0) wait(delay);
+    }
+
+    /** Wake up any thread waiting in <code>await()</code>. */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private void siftUp(int i) {
+        Entry rec = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Entry p = heap[parent];
+            if (p.heapKey <= rec.heapKey) break;
+            heap[i] = p;
+            p.heapIndex = i;
+            i = parent;
+        }
+        heap[i] = rec;
+        rec.heapIndex = i;
+    }
+
+    private void siftDown(int i) {
+        Entry rec = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            Entry c = heap[child];
+            int right = child + 1;
+            if ((right < size) && (heap[right].heapKey < c.heapKey)) {
+                child = right;
+                c = heap[child];
+            }
+            if (rec.heapKey <= c.heapKey) break;
+            heap[i] = c;
+            c.heapIndex = i;
+            i = child;
+        }
+        heap[i] = rec;
+        rec.heapIndex = i;
+    }
+}
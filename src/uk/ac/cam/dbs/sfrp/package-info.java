@@ -60,6 +60,20 @@
  * routingService.addRouteChangeListener(notifier);
  * </pre>
  *
+ * <p>The whole routing table can be read with
+ * <code>getRouteSnapshot()</code>, which returns an unchanging
+ * <code>RouteSnapshot</code>. A program that polls the table can
+ * compare the snapshot's generation number with
+ * <code>getRouteGeneration()</code> to tell whether anything has
+ * changed:</p>
+ *
+ * <pre>
+ * if (routingService.getRouteGeneration() != snapshot.getGeneration()) {
+ *     snapshot = routingService.getRouteSnapshot();
+ *     &lt;redraw routes&gt;
+ * }
+ * </pre>
+ *
  * <h2>Routing algorithm</h2>
  * <p>The approach works as follows:</p>
  *
@@ -69,20 +83,44 @@
  * <li>On receiving a HELLO message, a device compares the message's
  * sequence number and main address to the record of previous messages
  * received. If a message with that sequence number has already been
- * received, the message is ignored.
- * <li>The message's hop count is incremented, and the message is then
- * forwarded over every connection other than the one it was received
- * from.</li>
+ * received, the message is ignored unless it offers a cheaper
+ * route.
+ * <li>After a short random delay, the message's hop count is
+ * incremented, its cost is set to the cost of the device's route,
+ * and the message is then forwarded over every connection except
+ * those that already sent a copy of the same message with a similar
+ * cost.</li>
  * <li>The message information is stored in the record of received
  * messages and used for routing lookups.</li>
  * <li>After the validity period specified in the HELLO message
- * expires, the route is marked as dead.</li>
+ * expires, the route is marked as dead. If no new HELLO arrives
+ * within a minute, the device's record is removed.</li>
  * </ol>
  *
+ * <p>A HELLO message with a validity period of zero withdraws a
+ * route. A device whose route to that address went via the sender
+ * marks the route as dead and forwards the withdrawal. A device with
+ * a route no more costly than the withdrawn one replies to the
+ * sender with a HELLO for that route.</p>
+ *
+ * <p>The cost of a route is the sum of the costs of its links. A
+ * device adds the cost of the link a HELLO arrived on to the cost in
+ * the message. Link costs come from a
+ * <code>LinkQualityProvider</code> such as <code>ClockSync</code>,
+ * and are 10 for every link if none is set. A device only switches
+ * from its current route to one that is at least an eighth cheaper,
+ * and keeps its current next hop for a new HELLO as long as that
+ * neighbour relayed the previous one.</p>
+ *
+ * <p>By default, HELLO messages are sent every second. In adaptive
+ * mode, the interval doubles while the device's connections are
+ * unchanged, and is reset when a connection is added or removed. A
+ * device which loses a connection withdraws the routes that used
+ * it, and a device which gains a connection advertises all of its
+ * routes over it.</p>
+ *
  * <p>Note that this algorithm only provides "next hop" routing
- * information. It does not detect multiple paths or intermittent
- * connections, and does not allow for load balancing or link
- * weighting.</p>
+ * information. It does not detect intermittent connections.</p>
  *
  * <h2>HELLO message structure</h2>
  * <table>
@@ -93,13 +131,16 @@
  * <tr><td>16</td><td>Message sequence number</td></tr>
  * <tr><td>16</td><td>Hop count</td></tr>
  * <tr><td>16</td><td>Validity period (ms)</td></tr>
- * <tr><td>16</td><td>(Reserved)</td></tr>
+ * <tr><td>16</td><td>Cost, excluding the last link</td></tr>
  * <tr><td>128</td><td>Device main address</td></tr>
  * </tbody>
  * </table>
  *
  * <p>The message sequence number must be monotonically increasing, and
- * should wrap around to zero. The hop count must be initialised to zero.</p>
+ * should wrap around to zero. The hop count must be initialised to zero.
+ * The cost must be initialised to zero. A relayed message with a cost
+ * of zero was relayed by a device which doesn't know about costs,
+ * and its cost is estimated from the hop count.</p>
  *
  * @see uk.ac.cam.dbs.InterfaceAddress
  * @see uk.ac.cam.dbs.DMPMessage
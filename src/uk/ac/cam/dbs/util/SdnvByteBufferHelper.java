@@ -62,15 +62,8 @@ public class SdnvByteBufferHelper {
         if (value < 0)
             throw new IllegalArgumentException("SDNVs may only encode positive integers");
         /* Each octet of an SDNV encodes 7 bits */
-        int i;
         int result = 1;
-        for (i = 9; i >= 0; i--) {
-            int b = (int) (value >> (i*7)) & 127;
-            if (b != 0) {
-                result = i+1;
-                break;
-            }
-        }
+        while ((value >>>= 7) != 0) result++;
         return result;
     }
 
@@ -108,16 +101,15 @@ public class SdnvByteBufferHelper {
         if (value < 0)
             throw new IllegalArgumentException("SDNVs may only encode positive integers");
 
-        boolean foundMsb = false;
-        int k = off;
-        for (byte i = 9; i >= 0; i--) {
-            int b = (int) (value >> (i*7)) & 127;
-            if ((b == 0) && !foundMsb && (i > 0)) continue;
-
-            foundMsb = true;
-            b |= (i > 0) ? 128 : 0;
-            buf[k++] = (byte) b;
+        /* Write from the least significant octet backwards, so the
+         * value is only scanned once */
+        int length = getSdnvLength(value);
+        int k = off + length - 1;
+        buf[k] = (byte) (value & 127);
+        while (k > off) {
+            value >>>= 7;
+            buf[--k] = (byte) ((value & 127) | 128);
         }
-        return k - off;
+        return length;
     }
 }